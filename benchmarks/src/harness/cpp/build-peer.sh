@@ -0,0 +1,32 @@
+#!/bin/sh
+# Собирает C++ сторону кросс-языкового теста из примера, сгенерированного SampleSources.
+# Нужны protoc и библиотека protobuf для C++ (их версии должны совпадать); компилятор и protoc
+# можно переопределить через переменные CXX и PROTOC, а флаги protobuf - через PROTOBUF_FLAGS
+# (по умолчанию берутся из pkg-config).
+#
+# Использование: build-peer.sh SAMPLE_DIR OUTPUT_DIR
+
+set -e
+
+if [ $# -ne 2 ]; then
+    echo "Usage: build-peer.sh SAMPLE_DIR OUTPUT_DIR" >&2
+    exit 1
+fi
+
+SAMPLE_DIR=$1
+OUTPUT_DIR=$2
+HARNESS_DIR=$(cd "$(dirname "$0")" && pwd)
+
+CXX=${CXX:-c++}
+PROTOC=${PROTOC:-protoc}
+PROTOBUF_FLAGS=${PROTOBUF_FLAGS:-$(pkg-config --cflags --libs protobuf)}
+
+mkdir -p "$OUTPUT_DIR"
+
+"$PROTOC" --proto_path="$SAMPLE_DIR/proto" --cpp_out="$OUTPUT_DIR" "$SAMPLE_DIR/proto/packets.proto"
+
+# shellcheck disable=SC2086
+"$CXX" -std=c++17 -O2 -o "$OUTPUT_DIR/harness_peer" \
+    -I"$OUTPUT_DIR" -I"$SAMPLE_DIR/cpp" \
+    "$HARNESS_DIR/harness_peer.cpp" "$OUTPUT_DIR/packets.pb.cc" \
+    $PROTOBUF_FLAGS -pthread
@@ -0,0 +1,262 @@
+// C++ сторона кросс-языкового теста (см. CrossLanguageHarness): читает из stdin пакеты, обёрнутые
+// сгенерированным кодом на Java, разворачивает их сгенерированным кодом на C++, заново оборачивает
+// (с теми же sequence, ack и ackBitfield) и пишет в stdout.
+//
+// Формат потока в обе стороны - кадры: длина (4 байта, big-endian), вид кадра (1 байт, в длину не входит),
+// затем обёрнутые данные. Вид кадра - FRAME_SINGLE (один пакет, wrap/unwrap) или FRAME_BATCH (пачка,
+// wrapBatch/unwrapBatch); ответ всегда того же вида, что и запрос. Кадр нулевой длины (без байта вида)
+// от Java означает "сбросить буфер вывода", а от C++ - "не удалось развернуть пакет".
+//
+// Одиночные пакеты по очереди проходят через все пути сгенерированного кода: заголовок сначала читается
+// internalGeneratedPeekHeader и сверяется с результатом полного разбора, сам разбор чередует
+// internalGeneratedUnwrap и internalGeneratedUnwrapMove, а обратная обёртка - internalGeneratedWrap
+// и internalGeneratedWrapInto.
+
+#include <array>
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <cstdio>
+#include <functional>
+#include <map>
+#include <memory>
+#include <stdexcept>
+#include <unordered_map>
+#include <vector>
+
+#include <google/protobuf/io/coded_stream.h>
+#include <google/protobuf/wire_format_lite.h>
+
+#include "packets.pb.h"
+
+class WrappedPacketData {
+public:
+    WrappedPacketData(std::shared_ptr<char[]> data, size_t dataLen)
+            : data(std::move(data)), dataLen(dataLen) {
+    }
+
+    const char* getData() const {
+        return data.get();
+    }
+
+    size_t getDataLen() const {
+        return dataLen;
+    }
+
+private:
+    std::shared_ptr<char[]> data;
+    size_t dataLen;
+};
+
+class UnwrappedPacketData {
+public:
+    UnwrappedPacketData(uint32_t sequence, uint32_t ack, uint32_t ackBitfield,
+                        PacketWrapper::PacketCase packetType, std::shared_ptr<google::protobuf::Message> packet)
+            : sequence(sequence), ack(ack), ackBitfield(ackBitfield),
+              packetType(packetType), packet(std::move(packet)) {
+    }
+
+    uint32_t getSequence() const {
+        return sequence;
+    }
+
+    uint32_t getAck() const {
+        return ack;
+    }
+
+    uint32_t getAckBitfield() const {
+        return ackBitfield;
+    }
+
+    PacketWrapper::PacketCase getPacketType() const {
+        return packetType;
+    }
+
+    std::shared_ptr<google::protobuf::Message> getPacket() const {
+        return packet;
+    }
+
+private:
+    uint32_t sequence, ack, ackBitfield;
+    PacketWrapper::PacketCase packetType;
+    std::shared_ptr<google::protobuf::Message> packet;
+};
+
+class PeekedPacketHeader {
+public:
+    PeekedPacketHeader(uint32_t sequence, uint32_t ack, uint32_t ackBitfield,
+                       PacketWrapper::PacketCase packetType, char* data, size_t dataLen)
+            : sequence(sequence), ack(ack), ackBitfield(ackBitfield), packetType(packetType) {
+    }
+
+    uint32_t getSequence() const {
+        return sequence;
+    }
+
+    uint32_t getAck() const {
+        return ack;
+    }
+
+    uint32_t getAckBitfield() const {
+        return ackBitfield;
+    }
+
+    PacketWrapper::PacketCase getPacketType() const {
+        return packetType;
+    }
+
+private:
+    uint32_t sequence, ack, ackBitfield;
+    PacketWrapper::PacketCase packetType;
+};
+
+// Сгенерирован awd-ptrans-codegen (см. SampleSources).
+#include "SampleTransformer.hpp"
+
+static const unsigned char FRAME_SINGLE = 0;
+static const unsigned char FRAME_BATCH  = 1;
+
+// Заголовок PacketWrapper (sequence, ack и ackBitfield - varint до 5 байт каждый, плюс теги) и тег
+// с длиной самого пакета занимают меньше этого числа байтов - столько и добавляем к размеру пакета
+// для буфера internalGeneratedWrapInto.
+static const size_t MAX_WRAPPER_OVERHEAD = 32;
+
+static bool readFully(char* buffer, size_t length) {
+    return std::fread(buffer, 1, length, stdin) == length;
+}
+
+static bool readLength(uint32_t& length) {
+    unsigned char bytes[4];
+
+    if (!readFully(reinterpret_cast<char*>(bytes), sizeof(bytes)))
+        return false;
+
+    length = static_cast<uint32_t>(bytes[0]) << 24 | static_cast<uint32_t>(bytes[1]) << 16
+           | static_cast<uint32_t>(bytes[2]) << 8 | static_cast<uint32_t>(bytes[3]);
+
+    return true;
+}
+
+static void writeFrame(unsigned char kind, const char* data, uint32_t length) {
+    unsigned char bytes[4] = {
+            static_cast<unsigned char>(length >> 24), static_cast<unsigned char>(length >> 16),
+            static_cast<unsigned char>(length >> 8), static_cast<unsigned char>(length)
+    };
+
+    std::fwrite(bytes, 1, sizeof(bytes), stdout);
+
+    if (length > 0) {
+        std::fputc(kind, stdout);
+        std::fwrite(data, 1, length, stdout);
+    }
+}
+
+// Разворачивает и заново оборачивает один пакет. Возвращает false, если пакет не удалось развернуть
+// или заголовок, прочитанный internalGeneratedPeekHeader, не совпал с результатом полного разбора.
+static bool echoSingle(SampleTransformer& transformer, uint64_t frame, std::vector<char>& buffer,
+                       std::vector<char>& output) {
+    PeekedPacketHeader header = transformer.internalGeneratedPeekHeader(buffer.data(), buffer.size());
+
+    std::shared_ptr<UnwrappedPacketData> unwrapped = frame % 2 == 0
+            ? transformer.internalGeneratedUnwrap(buffer.data(), buffer.size())
+            : transformer.internalGeneratedUnwrapMove(buffer.data(), buffer.size());
+
+    if (!unwrapped)
+        return false;
+
+    if (header.getPacketType() != unwrapped->getPacketType()
+            || header.getSequence() != unwrapped->getSequence()
+            || header.getAck() != unwrapped->getAck()
+            || header.getAckBitfield() != unwrapped->getAckBitfield()) {
+        std::fprintf(stderr, "harness_peer: peeked header does not match unwrapped packet\n");
+        return false;
+    }
+
+    google::protobuf::Message* packet = unwrapped->getPacket().get();
+
+    if (frame / 2 % 2 == 0) {
+        std::shared_ptr<WrappedPacketData> wrapped = transformer.internalGeneratedWrap(
+                packet, unwrapped->getSequence(), unwrapped->getAck(), unwrapped->getAckBitfield());
+
+        writeFrame(FRAME_SINGLE, wrapped->getData(), static_cast<uint32_t>(wrapped->getDataLen()));
+    } else {
+        output.resize(packet->ByteSizeLong() + MAX_WRAPPER_OVERHEAD);
+
+        size_t wrappedLen = transformer.internalGeneratedWrapInto(
+                packet, unwrapped->getSequence(), unwrapped->getAck(), unwrapped->getAckBitfield(),
+                output.data(), output.size());
+
+        writeFrame(FRAME_SINGLE, output.data(), static_cast<uint32_t>(wrappedLen));
+    }
+
+    return true;
+}
+
+// Разворачивает и заново оборачивает пачку пакетов. Возвращает false, если пачку не удалось развернуть.
+static bool echoBatch(SampleTransformer& transformer, std::vector<char>& buffer) {
+    std::vector<std::shared_ptr<UnwrappedPacketData>> unwrapped
+            = transformer.internalGeneratedUnwrapBatch(buffer.data(), buffer.size());
+
+    if (unwrapped.empty())
+        return false;
+
+    std::vector<google::protobuf::Message*> packets;
+
+    for (const auto& packet : unwrapped)
+        packets.push_back(packet->getPacket().get());
+
+    // Заголовок у всех пакетов пачки общий.
+    std::shared_ptr<WrappedPacketData> wrapped = transformer.internalGeneratedWrapBatch(
+            packets, unwrapped[0]->getSequence(), unwrapped[0]->getAck(), unwrapped[0]->getAckBitfield());
+
+    writeFrame(FRAME_BATCH, wrapped->getData(), static_cast<uint32_t>(wrapped->getDataLen()));
+
+    return true;
+}
+
+int main() {
+    GOOGLE_PROTOBUF_VERIFY_VERSION;
+
+    SampleTransformer transformer;
+    std::vector<char> buffer, output;
+    uint32_t length;
+    uint64_t frames = 0, singleFrames = 0, failures = 0;
+
+    while (readLength(length)) {
+        if (length == 0) {
+            std::fflush(stdout);
+            continue;
+        }
+
+        char kind;
+        buffer.resize(length);
+
+        if (!readFully(&kind, 1) || !readFully(buffer.data(), length))
+            break;
+
+        frames++;
+
+        bool echoed = false;
+
+        try {
+            echoed = kind == FRAME_BATCH
+                    ? echoBatch(transformer, buffer)
+                    : echoSingle(transformer, singleFrames++, buffer, output);
+        } catch (const std::exception& ex) {
+            std::fprintf(stderr, "harness_peer: transform failed: %s\n", ex.what());
+        }
+
+        if (!echoed) {
+            failures++;
+            writeFrame(kind, nullptr, 0);
+        }
+    }
+
+    std::fflush(stdout);
+    std::fprintf(stderr, "harness_peer: %llu frames, %llu failed to unwrap\n",
+                 static_cast<unsigned long long>(frames), static_cast<unsigned long long>(failures));
+
+    google::protobuf::ShutdownProtobufLibrary();
+
+    return failures == 0 ? 0 : 1;
+}
@@ -0,0 +1,198 @@
+package gg.aswedrown.ptranscodegen.benchmarks;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import gg.aswedrown.ptranscodegen.benchmarks.sample.PacketWrapper;
+import gg.aswedrown.ptranscodegen.benchmarks.sample.SampleTransformer;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Кросс-языковой тест: пакеты каждого типа оборачиваются сгенерированным кодом на Java, через канал
+// передаются C++ стороне (harness_peer.cpp), разворачиваются и заново оборачиваются сгенерированным
+// кодом на C++ и возвращаются обратно, где разворачиваются кодом на Java и сверяются с отправленными.
+// Каждый BATCH_EVERY-й кадр - пачка из BATCH_SIZE копий пакета (wrapBatch/unwrapBatch), остальные - одиночные
+// пакеты (формат кадров и пути сгенерированного кода, через которые они проходят на C++ стороне, см. harness_peer.cpp).
+// Для каждого типа пакета выводит число сообщений и пропускную способность (сообщений и МБ в секунду);
+// завершается с кодом 1, если хоть один пакет не совпал или пропускная способность ниже заданной.
+public final class CrossLanguageHarness {
+
+    private static final String MIN_MESSAGES_PER_SECOND_ARG = "--min_messages_per_second=";
+
+    // Виды кадров - те же, что и в harness_peer.cpp.
+    private static final int FRAME_SINGLE = 0;
+    private static final int FRAME_BATCH  = 1;
+
+    private static final int BATCH_EVERY = 4;
+    private static final int BATCH_SIZE  = 3;
+
+    private CrossLanguageHarness() {}
+
+    // Аргументы: исполняемый файл C++ стороны, число кадров каждого типа
+    // и (необязательно) --min_messages_per_second=N.
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3
+                || (args.length == 3 && !args[2].startsWith(MIN_MESSAGES_PER_SECOND_ARG))) {
+            System.err.println("Usage: CrossLanguageHarness PEER_EXECUTABLE MESSAGES_PER_TYPE " +
+                    "[" + MIN_MESSAGES_PER_SECOND_ARG + "N]");
+            System.exit(1);
+        }
+
+        String peerExecutable = args[0];
+        int messagesPerType = Integer.parseInt(args[1]);
+        double minMessagesPerSecond = args.length == 3
+                ? Double.parseDouble(args[2].substring(MIN_MESSAGES_PER_SECOND_ARG.length())) : 0.0;
+
+        Process peer = new ProcessBuilder(peerExecutable)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        List<Descriptors.FieldDescriptor> packetFields = SamplePackets.packetFields();
+        long totalMessages = 0, totalMismatches = 0;
+        int slowTypes = 0;
+
+        System.out.printf("%-24s %10s %10s %12s %10s%n", "packet", "messages", "mismatches", "msgs/s", "MB/s");
+
+        try (DataOutputStream toPeer = new DataOutputStream(new BufferedOutputStream(peer.getOutputStream()));
+             DataInputStream fromPeer = new DataInputStream(new BufferedInputStream(peer.getInputStream()))) {
+            for (Descriptors.FieldDescriptor packetField : packetFields) {
+                Message packet = SamplePackets.newPacket(packetField);
+                PacketWrapper.PacketCase packetType = PacketWrapper.PacketCase.forNumber(packetField.getNumber());
+
+                // Пишем в отдельном потоке, иначе при заполнении канала в обе стороны обе стороны встанут.
+                long startTime = System.nanoTime();
+                Future<Long> sentBytes = writer.submit(() -> send(toPeer, packet, messagesPerType));
+                int mismatches = receive(fromPeer, packet, packetType, messagesPerType);
+                long bytes = sentBytes.get();
+                double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+
+                long messages = messagesInFrames(messagesPerType);
+                double messagesPerSecond = messages / seconds;
+                totalMessages += messages;
+                totalMismatches += mismatches;
+
+                if (messagesPerSecond < minMessagesPerSecond)
+                    slowTypes++;
+
+                System.out.printf(Locale.ROOT, "%-24s %10d %10d %12.0f %10.2f%n", packetField.getName(),
+                        messages, mismatches, messagesPerSecond, bytes / seconds / (1024 * 1024));
+            }
+        } finally {
+            writer.shutdownNow();
+        }
+
+        int peerExitCode = peer.waitFor();
+
+        System.out.println();
+        System.out.println(totalMessages + " messages of " + packetFields.size() + " packet types, "
+                + totalMismatches + " mismatches");
+
+        if (totalMismatches > 0 || peerExitCode != 0) {
+            System.err.println("FAILED: Java and C++ transformers disagree (C++ side exit code: " + peerExitCode + ")");
+            System.exit(1);
+        }
+
+        if (slowTypes > 0) {
+            System.err.println("FAILED: " + slowTypes + " packet types are below "
+                    + minMessagesPerSecond + " messages per second");
+            System.exit(1);
+        }
+    }
+
+    private static boolean isBatch(int index) {
+        return index % BATCH_EVERY == BATCH_EVERY - 1;
+    }
+
+    // Число пакетов в первых frames кадрах.
+    private static long messagesInFrames(int frames) {
+        return frames + (long) (frames / BATCH_EVERY) * (BATCH_SIZE - 1);
+    }
+
+    // Отправляет frames кадров с пакетом (с разными заголовками), затем просит C++ сторону сбросить буфер вывода.
+    // Возвращает число отправленных байтов обёрнутых пакетов.
+    private static long send(DataOutputStream toPeer, Message packet, int frames) throws IOException {
+        List<Message> batch = Collections.nCopies(BATCH_SIZE, packet);
+        long bytes = 0;
+
+        for (int i = 0; i < frames; i++) {
+            byte[] wrapped = isBatch(i)
+                    ? SampleTransformer.wrapBatch(batch, sequence(i), ack(i), ackBitfield(i))
+                    : SampleTransformer.wrap(packet, sequence(i), ack(i), ackBitfield(i));
+
+            toPeer.writeInt(wrapped.length);
+            toPeer.write(isBatch(i) ? FRAME_BATCH : FRAME_SINGLE);
+            toPeer.write(wrapped);
+            bytes += wrapped.length;
+        }
+
+        toPeer.writeInt(0);
+        toPeer.flush();
+
+        return bytes;
+    }
+
+    // Читает frames ответов C++ стороны и возвращает число пакетов, что не совпали с отправленными.
+    private static int receive(DataInputStream fromPeer, Message packet, PacketWrapper.PacketCase packetType,
+                               int frames) throws IOException {
+        int mismatches = 0;
+
+        for (int i = 0; i < frames; i++) {
+            int expectedMessages = isBatch(i) ? BATCH_SIZE : 1;
+            byte[] wrapped = new byte[fromPeer.readInt()];
+
+            // Пустой ответ - C++ сторона не смогла развернуть пакет (байта вида кадра у него нет).
+            if (wrapped.length == 0) {
+                mismatches += expectedMessages;
+                continue;
+            }
+
+            int frameKind = fromPeer.readUnsignedByte();
+            fromPeer.readFully(wrapped);
+
+            if (frameKind != (isBatch(i) ? FRAME_BATCH : FRAME_SINGLE)) {
+                mismatches += expectedMessages;
+                continue;
+            }
+
+            List<SampleTransformer.UnwrappedPacketData> unwrapped = isBatch(i)
+                    ? SampleTransformer.unwrapBatch(wrapped)
+                    : Collections.singletonList(SampleTransformer.unwrap(wrapped));
+
+            int matched = 0;
+
+            for (SampleTransformer.UnwrappedPacketData data : unwrapped)
+                if (data != null
+                        && data.getPacketType() == packetType
+                        && data.getSequence() == sequence(i)
+                        && data.getAck() == ack(i)
+                        && data.getAckBitfield() == ackBitfield(i)
+                        && packet.equals(data.getPacket()))
+                    matched++;
+
+            mismatches += expectedMessages - Math.min(matched, expectedMessages);
+        }
+
+        return mismatches;
+    }
+
+    // Заголовки покрывают и большие значения (старшие биты, длинные varint), а не только небольшие числа.
+    // Битовое поле подтверждений - 32-битное: в C++ оно передаётся как uint32_t.
+    private static int sequence(int index) {
+        return index * 0x9E3779B1;
+    }
+
+    private static int ack(int index) {
+        return sequence(index) - 1;
+    }
+
+    private static long ackBitfield(int index) {
+        return (index * 0x85EBCA6BL) & 0xFFFFFFFFL;
+    }
+
+}
@@ -0,0 +1,227 @@
+package gg.aswedrown.ptranscodegen.benchmarks;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import gg.aswedrown.ptranscodegen.benchmarks.sample.PacketWrapper;
+import gg.aswedrown.ptranscodegen.benchmarks.sample.SampleTransformer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Пропускная способность сгенерированных wrap/unwrap в зависимости от положения типа пакета
+// в "oneof packet" (первый, в середине, последний) - и при выборе пакета по дереву методов (основной
+// пример), и при одном switch'е (маленький пример). Выделение памяти - через профилировщик gc.
+// wrapInto и unwrapBuffer дополнительно измеряются и на обычном, и на direct буфере (см. Buffers).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WrapUnwrapBenchmark {
+
+    @Param({"first", "middle", "last"})
+    public String position;
+
+    // default - основной пример (-PpacketCount, по умолчанию 256 пакетов - дерево методов),
+    // small - SampleSources.SMALL_PACKET_COUNT пакетов (один switch).
+    // Разница между ними - не только выбор пакета: у основного примера сгенерированные protoc методы
+    // PacketWrapper (разбирающий конструктор, Builder.buildPartial) длиннее HugeMethodLimit и потому
+    // не JIT-компилируются. Чтобы сравнить только сгенерированный нами код, запускайте с -PcompileHugeMethods.
+    @Param({"default", "small"})
+    public String sample;
+
+    private Transformer transformer;
+    private Message packet;
+    private byte[] wrapped;
+
+    private int sequence;
+
+    // В сетевом коде пакеты обычно пишутся в direct буферы и читаются из них (такие буферы каналы NIO
+    // принимают без копирования), а protobuf работает с ними иначе, чем с буферами поверх byte[].
+    // Отдельное состояние - чтобы этот параметр не умножал число запусков остальных бенчмарков.
+    @State(Scope.Thread)
+    public static class Buffers {
+
+        @Param({"heap", "direct"})
+        public String bufferType;
+
+        private ByteBuffer wrapped;
+        private ByteBuffer output;
+
+        @Setup
+        public void setUp(WrapUnwrapBenchmark benchmark) {
+            output = allocate(benchmark.wrapped.length * 2);
+
+            wrapped = allocate(benchmark.wrapped.length);
+            wrapped.put(benchmark.wrapped).flip();
+        }
+
+        private ByteBuffer allocate(int capacity) {
+            switch (bufferType) {
+                case "heap":
+                    return ByteBuffer.allocate(capacity);
+
+                case "direct":
+                    return ByteBuffer.allocateDirect(capacity);
+
+                default:
+                    throw new IllegalArgumentException("unknown buffer type: " + bufferType);
+            }
+        }
+
+    }
+
+    // Сгенерированные методы примера - у каждого примера свой класс SampleTransformer. В каждом запуске
+    // (отдельной JVM) вызывается только одна из реализаций, так что JIT встраивает вызов через интерфейс.
+    private interface Transformer {
+
+        byte[] wrap(Message packet, int sequence, int ack, long ackBitfield);
+
+        int wrapInto(Message packet, int sequence, int ack, long ackBitfield, ByteBuffer buffer) throws IOException;
+
+        Object unwrap(byte[] data) throws IOException;
+
+        Object unwrap(ByteBuffer data) throws IOException;
+
+        Object peekHeader(byte[] data) throws IOException;
+
+    }
+
+    private static final class DefaultSample implements Transformer {
+
+        @Override
+        public byte[] wrap(Message packet, int sequence, int ack, long ackBitfield) {
+            return SampleTransformer.wrap(packet, sequence, ack, ackBitfield);
+        }
+
+        @Override
+        public int wrapInto(Message packet, int sequence, int ack, long ackBitfield, ByteBuffer buffer) throws IOException {
+            return SampleTransformer.wrapInto(packet, sequence, ack, ackBitfield, buffer);
+        }
+
+        @Override
+        public Object unwrap(byte[] data) throws IOException {
+            return SampleTransformer.unwrap(data);
+        }
+
+        @Override
+        public Object unwrap(ByteBuffer data) throws IOException {
+            return SampleTransformer.unwrap(data);
+        }
+
+        @Override
+        public Object peekHeader(byte[] data) throws IOException {
+            return SampleTransformer.peekHeader(data);
+        }
+
+    }
+
+    private static final class SmallSample implements Transformer {
+
+        @Override
+        public byte[] wrap(Message packet, int sequence, int ack, long ackBitfield) {
+            return gg.aswedrown.ptranscodegen.benchmarks.sample.small.SampleTransformer
+                    .wrap(packet, sequence, ack, ackBitfield);
+        }
+
+        @Override
+        public int wrapInto(Message packet, int sequence, int ack, long ackBitfield, ByteBuffer buffer) throws IOException {
+            return gg.aswedrown.ptranscodegen.benchmarks.sample.small.SampleTransformer
+                    .wrapInto(packet, sequence, ack, ackBitfield, buffer);
+        }
+
+        @Override
+        public Object unwrap(byte[] data) throws IOException {
+            return gg.aswedrown.ptranscodegen.benchmarks.sample.small.SampleTransformer.unwrap(data);
+        }
+
+        @Override
+        public Object unwrap(ByteBuffer data) throws IOException {
+            return gg.aswedrown.ptranscodegen.benchmarks.sample.small.SampleTransformer.unwrap(data);
+        }
+
+        @Override
+        public Object peekHeader(byte[] data) throws IOException {
+            return gg.aswedrown.ptranscodegen.benchmarks.sample.small.SampleTransformer.peekHeader(data);
+        }
+
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        Message.Builder wrapperBuilder;
+
+        switch (sample) {
+            case "default":
+                transformer = new DefaultSample();
+                wrapperBuilder = PacketWrapper.newBuilder();
+                break;
+
+            case "small":
+                transformer = new SmallSample();
+                wrapperBuilder = gg.aswedrown.ptranscodegen.benchmarks.sample.small.PacketWrapper.newBuilder();
+                break;
+
+            default:
+                throw new IllegalArgumentException("unknown sample: " + sample);
+        }
+
+        List<Descriptors.FieldDescriptor> packetFields = SamplePackets.packetFields(wrapperBuilder.getDescriptorForType());
+
+        int index;
+
+        switch (position) {
+            case "first":
+                index = 0;
+                break;
+
+            case "middle":
+                index = packetFields.size() / 2;
+                break;
+
+            case "last":
+                index = packetFields.size() - 1;
+                break;
+
+            default:
+                throw new IllegalArgumentException("unknown position: " + position);
+        }
+
+        packet = SamplePackets.newPacket(wrapperBuilder, packetFields.get(index));
+        wrapped = transformer.wrap(packet, 1000, 999, 0xFFFFFFFFL);
+
+        if (transformer.unwrap(wrapped) == null)
+            throw new IllegalStateException("sample packet is not unwrapped: " + packet.getClass().getName());
+    }
+
+    @Benchmark
+    public byte[] wrap() {
+        return transformer.wrap(packet, ++sequence, sequence - 1, 0xFFFFFFFFL);
+    }
+
+    @Benchmark
+    public int wrapInto(Buffers buffers) throws IOException {
+        buffers.output.clear();
+
+        return transformer.wrapInto(packet, ++sequence, sequence - 1, 0xFFFFFFFFL, buffers.output);
+    }
+
+    @Benchmark
+    public Object unwrap() throws IOException {
+        return transformer.unwrap(wrapped);
+    }
+
+    @Benchmark
+    public Object unwrapBuffer(Buffers buffers) throws IOException {
+        buffers.wrapped.rewind();
+
+        return transformer.unwrap(buffers.wrapped);
+    }
+
+    @Benchmark
+    public Object peekHeader() throws IOException {
+        return transformer.peekHeader(wrapped);
+    }
+
+}
@@ -0,0 +1,42 @@
+package gg.aswedrown.ptranscodegen.benchmarks;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import gg.aswedrown.ptranscodegen.benchmarks.sample.PacketWrapper;
+
+import java.util.List;
+
+// Экземпляры пакетов из сгенерированного примера (см. SampleSources) - для бенчмарков и кросс-языкового теста.
+public final class SamplePackets {
+
+    private SamplePackets() {}
+
+    // Поля "oneof packet" в порядке объявления.
+    public static List<Descriptors.FieldDescriptor> packetFields() {
+        return packetFields(PacketWrapper.getDescriptor());
+    }
+
+    // wrapperType - дескриптор PacketWrapper любого из примеров (основного или маленького).
+    public static List<Descriptors.FieldDescriptor> packetFields(Descriptors.Descriptor wrapperType) {
+        return wrapperType.getOneofs().get(0).getFields();
+    }
+
+    public static Message newPacket(Descriptors.FieldDescriptor packetField) {
+        return newPacket(PacketWrapper.newBuilder(), packetField);
+    }
+
+    // Через рефлексию protobuf получаем экземпляр сгенерированного класса пакета (а не DynamicMessage).
+    // wrapperBuilder - Builder сгенерированного PacketWrapper того же примера, что и packetField.
+    public static Message newPacket(Message.Builder wrapperBuilder, Descriptors.FieldDescriptor packetField) {
+        Message.Builder builder = wrapperBuilder.newBuilderForField(packetField);
+        Descriptors.Descriptor type = builder.getDescriptorForType();
+
+        return builder
+                .setField(type.findFieldByName("timestamp"), 1_600_000_000_000L + packetField.getNumber())
+                .setField(type.findFieldByName("entity_id"), 4242)
+                .setField(type.findFieldByName("x"), 12.5f)
+                .setField(type.findFieldByName("y"), -7.25f)
+                .build();
+    }
+
+}
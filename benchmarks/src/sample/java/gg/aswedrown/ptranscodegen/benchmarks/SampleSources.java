@@ -0,0 +1,291 @@
+package gg.aswedrown.ptranscodegen.benchmarks;
+
+import gg.aswedrown.ptranscodegen.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+// Генерирует пример для бенчмарков: packets.proto с заданным числом типов пакетов и преобразователи
+// пакетов на Java и C++, код в которых генерируется самим awd-ptrans-codegen (как в настоящем проекте).
+// Результат зависит только от аргументов, поэтому бенчмарки воспроизводимы.
+public final class SampleSources {
+
+    public static final String SAMPLE_PACKAGE = "gg.aswedrown.ptranscodegen.benchmarks.sample";
+    public static final String TRANSFORMER_CLASS = "SampleTransformer";
+
+    // Второй, маленький пример (только на Java): при таком числе пакетов wrap/unwrap - один switch, тогда как
+    // в основном примере с сотнями пакетов пакет выбирается по дереву методов (см. JavaCodeGenerator).
+    public static final String SMALL_SAMPLE_PACKAGE = SAMPLE_PACKAGE + ".small";
+    public static final int SMALL_PACKET_COUNT = 16;
+
+    private SampleSources() {}
+
+    // Аргументы: папка для результата, число типов пакетов и (необязательно) --instrument и --reuse_builders.
+    public static void main(String[] args) throws IOException, CodeGenException {
+        if (args.length < 2) {
+            System.err.println("Usage: SampleSources OUTPUT_DIR PACKET_COUNT [--instrument] [--reuse_builders]");
+            System.exit(1);
+        }
+
+        File outputDir = new File(args[0]);
+        int packetCount = Integer.parseInt(args[1]);
+        List<String> flags = Arrays.asList(args).subList(2, args.length);
+
+        File protoFile = new File(outputDir, "proto/packets.proto");
+        File javaSrc = new File(outputDir, "java/" + SAMPLE_PACKAGE.replace('.', '/') + "/" + TRANSFORMER_CLASS + ".java");
+        File cppSrc = new File(outputDir, "cpp/" + TRANSFORMER_CLASS + ".hpp");
+
+        File smallProtoFile = new File(outputDir, "proto/small_packets.proto");
+        File smallJavaSrc = new File(outputDir, "java/" + SMALL_SAMPLE_PACKAGE.replace('.', '/') + "/"
+                + TRANSFORMER_CLASS + ".java");
+
+        write(protoFile, proto(packetCount));
+        write(javaSrc, transformerSkeleton());
+        write(cppSrc, cppTransformerSkeleton());
+
+        // Свой package в proto - иначе сообщения двух примеров конфликтовали бы в protoc.
+        write(smallProtoFile, proto(SMALL_PACKET_COUNT, "small", SMALL_SAMPLE_PACKAGE));
+        write(smallJavaSrc, transformerSkeleton(SMALL_SAMPLE_PACKAGE));
+
+        List<PacketSpec> allPackets = PTransCodeGen.parseProto(protoFile).getPackets();
+        List<PacketSpec> smallPackets = PTransCodeGen.parseProto(smallProtoFile).getPackets();
+        boolean instrumented = flags.contains("--instrument");
+        boolean reuseBuilders = flags.contains("--reuse_builders");
+
+        // Резервные копии не нужны (исходники всё равно создаются заново), но они не должны попасть в исходники.
+        PTransCodeGen.generate(new JavaCodeGenerator(instrumented, reuseBuilders),
+                javaSrc, new File(outputDir, TRANSFORMER_CLASS + "_BACKUP.java"), allPackets);
+        PTransCodeGen.generate(new CppCodeGenerator(instrumented),
+                cppSrc, new File(outputDir, TRANSFORMER_CLASS + "_BACKUP.hpp"), allPackets);
+        PTransCodeGen.generate(new JavaCodeGenerator(instrumented, reuseBuilders),
+                smallJavaSrc, new File(outputDir, TRANSFORMER_CLASS + "_SMALL_BACKUP.java"), smallPackets);
+    }
+
+    public static String packetName(int index) {
+        return "sample_packet_" + index;
+    }
+
+    // Все пакеты одинаковы по содержимому, чтобы на результат влияло только их положение в "oneof packet".
+    public static String proto(int packetCount) {
+        return proto(packetCount, null, SAMPLE_PACKAGE);
+    }
+
+    // protoPackage - package в proto (null - без него).
+    public static String proto(int packetCount, String protoPackage, String javaPackage) {
+        StringBuilder proto = new StringBuilder();
+
+        proto.append("syntax = \"proto3\";\n\n");
+
+        if (protoPackage != null)
+            proto.append("package ").append(protoPackage).append(";\n\n");
+
+        proto.append("option java_package = \"").append(javaPackage).append("\";\n");
+        proto.append("option java_multiple_files = true;\n\n");
+
+        for (int i = 0; i < packetCount; i++) {
+            proto.append("message ").append(Convert.snakeToCamel(packetName(i))).append(" {\n");
+            proto.append("  uint64 timestamp = 1;\n");
+            proto.append("  uint32 entity_id = 2;\n");
+            proto.append("  float x = 3;\n");
+            proto.append("  float y = 4;\n");
+            proto.append("}\n\n");
+        }
+
+        proto.append("message PacketWrapper {\n");
+        proto.append("  uint32 sequence = 1;\n");
+        proto.append("  uint32 ack = 2;\n");
+        proto.append("  uint64 ack_bitfield = 3;\n\n");
+        proto.append("  oneof packet {\n");
+
+        for (int i = 0; i < packetCount; i++)
+            proto.append("    ").append(Convert.snakeToCamel(packetName(i))).append(' ')
+                 .append(packetName(i)).append(" = ").append(i + 4).append(";\n");
+
+        proto.append("  }\n");
+        proto.append("}\n");
+
+        return proto.toString();
+    }
+
+    // Исходник с пустыми объявлениями всех методов и классов, которые умеет заполнять JavaCodeGenerator,
+    // и с публичными методами для бенчмарков.
+    public static String transformerSkeleton() {
+        return transformerSkeleton(SAMPLE_PACKAGE);
+    }
+
+    public static String transformerSkeleton(String javaPackage) {
+        return "package " + javaPackage + ";\n" +
+                "\n" +
+                "import com.google.protobuf.InvalidProtocolBufferException;\n" +
+                "import com.google.protobuf.Message;\n" +
+                "\n" +
+                "import java.io.IOException;\n" +
+                "import java.nio.ByteBuffer;\n" +
+                "import java.util.List;\n" +
+                "import java.util.Map;\n" +
+                "\n" +
+                "public final class " + TRANSFORMER_CLASS + " {\n" +
+                "\n" +
+                "    private " + TRANSFORMER_CLASS + "() {}\n" +
+                "\n" +
+                "    public static byte[] wrap(Message packet, int sequence, int ack, long ackBitfield) {\n" +
+                "        return internalGeneratedWrap(packet, sequence, ack, ackBitfield);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static int wrapInto(Message packet, int sequence, int ack, long ackBitfield, ByteBuffer buffer) throws IOException {\n" +
+                "        return internalGeneratedWrapInto(packet, sequence, ack, ackBitfield, buffer);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static UnwrappedPacketData unwrap(byte[] data) throws InvalidProtocolBufferException {\n" +
+                "        return internalGeneratedUnwrap(data);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static UnwrappedPacketData unwrap(ByteBuffer data) throws InvalidProtocolBufferException {\n" +
+                "        return internalGeneratedUnwrap(data);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static UnwrappedPacketData unwrap(byte[] data, int offset, int length) throws InvalidProtocolBufferException {\n" +
+                "        return internalGeneratedUnwrap(data, offset, length);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static PeekedPacketHeader peekHeader(byte[] data) throws IOException {\n" +
+                "        return internalGeneratedPeekHeader(data, 0, data.length);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static byte[] wrapBatch(List<Message> packets, int sequence, int ack, long ackBitfield) throws IOException {\n" +
+                "        return internalGeneratedWrapBatch(packets, sequence, ack, ackBitfield);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static List<UnwrappedPacketData> unwrapBatch(byte[] data) throws IOException {\n" +
+                "        return internalGeneratedUnwrapBatch(data, 0, data.length);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static final class UnwrappedPacketData {\n" +
+                "        private final int sequence, ack;\n" +
+                "        private final long ackBitfield;\n" +
+                "        private final PacketWrapper.PacketCase packetType;\n" +
+                "        private final Message packet;\n" +
+                "\n" +
+                "        UnwrappedPacketData(int sequence, int ack, long ackBitfield,\n" +
+                "                            PacketWrapper.PacketCase packetType, Message packet) {\n" +
+                "            this.sequence = sequence;\n" +
+                "            this.ack = ack;\n" +
+                "            this.ackBitfield = ackBitfield;\n" +
+                "            this.packetType = packetType;\n" +
+                "            this.packet = packet;\n" +
+                "        }\n" +
+                "\n" +
+                "        public int getSequence() { return sequence; }\n" +
+                "        public int getAck() { return ack; }\n" +
+                "        public long getAckBitfield() { return ackBitfield; }\n" +
+                "        public PacketWrapper.PacketCase getPacketType() { return packetType; }\n" +
+                "        public Message getPacket() { return packet; }\n" +
+                "    }\n" +
+                "\n" +
+                "    public static final class PeekedPacketHeader {\n" +
+                "        private final int sequence, ack;\n" +
+                "        private final long ackBitfield;\n" +
+                "        private final PacketWrapper.PacketCase packetType;\n" +
+                "\n" +
+                "        PeekedPacketHeader(int sequence, int ack, long ackBitfield, PacketWrapper.PacketCase packetType,\n" +
+                "                           byte[] data, int offset, int length) {\n" +
+                "            this.sequence = sequence;\n" +
+                "            this.ack = ack;\n" +
+                "            this.ackBitfield = ackBitfield;\n" +
+                "            this.packetType = packetType;\n" +
+                "        }\n" +
+                "\n" +
+                "        public int getSequence() { return sequence; }\n" +
+                "        public int getAck() { return ack; }\n" +
+                "        public long getAckBitfield() { return ackBitfield; }\n" +
+                "        public PacketWrapper.PacketCase getPacketType() { return packetType; }\n" +
+                "    }\n" +
+                "\n" +
+                "    private static final class InternalGeneratedStatics {\n" +
+                "    }\n" +
+                "\n" +
+                "    private static byte[] internalGeneratedWrap(Message packet, int sequence, int ack, long ackBitfield) {\n" +
+                "    }\n" +
+                "\n" +
+                "    private static int internalGeneratedWrapInto(Message packet, int sequence, int ack, long ackBitfield, ByteBuffer buffer) throws IOException {\n" +
+                "    }\n" +
+                "\n" +
+                "    private static UnwrappedPacketData internalGeneratedUnwrap(byte[] data) throws InvalidProtocolBufferException {\n" +
+                "    }\n" +
+                "\n" +
+                "    private static UnwrappedPacketData internalGeneratedUnwrap(ByteBuffer data) throws InvalidProtocolBufferException {\n" +
+                "    }\n" +
+                "\n" +
+                "    private static UnwrappedPacketData internalGeneratedUnwrap(byte[] data, int offset, int length) throws InvalidProtocolBufferException {\n" +
+                "    }\n" +
+                "\n" +
+                "    private static PeekedPacketHeader internalGeneratedPeekHeader(byte[] data, int offset, int length) throws IOException {\n" +
+                "    }\n" +
+                "\n" +
+                "    private static byte[] internalGeneratedWrapBatch(List<Message> packets, int sequence, int ack, long ackBitfield) throws IOException {\n" +
+                "    }\n" +
+                "\n" +
+                "    private static List<UnwrappedPacketData> internalGeneratedUnwrapBatch(byte[] data, int offset, int length) throws IOException {\n" +
+                "    }\n" +
+                "\n" +
+                "    public static Map<PacketWrapper.PacketCase, long[]> internalGeneratedTrafficSnapshot() {\n" +
+                "    }\n" +
+                "\n" +
+                "    public static final class PacketDispatchTable {\n" +
+                "    }\n" +
+                "\n" +
+                "    public static final class PacketSequenceTracker {\n" +
+                "    }\n" +
+                "\n" +
+                "}\n";
+    }
+
+    // То же для C++: класс с пустыми объявлениями методов (публичными - их вызывает C++ сторона
+    // кросс-языкового теста, см. harness_peer.cpp).
+    public static String cppTransformerSkeleton() {
+        return "class " + TRANSFORMER_CLASS + " {\n" +
+                "public:\n" +
+                "    std::atomic<uint64_t>* internalGeneratedTrafficCounters() {\n" +
+                "    }\n" +
+                "\n" +
+                "    std::shared_ptr<WrappedPacketData> internalGeneratedWrap(google::protobuf::Message* packet, uint32_t sequence, uint32_t ack, uint32_t ackBitfield) {\n" +
+                "    }\n" +
+                "\n" +
+                "    size_t internalGeneratedWrapInto(google::protobuf::Message* packet, uint32_t sequence, uint32_t ack, uint32_t ackBitfield, char* buffer, size_t bufferLen) {\n" +
+                "    }\n" +
+                "\n" +
+                "    std::shared_ptr<UnwrappedPacketData> internalGeneratedUnwrap(char* data, size_t dataLen) {\n" +
+                "    }\n" +
+                "\n" +
+                "    std::shared_ptr<UnwrappedPacketData> internalGeneratedUnwrapMove(char* data, size_t dataLen) {\n" +
+                "    }\n" +
+                "\n" +
+                "    PeekedPacketHeader internalGeneratedPeekHeader(char* data, size_t dataLen) {\n" +
+                "    }\n" +
+                "\n" +
+                "    std::shared_ptr<WrappedPacketData> internalGeneratedWrapBatch(const std::vector<google::protobuf::Message*>& packets, uint32_t sequence, uint32_t ack, uint32_t ackBitfield) {\n" +
+                "    }\n" +
+                "\n" +
+                "    std::vector<std::shared_ptr<UnwrappedPacketData>> internalGeneratedUnwrapBatch(char* data, size_t dataLen) {\n" +
+                "    }\n" +
+                "\n" +
+                "    std::map<PacketWrapper::PacketCase, std::array<uint64_t, 6>> internalGeneratedTrafficSnapshot() {\n" +
+                "    }\n" +
+                "\n" +
+                "    class PacketDispatchTable {\n" +
+                "    };\n" +
+                "\n" +
+                "    class PacketSequenceTracker {\n" +
+                "    };\n" +
+                "};\n";
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,186 @@
+package gg.aswedrown.ptranscodegen.benchmarks;
+
+import gg.aswedrown.ptranscodegen.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+// Масштабируемость самого генератора: для синтетических proto-файлов и исходников с разным числом
+// типов пакетов (до десятков тысяч) измеряет время разбора и генерации и пиковый размер кучи.
+// Каждый размер измеряется в отдельной JVM, чтобы пики кучи не влияли друг на друга.
+// При линейной сложности время и память в расчёте на один пакет почти не зависят от числа пакетов.
+public final class GeneratorScalability {
+
+    private static final String SINGLE_ARG = "--single=";
+
+    private static final int[] DEFAULT_PACKET_COUNTS = {1250, 2500, 5000, 10000, 20000};
+
+    // Сколько раз генерация повторяется в одной JVM (берётся лучшее время - после прогрева JIT).
+    private static final int RUNS = 3;
+
+    // Во сколько раз время на один пакет может вырасти от наименьшего размера к наибольшему
+    // (с запасом на шум измерений), прежде чем рост будет считаться нелинейным.
+    private static final double MAX_PER_PACKET_GROWTH = 2.0;
+
+    private GeneratorScalability() {}
+
+    // Аргументы: (необязательно) число пакетов через запятую, например 1000,10000,50000.
+    public static void main(String[] args) throws Exception {
+        if (args.length == 1 && args[0].startsWith(SINGLE_ARG)) {
+            measure(Integer.parseInt(args[0].substring(SINGLE_ARG.length())));
+            return;
+        }
+
+        int[] packetCounts = DEFAULT_PACKET_COUNTS;
+
+        if (args.length == 1)
+            packetCounts = Stream.of(args[0].split(",")).mapToInt(Integer::parseInt).sorted().toArray();
+        else if (args.length > 1) {
+            System.err.println("Usage: GeneratorScalability [PACKET_COUNT,PACKET_COUNT,...]");
+            System.exit(1);
+        }
+
+        List<String[]> results = new ArrayList<>();
+
+        for (int packetCount : packetCounts) {
+            System.out.println("Measuring " + packetCount + " packets...");
+            results.add(fork(packetCount));
+        }
+
+        System.out.println();
+        System.out.printf("%10s %10s %10s %10s %10s %12s %12s %12s%n", "packets", "parse ms", "java ms", "cpp ms",
+                "total ms", "us/packet", "peak heap MB", "KB/packet");
+
+        for (String[] result : results) {
+            int packetCount = Integer.parseInt(result[0]);
+            double totalMillis = Double.parseDouble(result[4]);
+            double peakHeapBytes = Double.parseDouble(result[5]);
+
+            System.out.printf("%10d %10s %10s %10s %10s %12.1f %12.1f %12.2f%n", packetCount,
+                    result[1], result[2], result[3], result[4],
+                    totalMillis * 1000.0 / packetCount, peakHeapBytes / (1024 * 1024),
+                    peakHeapBytes / 1024 / packetCount);
+        }
+
+        double firstPerPacket = perPacketMillis(results.get(0));
+        double lastPerPacket = perPacketMillis(results.get(results.size() - 1));
+
+        if (lastPerPacket > firstPerPacket * MAX_PER_PACKET_GROWTH) {
+            System.err.println("WARNING: generation time per packet grew " + String.format("%.1f", lastPerPacket / firstPerPacket)
+                    + " times - the generator does not scale linearly");
+            System.exit(1);
+        }
+    }
+
+    private static double perPacketMillis(String[] result) {
+        return Double.parseDouble(result[4]) / Integer.parseInt(result[0]);
+    }
+
+    // Запускает измерение одного размера в новой JVM и возвращает строку результатов (см. measure).
+    private static String[] fork(int packetCount) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-XX:+UseSerialGC", "-cp", System.getProperty("java.class.path"),
+                GeneratorScalability.class.getName(), SINGLE_ARG + packetCount)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        String result = null, line;
+
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(
+                                     process.getInputStream(), StandardCharsets.UTF_8))) {
+            // Вывод самого генератора не нужен - только последняя строка с результатами.
+            while ((line = output.readLine()) != null)
+                result = line;
+        }
+
+        if (process.waitFor() != 0 || result == null)
+            throw new IOException("measurement of " + packetCount + " packets failed");
+
+        return result.split(" ");
+    }
+
+    // Выводит последней строкой: число пакетов, время разбора, генерации Java и C++ и общее время (мс),
+    // пиковый размер кучи (байты).
+    private static void measure(int packetCount) throws IOException, CodeGenException {
+        Path workDir = Files.createTempDirectory("ptrans-scalability-");
+
+        try {
+            File protoFile = workDir.resolve("packets.proto").toFile();
+            File javaSrc = workDir.resolve("SampleTransformer.java").toFile();
+            File cppSrc = workDir.resolve("SampleTransformer.cpp").toFile();
+            File backupSrc = workDir.resolve("backup").toFile();
+
+            write(protoFile, SampleSources.proto(packetCount));
+
+            long bestParse = Long.MAX_VALUE, bestJava = Long.MAX_VALUE, bestCpp = Long.MAX_VALUE;
+            long bestTotal = Long.MAX_VALUE;
+
+            for (int run = 0; run < RUNS; run++) {
+                // Каждый раз заново - иначе генерация увидит, что код уже актуален.
+                write(javaSrc, SampleSources.transformerSkeleton());
+                write(cppSrc, SampleSources.cppTransformerSkeleton());
+
+                if (run == RUNS - 1)
+                    resetPeakHeapUsage();
+
+                long start = System.nanoTime();
+                List<PacketSpec> allPackets = PTransCodeGen.parseProto(protoFile).getPackets();
+                long parsed = System.nanoTime();
+                PTransCodeGen.generate(new JavaCodeGenerator(false, false), javaSrc, backupSrc, allPackets);
+                long javaGenerated = System.nanoTime();
+                PTransCodeGen.generate(new CppCodeGenerator(false), cppSrc, backupSrc, allPackets);
+                long cppGenerated = System.nanoTime();
+
+                bestParse = Math.min(bestParse, parsed - start);
+                bestJava = Math.min(bestJava, javaGenerated - parsed);
+                bestCpp = Math.min(bestCpp, cppGenerated - javaGenerated);
+                bestTotal = Math.min(bestTotal, cppGenerated - start);
+            }
+
+            System.out.println(packetCount + " " + millis(bestParse) + " " + millis(bestJava) + " "
+                    + millis(bestCpp) + " " + millis(bestTotal) + " " + peakHeapUsage());
+        } finally {
+            try (Stream<Path> files = Files.walk(workDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void resetPeakHeapUsage() {
+        System.gc();
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    // Сумма пиков по всем областям кучи - оценка сверху (пики разных областей могут не совпадать по времени).
+    private static long peakHeapUsage() {
+        long peak = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+
+        return peak;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1_000_000.0);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
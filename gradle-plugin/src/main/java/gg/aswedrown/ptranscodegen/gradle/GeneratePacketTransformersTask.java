@@ -0,0 +1,70 @@
+package gg.aswedrown.ptranscodegen.gradle;
+
+import gg.aswedrown.ptranscodegen.*;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+
+import java.io.File;
+import java.util.List;
+
+// Исходники с кодом преобразователей - только выходы задачи: их содержимое после генерации зависит
+// от содержимого до неё, поэтому Gradle сам перезапустит задачу, если их кто-то изменит, а вот
+// build cache (восстановление выходов по входам) для такой задачи был бы некорректен.
+public abstract class GeneratePacketTransformersTask extends DefaultTask {
+
+    @InputFile
+    @PathSensitive (PathSensitivity.NONE)
+    public abstract RegularFileProperty getProto();
+
+    @Optional
+    @OutputFile
+    public abstract RegularFileProperty getJavaSource();
+
+    @Optional
+    @OutputFile
+    public abstract RegularFileProperty getCppSource();
+
+    @Input
+    public abstract Property<Boolean> getInstrument();
+
+    @Input
+    public abstract Property<Boolean> getReuseBuilders();
+
+    @Internal
+    public abstract DirectoryProperty getBackupDir();
+
+    @TaskAction
+    public void generate() {
+        if (!getJavaSource().isPresent() && !getCppSource().isPresent())
+            throw new GradleException("Neither javaSource nor cppSource is specified for " + getPath());
+
+        try {
+            List<PacketSpec> allPackets = PTransCodeGen.parseProto(getProto().get().getAsFile()).getPackets();
+
+            if (getJavaSource().isPresent())
+                generate(new JavaCodeGenerator(getInstrument().get(), getReuseBuilders().get()),
+                        getJavaSource().get().getAsFile(), allPackets);
+
+            if (getCppSource().isPresent())
+                generate(new CppCodeGenerator(getInstrument().get()),
+                        getCppSource().get().getAsFile(), allPackets);
+        } catch (CodeGenException ex) {
+            throw new GradleException(ex.getMessage(), ex.getCause());
+        }
+    }
+
+    private void generate(CodeGenerator codeGen, File sourceFile, List<PacketSpec> allPackets) throws CodeGenException {
+        // Резервные копии - не рядом с исходниками, иначе X_BACKUP.java попадёт в компиляцию.
+        File backupDir = getBackupDir().get().getAsFile();
+
+        if (!backupDir.isDirectory() && !backupDir.mkdirs())
+            throw new GradleException("Failed to create backup directory " + backupDir);
+
+        PTransCodeGen.generate(codeGen, sourceFile, new File(backupDir, sourceFile.getName()), allPackets);
+    }
+
+}
@@ -0,0 +1,21 @@
+package gg.aswedrown.ptranscodegen.gradle;
+
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+
+public abstract class PTransCodeGenExtension {
+
+    public abstract RegularFileProperty getProto();
+
+    public abstract RegularFileProperty getJavaSource();
+
+    public abstract RegularFileProperty getCppSource();
+
+    public abstract Property<Boolean> getInstrument();
+
+    public abstract Property<Boolean> getReuseBuilders();
+
+    public abstract DirectoryProperty getBackupDir();
+
+}
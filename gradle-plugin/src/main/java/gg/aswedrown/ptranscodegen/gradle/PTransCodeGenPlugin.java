@@ -0,0 +1,41 @@
+package gg.aswedrown.ptranscodegen.gradle;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.plugins.JavaPlugin;
+import org.gradle.api.tasks.TaskProvider;
+
+public class PTransCodeGenPlugin implements Plugin<Project> {
+
+    public static final String EXTENSION_NAME = "ptransCodegen";
+    public static final String TASK_NAME = "generatePacketTransformers";
+
+    @Override
+    public void apply(Project project) {
+        PTransCodeGenExtension extension = project.getExtensions()
+                .create(EXTENSION_NAME, PTransCodeGenExtension.class);
+
+        extension.getInstrument().convention(false);
+        extension.getReuseBuilders().convention(false);
+        extension.getBackupDir().convention(project.getLayout().getBuildDirectory().dir("ptrans-codegen-backup"));
+
+        TaskProvider<GeneratePacketTransformersTask> generateTask = project.getTasks()
+                .register(TASK_NAME, GeneratePacketTransformersTask.class, task -> {
+                    task.setGroup("build");
+                    task.setDescription("Generates packet transformer code from packets.proto (awd-ptrans-codegen).");
+
+                    task.getProto().set(extension.getProto());
+                    task.getJavaSource().set(extension.getJavaSource());
+                    task.getCppSource().set(extension.getCppSource());
+                    task.getInstrument().set(extension.getInstrument());
+                    task.getReuseBuilders().set(extension.getReuseBuilders());
+                    task.getBackupDir().set(extension.getBackupDir());
+                });
+
+        // Генерация выполняется прямо в демоне Gradle (без отдельной JVM) перед компиляцией.
+        project.getPlugins().withType(JavaPlugin.class, javaPlugin -> project.getTasks()
+                .named(JavaPlugin.COMPILE_JAVA_TASK_NAME)
+                .configure(compileJava -> compileJava.dependsOn(generateTask)));
+    }
+
+}
@@ -0,0 +1,69 @@
+package gg.aswedrown.ptranscodegen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Один proto-файл и все исходники, код в которых генерируется по нему (с одними и теми же опциями).
+public class CodeGenConfig {
+
+    private final File proto;
+    private final List<File> javaSources, cppSources;
+    private final boolean instrumented, reuseBuilders;
+    private final File cacheFile;
+
+    public CodeGenConfig(File proto, List<File> javaSources, List<File> cppSources,
+                         boolean instrumented, boolean reuseBuilders, File cacheFile) {
+        this.proto = proto;
+        this.javaSources = Collections.unmodifiableList(new ArrayList<>(javaSources));
+        this.cppSources = Collections.unmodifiableList(new ArrayList<>(cppSources));
+        this.instrumented = instrumented;
+        this.reuseBuilders = reuseBuilders;
+        this.cacheFile = cacheFile;
+    }
+
+    public File getProto() {
+        return proto;
+    }
+
+    public List<File> getJavaSources() {
+        return javaSources;
+    }
+
+    public List<File> getCppSources() {
+        return cppSources;
+    }
+
+    public boolean isInstrumented() {
+        return instrumented;
+    }
+
+    public boolean isReuseBuilders() {
+        return reuseBuilders;
+    }
+
+    // null, если кэш не используется.
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    // Сначала исходники на Java, затем на C++ (в порядке их указания).
+    public List<File> getSourceFiles() {
+        List<File> sourceFiles = new ArrayList<>(javaSources);
+        sourceFiles.addAll(cppSources);
+
+        return sourceFiles;
+    }
+
+    // Сначала proto-файл, затем все исходники.
+    public File[] getAllFiles() {
+        List<File> allFiles = new ArrayList<>();
+        allFiles.add(proto);
+        allFiles.addAll(javaSources);
+        allFiles.addAll(cppSources);
+
+        return allFiles.toArray(new File[0]);
+    }
+
+}
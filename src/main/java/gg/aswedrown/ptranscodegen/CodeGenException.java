@@ -0,0 +1,15 @@
+package gg.aswedrown.ptranscodegen;
+
+public class CodeGenException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public CodeGenException(String message) {
+        super(message);
+    }
+
+    public CodeGenException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,63 @@
+package gg.aswedrown.ptranscodegen;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+// Вывод генератора. Буферизованный лог нужен при параллельной генерации: каждая задача пишет
+// в свой лог, а затем логи выводятся целиком, по очереди, в порядке задач (а не вперемешку).
+public class CodeGenLog {
+
+    public static final CodeGenLog STDOUT = new CodeGenLog(false);
+
+    private final boolean buffered;
+    private final List<String> lines = new ArrayList<>();
+    private final List<Boolean> errorLines = new ArrayList<>();
+
+    private CodeGenLog(boolean buffered) {
+        this.buffered = buffered;
+    }
+
+    public static CodeGenLog buffered() {
+        return new CodeGenLog(true);
+    }
+
+    public void info(String line) {
+        print(line, false);
+    }
+
+    public void error(String line) {
+        print(line, true);
+    }
+
+    public void error(Throwable ex) {
+        StringWriter stackTrace = new StringWriter();
+        ex.printStackTrace(new PrintWriter(stackTrace));
+        print(stackTrace.toString().trim(), true);
+    }
+
+    // Выводит всё накопленное в буферизованном логе (для STDOUT ничего не делает).
+    public synchronized void flush() {
+        for (int i = 0; i < lines.size(); i++) {
+            if (errorLines.get(i))
+                System.err.println(lines.get(i));
+            else
+                System.out.println(lines.get(i));
+        }
+
+        lines.clear();
+        errorLines.clear();
+    }
+
+    private synchronized void print(String line, boolean error) {
+        if (buffered) {
+            lines.add(line);
+            errorLines.add(error);
+        } else if (error)
+            System.err.println(line);
+        else
+            System.out.println(line);
+    }
+
+}
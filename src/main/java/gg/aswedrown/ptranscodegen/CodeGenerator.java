@@ -5,10 +5,20 @@ import java.util.List;
 
 public interface CodeGenerator {
 
-    SourceSets insertInExistingSources(BufferedReader srcReader, List<String> allPackets) throws Exception;
+    // Первый проход по исходнику - перед insertInExistingSources для того же исходника, которому
+    // результат передаётся явно. По нему генератор заранее знает, какие пустые объявления есть в исходнике.
+    SourceScan scanExistingSources(BufferedReader srcReader) throws Exception;
 
-    void appendGeneratedSourcesWrap(StringBuilder modifiedSrc, List<String> allPackets);
+    // Возвращает false, если код не удалось сгенерировать (причина уже выведена в log).
+    boolean insertInExistingSources(BufferedReader srcReader, SourceScan scan, SourceRewrite rewrite,
+                                    List<PacketSpec> allPackets, CodeGenLog log) throws Exception;
 
-    void appendGeneratedSourcesUnrap(StringBuilder modifiedSrc, List<String> allPackets);
+    void appendGeneratedSourcesWrap(StringBuilder modifiedSrc, List<PacketSpec> allPackets);
+
+    void appendGeneratedSourcesUnrap(StringBuilder modifiedSrc, List<PacketSpec> allPackets);
+
+    void appendGeneratedSourcesWrapBatch(StringBuilder modifiedSrc, List<PacketSpec> allPackets);
+
+    void appendGeneratedSourcesUnwrapBatch(StringBuilder modifiedSrc, List<PacketSpec> allPackets);
 
 }
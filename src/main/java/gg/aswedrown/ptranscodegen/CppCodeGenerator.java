@@ -1,36 +1,81 @@
 package gg.aswedrown.ptranscodegen;
 
 import java.io.BufferedReader;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class CppCodeGenerator implements CodeGenerator {
 
+    // Число счётчиков трафика на один тип пакета (см. appendGeneratedSourcesTrafficCounters).
+    private static final int TRAFFIC_COUNTERS_PER_PACKET = 6;
+
     private static final String WRAP_MTD_DECL
             = "std::shared_ptr<WrappedPacketData> internalGeneratedWrap(google::protobuf::Message* packet, uint32_t sequence, uint32_t ack, uint32_t ackBitfield) {";
 
+    private static final String WRAP_INTO_MTD_DECL
+            = "size_t internalGeneratedWrapInto(google::protobuf::Message* packet, uint32_t sequence, uint32_t ack, uint32_t ackBitfield, char* buffer, size_t bufferLen) {";
+
     private static final String UNWRAP_MTD_DECL
             = "std::shared_ptr<UnwrappedPacketData> internalGeneratedUnwrap(char* data, size_t dataLen) {";
 
+    private static final String UNWRAP_MOVE_MTD_DECL
+            = "std::shared_ptr<UnwrappedPacketData> internalGeneratedUnwrapMove(char* data, size_t dataLen) {";
+
+    private static final String PEEK_HEADER_MTD_DECL
+            = "PeekedPacketHeader internalGeneratedPeekHeader(char* data, size_t dataLen) {";
+
+    private static final String WRAP_BATCH_MTD_DECL
+            = "std::shared_ptr<WrappedPacketData> internalGeneratedWrapBatch(const std::vector<google::protobuf::Message*>& packets, uint32_t sequence, uint32_t ack, uint32_t ackBitfield) {";
+
+    private static final String UNWRAP_BATCH_MTD_DECL
+            = "std::vector<std::shared_ptr<UnwrappedPacketData>> internalGeneratedUnwrapBatch(char* data, size_t dataLen) {";
+
+    private static final String TRAFFIC_COUNTERS_MTD_DECL
+            = "std::atomic<uint64_t>* internalGeneratedTrafficCounters() {";
+
+    private static final String TRAFFIC_SNAPSHOT_MTD_DECL
+            = "std::map<PacketWrapper::PacketCase, std::array<uint64_t, " + TRAFFIC_COUNTERS_PER_PACKET
+            + ">> internalGeneratedTrafficSnapshot() {";
+
+    private static final String DISPATCH_TABLE_CLASS_DECL
+            = "class PacketDispatchTable {";
+
+    private static final String SEQUENCE_TRACKER_CLASS_DECL
+            = "class PacketSequenceTracker {";
+
+    private final boolean instrumented;
+
+    public CppCodeGenerator(boolean instrumented) {
+        this.instrumented = instrumented;
+    }
+
+    @Override
+    public SourceScan scanExistingSources(BufferedReader srcReader) throws Exception {
+        return SourceScan.scan(srcReader, CppCodeGenerator::findDecl);
+    }
+
     @SuppressWarnings ("DuplicatedCode")
     @Override
-    public SourceSets insertInExistingSources(BufferedReader srcReader, List<String> allPackets) throws Exception {
-        StringBuilder originalSrc = new StringBuilder();
-        StringBuilder modifiedSrc = new StringBuilder();
+    public boolean insertInExistingSources(BufferedReader srcReader, SourceScan scan, SourceRewrite rewrite,
+                                           List<PacketSpec> allPackets, CodeGenLog log) throws Exception {
 
         boolean skipBody = false;
         int brackets = -1;
-        String line;
+        String line, currentDecl = null;
 
-        boolean generatedWrap   = false,
-                generatedUnwrap = false;
+        Set<String> generatedDecls = new HashSet<>();
 
         while ((line = srcReader.readLine()) != null) {
-            originalSrc.append(line);
+            rewrite.appendOriginal(line);
 
             if (!skipBody)
-                modifiedSrc.append(line).append('\n');
+                rewrite.appendModified(line + '\n');
 
-            if (line.trim().startsWith(WRAP_MTD_DECL) || line.trim().startsWith(UNWRAP_MTD_DECL)) {
+            String decl = skipBody ? null : findDecl(line.trim());
+
+            if (decl != null) {
+                currentDecl = decl;
                 skipBody = true;
                 brackets = 1;
             } else if (skipBody) {
@@ -39,78 +84,251 @@ public class CppCodeGenerator implements CodeGenerator {
 
                 if (line.contains("}") && --brackets == 0) {
                     skipBody = false;
-
-                    if (!generatedWrap) {
-                        generatedWrap = true;
-                        appendGeneratedSourcesWrap(modifiedSrc, allPackets);
-                        modifiedSrc.append("    }\n");
-                    } else if (!generatedUnwrap) {
-                        generatedUnwrap = true;
-                        appendGeneratedSourcesUnrap(modifiedSrc, allPackets);
-                        modifiedSrc.append("    }\n");
-                    }
+                    generatedDecls.add(currentDecl);
+                    StringBuilder generatedSrc = new StringBuilder();
+                    appendGeneratedSources(currentDecl, generatedSrc, allPackets);
+                    rewrite.appendModified(generatedSrc.append(line).append('\n'));
                 }
             }
         }
 
-        if (generatedWrap)
-            System.out.println("Successfully generated code in method wrap (C++)");
-        else {
-            System.err.println("WARNING: did not generate any code " +
-                    "in method wrap (C++) - missing empty declaration");
+        if (!checkGenerated(log, generatedDecls, WRAP_MTD_DECL, "method wrap"))
+            return false;
 
-            return null;
-        }
+        if (!checkGenerated(log, generatedDecls, UNWRAP_MTD_DECL, "method unwrap"))
+            return false;
+
+        if (instrumented && !checkGenerated(log, generatedDecls, TRAFFIC_COUNTERS_MTD_DECL, "method trafficCounters"))
+            return false;
 
-        if (generatedUnwrap)
-            System.out.println("Successfully generated code in method unwrap (C++)");
-        else {
-            System.err.println("WARNING: did not generate any code " +
-                    "in method unwrap (C++) - missing empty declaration");
+        checkGeneratedOptional(log, generatedDecls, WRAP_INTO_MTD_DECL, "method wrapInto");
+        checkGeneratedOptional(log, generatedDecls, UNWRAP_MOVE_MTD_DECL, "method unwrapMove");
+        checkGeneratedOptional(log, generatedDecls, PEEK_HEADER_MTD_DECL, "method peekHeader");
+        checkGeneratedOptional(log, generatedDecls, WRAP_BATCH_MTD_DECL, "method wrapBatch");
+        checkGeneratedOptional(log, generatedDecls, UNWRAP_BATCH_MTD_DECL, "method unwrapBatch");
+        checkGeneratedOptional(log, generatedDecls, TRAFFIC_SNAPSHOT_MTD_DECL, "method trafficSnapshot");
+        checkGeneratedOptional(log, generatedDecls, DISPATCH_TABLE_CLASS_DECL, "class PacketDispatchTable");
+        checkGeneratedOptional(log, generatedDecls, SEQUENCE_TRACKER_CLASS_DECL, "class PacketSequenceTracker");
 
+        return true;
+    }
+
+    private static String findDecl(String trimmedLine) {
+        if (trimmedLine.startsWith(WRAP_MTD_DECL))
+            return WRAP_MTD_DECL;
+        else if (trimmedLine.startsWith(WRAP_INTO_MTD_DECL))
+            return WRAP_INTO_MTD_DECL;
+        else if (trimmedLine.startsWith(UNWRAP_MTD_DECL))
+            return UNWRAP_MTD_DECL;
+        else if (trimmedLine.startsWith(UNWRAP_MOVE_MTD_DECL))
+            return UNWRAP_MOVE_MTD_DECL;
+        else if (trimmedLine.startsWith(PEEK_HEADER_MTD_DECL))
+            return PEEK_HEADER_MTD_DECL;
+        else if (trimmedLine.startsWith(WRAP_BATCH_MTD_DECL))
+            return WRAP_BATCH_MTD_DECL;
+        else if (trimmedLine.startsWith(UNWRAP_BATCH_MTD_DECL))
+            return UNWRAP_BATCH_MTD_DECL;
+        else if (trimmedLine.startsWith(TRAFFIC_COUNTERS_MTD_DECL))
+            return TRAFFIC_COUNTERS_MTD_DECL;
+        else if (trimmedLine.startsWith(TRAFFIC_SNAPSHOT_MTD_DECL))
+            return TRAFFIC_SNAPSHOT_MTD_DECL;
+        else if (trimmedLine.startsWith(DISPATCH_TABLE_CLASS_DECL))
+            return DISPATCH_TABLE_CLASS_DECL;
+        else if (trimmedLine.startsWith(SEQUENCE_TRACKER_CLASS_DECL))
+            return SEQUENCE_TRACKER_CLASS_DECL;
+        else
             return null;
+    }
+
+    private static boolean checkGenerated(CodeGenLog log, Set<String> generatedDecls, String decl, String what) {
+        if (generatedDecls.contains(decl)) {
+            log.info("Successfully generated code in " + what + " (C++)");
+            return true;
+        } else {
+            log.error("WARNING: did not generate any code " +
+                    "in " + what + " (C++) - missing empty declaration");
+
+            return false;
         }
+    }
+
+    private static void checkGeneratedOptional(CodeGenLog log, Set<String> generatedDecls, String decl, String what) {
+        if (generatedDecls.contains(decl))
+            log.info("Successfully generated code in " + what + " (C++)");
+        else
+            log.info("Skipping optional " + what + " (C++) - no empty declaration");
+    }
+
+    private void appendGeneratedSources(String decl, StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        switch (decl) {
+            case WRAP_MTD_DECL:
+                appendGeneratedSourcesWrap(modifiedSrc, allPackets);
+                break;
+
+            case WRAP_INTO_MTD_DECL:
+                appendGeneratedSourcesWrapInto(modifiedSrc, allPackets);
+                break;
+
+            case UNWRAP_MTD_DECL:
+                appendGeneratedSourcesUnrap(modifiedSrc, allPackets);
+                break;
+
+            case UNWRAP_MOVE_MTD_DECL:
+                appendGeneratedSourcesUnwrapMove(modifiedSrc, allPackets);
+                break;
+
+            case PEEK_HEADER_MTD_DECL:
+                appendGeneratedSourcesPeekHeader(modifiedSrc, allPackets);
+                break;
+
+            case WRAP_BATCH_MTD_DECL:
+                appendGeneratedSourcesWrapBatch(modifiedSrc, allPackets);
+                break;
 
-        return new SourceSets(originalSrc.toString(), modifiedSrc.toString());
+            case UNWRAP_BATCH_MTD_DECL:
+                appendGeneratedSourcesUnwrapBatch(modifiedSrc, allPackets);
+                break;
+
+            case TRAFFIC_COUNTERS_MTD_DECL:
+                appendGeneratedSourcesTrafficCounters(modifiedSrc, allPackets);
+                break;
+
+            case TRAFFIC_SNAPSHOT_MTD_DECL:
+                appendGeneratedSourcesTrafficSnapshot(modifiedSrc, allPackets);
+                break;
+
+            case DISPATCH_TABLE_CLASS_DECL:
+                appendGeneratedSourcesDispatchTable(modifiedSrc, allPackets);
+                break;
+
+            case SEQUENCE_TRACKER_CLASS_DECL:
+                appendGeneratedSourcesSequenceTracker(modifiedSrc);
+                break;
+
+            default:
+                throw new IllegalArgumentException("unsupported declaration: " + decl);
+        }
     }
 
     @Override
-    public void appendGeneratedSourcesWrap(StringBuilder modifiedSrc, List<String> allPackets) {
-        modifiedSrc.append("        PacketWrapper wrapper;\n" +
+    public void appendGeneratedSourcesWrap(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        appendWrapSwitch(modifiedSrc, allPackets,
+                "                size_t dataLen = wrapper.ByteSizeLong();\n" +
+                "                std::shared_ptr<char[]> data(new char[dataLen]);\n" +
+                "                wrapper.SerializeWithCachedSizesToArray(reinterpret_cast<uint8_t*>(data.get()));\n",
+                "",
+                "                return std::make_shared<WrappedPacketData>(data, dataLen);\n");
+    }
+
+    public void appendGeneratedSourcesWrapInto(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        // Размеры считаются один раз (ByteSizeLong кэширует их), а сериализация идёт
+        // прямо в буфер вызывающего - без new char[] и без shared_ptr на каждый пакет.
+        appendWrapSwitch(modifiedSrc, allPackets,
+                "                size_t dataLen = wrapper.ByteSizeLong();\n" +
+                "\n" +
+                "                if (dataLen <= bufferLen)\n" +
+                "                    wrapper.SerializeWithCachedSizesToArray(reinterpret_cast<uint8_t*>(buffer));\n" +
+                "\n",
+                "\n" +
+                "                if (dataLen > bufferLen)\n" +
+                "                    throw std::length_error(\"buffer is too small for this packet\");\n",
+                "                return dataLen;\n");
+    }
+
+    private void appendWrapSwitch(StringBuilder modifiedSrc, List<PacketSpec> allPackets,
+                                  String serializeCode, String checkCode, String returnCode) {
+        appendTrafficRecorder(modifiedSrc);
+        appendPacketCaseLookup(modifiedSrc, allPackets);
+        modifiedSrc.append("\n" +
+                "        PacketWrapper wrapper;\n" +
                 "\n" +
                 "        wrapper.set_sequence(sequence);\n" +
                 "        wrapper.set_ack(ack);\n" +
-                "        wrapper.set_ack_bitfield(ackBitfield);\n\n");
+                "        wrapper.set_ack_bitfield(ackBitfield);\n" +
+                "\n" +
+                "        // Дескриптор совпадает и у DynamicMessage того же типа, а static_cast к сгенерированному\n" +
+                "        // классу допустим только для его экземпляров - поэтому в case ещё сверяется Reflection\n" +
+                "        // (у сгенерированного класса она одна на все экземпляры, у DynamicMessage - своя).\n" +
+                "        switch (packetType) {\n");
 
         for (int i = 0; i < allPackets.size(); i++) {
-            if (i == 0)
-                modifiedSrc.append("        ");
-            else
-                modifiedSrc.append(" else ");
-
-            String packetType = allPackets.get(i);
-            modifiedSrc.append("if (auto* ").append(packetType)
-                    .append(" = dynamic_cast<").append(Convert.snakeToCamel(packetType))
-                    .append("*>(packet)) {\n" +
-                    "            wrapper.set_allocated_").append(packetType)
-                    .append("(").append(packetType).append(");\n" +
-                    "            size_t dataLen = wrapper.ByteSizeLong();\n" +
-                    "            std::shared_ptr<char[]> data(new char[dataLen]);\n" +
-                    "            wrapper.SerializeToArray(data.get(), static_cast<int>(dataLen));\n" +
-                    "            wrapper.release_").append(packetType).append("();\n" +
+            PacketSpec packet = allPackets.get(i);
+            modifiedSrc.append("            case PacketWrapper::PacketCase::k")
+                    .append(packet.getCamelName()).append(": {\n" +
+                    "                if (packet->GetReflection() != ").append(packet.getCamelName())
+                    .append("::default_instance().GetReflection())\n" +
+                    "                    throw std::invalid_argument(\"packet is not an instance of generated class ")
+                    .append(packet.getCamelName()).append("\");\n" +
                     "\n" +
-                    "            return std::make_shared<WrappedPacketData>(data, dataLen);\n" +
-                    "        }");
+                    "                wrapper.set_allocated_").append(packet.getName())
+                    .append("(static_cast<").append(packet.getCamelName()).append("*>(packet));\n")
+                    .append(serializeCode)
+                    .append("                wrapper.release_").append(packet.getName()).append("();\n")
+                    .append(checkCode)
+                    .append("\n");
+
+            if (instrumented)
+                modifiedSrc.append("                recordTraffic(").append(i * TRAFFIC_COUNTERS_PER_PACKET)
+                        .append(", dataLen);\n");
+
+            modifiedSrc.append(returnCode)
+                    .append("            }\n\n");
         }
 
-        modifiedSrc.append(" else\n" +
-                "            // Код \"if ...\" для пакетов этого типа отсутствует выше.\n" +
-                "            // Нужно добавить! (исп. awd-ptrans-codegen)\n" +
-                "            throw std::invalid_argument(\"no implemented transformer for this packet type\");\n");
+        modifiedSrc.append("            default:\n" +
+                "                // Код \"case ...\" для пакетов этого типа отсутствует выше.\n" +
+                "                // Нужно добавить! (исп. awd-ptrans-codegen)\n" +
+                "                throw std::invalid_argument(\"no implemented transformer for this packet type\");\n" +
+                "        }\n");
+    }
+
+    private void appendTrafficRecorder(StringBuilder modifiedSrc) {
+        if (instrumented)
+            modifiedSrc.append("        auto startTime = std::chrono::steady_clock::now();\n" +
+                    "        auto recordTraffic = [&](size_t counterIndex, size_t dataLen) {\n" +
+                    "            auto nanos = std::chrono::duration_cast<std::chrono::nanoseconds>(\n" +
+                    "                    std::chrono::steady_clock::now() - startTime).count();\n" +
+                    "            std::atomic<uint64_t>* counters = internalGeneratedTrafficCounters() + counterIndex;\n" +
+                    "\n" +
+                    "            counters[0].fetch_add(1, std::memory_order_relaxed);\n" +
+                    "            counters[1].fetch_add(dataLen, std::memory_order_relaxed);\n" +
+                    "            counters[2].fetch_add(static_cast<uint64_t>(nanos), std::memory_order_relaxed);\n" +
+                    "        };\n" +
+                    "\n");
+    }
+
+    private void appendPacketCaseLookup(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        appendPacketCasesMap(modifiedSrc, allPackets);
+        modifiedSrc.append("\n" +
+                "        auto packetCase = packetCases.find(packet->GetDescriptor());\n" +
+                "        PacketWrapper::PacketCase packetType = packetCase != packetCases.end()\n" +
+                "                ? packetCase->second : PacketWrapper::PacketCase::PACKET_NOT_SET;\n");
+    }
+
+    private void appendPacketCasesMap(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        modifiedSrc.append("        // Заполняется один раз при первом вызове, далее - только чтение.\n" +
+                "        static const std::unordered_map<const google::protobuf::Descriptor*,\n" +
+                "                                        PacketWrapper::PacketCase> packetCases = {\n");
+
+        for (PacketSpec packet : allPackets)
+            modifiedSrc.append("                { ").append(packet.getCamelName())
+                    .append("::descriptor(), PacketWrapper::PacketCase::k")
+                    .append(packet.getCamelName()).append(" },\n");
+
+        modifiedSrc.append("        };\n");
     }
 
     @Override
-    public void appendGeneratedSourcesUnrap(StringBuilder modifiedSrc, List<String> allPackets) {
+    public void appendGeneratedSourcesUnrap(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        appendUnwrapSwitch(modifiedSrc, allPackets, false);
+    }
+
+    public void appendGeneratedSourcesUnwrapMove(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        appendUnwrapSwitch(modifiedSrc, allPackets, true);
+    }
+
+    private void appendUnwrapSwitch(StringBuilder modifiedSrc, List<PacketSpec> allPackets, boolean releasePackets) {
+        appendTrafficRecorder(modifiedSrc);
         modifiedSrc.append("        PacketWrapper wrapper;\n" +
                 "        wrapper.ParseFromArray(data, static_cast<int>(dataLen));\n" +
                 "\n" +
@@ -122,14 +340,8 @@ public class CppCodeGenerator implements CodeGenerator {
                 "\n" +
                 "        switch (packetType) {\n");
 
-        for (String packetType : allPackets)
-            modifiedSrc.append("            case PacketWrapper::PacketCase::k")
-                    .append(Convert.snakeToCamel(packetType)).append(":\n" +
-                    "                return std::make_shared<UnwrappedPacketData>(\n" +
-                    "                        sequence, ack, ackBitfield, packetType,\n" +
-                    "                        std::make_shared<").append(Convert.snakeToCamel(packetType))
-                    .append(">(wrapper.")
-                    .append(packetType).append("()));\n\n");
+        appendUnwrapCases(modifiedSrc, allPackets, "            ", "return ", ";\n\n", releasePackets,
+                instrumented ? "dataLen" : null);
 
         modifiedSrc.append("            default:\n" +
                 "                // Неизвестный пакет - он будет проигнорирован (не передан никакому PacketListener'у).\n" +
@@ -137,4 +349,578 @@ public class CppCodeGenerator implements CodeGenerator {
                 "        }\n");
     }
 
+    private void appendUnwrapCases(StringBuilder modifiedSrc, List<PacketSpec> allPackets,
+                                   String indent, String resultStart, String resultEnd,
+                                   boolean releasePackets, String recordedLenExpr) {
+        for (int i = 0; i < allPackets.size(); i++) {
+            PacketSpec packet = allPackets.get(i);
+            modifiedSrc.append(indent).append("case PacketWrapper::PacketCase::k")
+                    .append(packet.getCamelName()).append(":\n");
+
+            if (recordedLenExpr != null)
+                modifiedSrc.append(indent).append("    recordTraffic(")
+                        .append(i * TRAFFIC_COUNTERS_PER_PACKET + TRAFFIC_COUNTERS_PER_PACKET / 2)
+                        .append(", ").append(recordedLenExpr).append(");\n");
+
+            modifiedSrc.append(indent).append("    ").append(resultStart).append("std::make_shared<UnwrappedPacketData>(\n")
+                    .append(indent).append("            sequence, ack, ackBitfield, packetType,\n")
+                    .append(indent).append("            ");
+
+            if (releasePackets)
+                // Забираем уже разобранное сообщение у wrapper'а вместо его глубокого копирования.
+                modifiedSrc.append("std::shared_ptr<").append(packet.getCamelName())
+                        .append(">(wrapper.release_").append(packet.getName()).append("()))");
+            else
+                modifiedSrc.append("std::make_shared<").append(packet.getCamelName())
+                        .append(">(wrapper.").append(packet.getName()).append("()))");
+
+            modifiedSrc.append(resultEnd);
+        }
+    }
+
+    @Override
+    public void appendGeneratedSourcesWrapBatch(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        // Формат пачки: [длина][PacketWrapper только с заголовком], а затем для каждого пакета -
+        // [длина][PacketWrapper только с этим пакетом]. Вложенный PacketWrapper с одним-единственным
+        // полем из "oneof packet" в protobuf кодируется ровно как это поле (тег, длина, сам пакет),
+        // поэтому пакеты пишутся напрямую, без set_allocated_.../release_... на каждый из них.
+        if (instrumented)
+            modifiedSrc.append("        auto startTime = std::chrono::steady_clock::now();\n" +
+                    "\n");
+
+        modifiedSrc.append("        using WireFormatLite = google::protobuf::internal::WireFormatLite;\n" +
+                "        using CodedOutputStream = google::protobuf::io::CodedOutputStream;\n" +
+                "\n");
+
+        appendPacketCasesMap(modifiedSrc, allPackets);
+
+        if (instrumented) {
+            modifiedSrc.append("        static const std::unordered_map<const google::protobuf::Descriptor*, size_t> counterIndices = {\n");
+
+            for (int i = 0; i < allPackets.size(); i++)
+                modifiedSrc.append("                { ").append(allPackets.get(i).getCamelName())
+                        .append("::descriptor(), ").append(i * TRAFFIC_COUNTERS_PER_PACKET).append(" },\n");
+
+            modifiedSrc.append("        };\n");
+        }
+
+        modifiedSrc.append("\n" +
+                "        PacketWrapper header;\n" +
+                "\n" +
+                "        header.set_sequence(sequence);\n" +
+                "        header.set_ack(ack);\n" +
+                "        header.set_ack_bitfield(ackBitfield);\n" +
+                "\n" +
+                "        auto headerLen = static_cast<uint32_t>(header.ByteSizeLong());\n" +
+                "        size_t dataLen = CodedOutputStream::VarintSize32(headerLen) + headerLen;\n" +
+                "\n" +
+                "        std::vector<uint32_t> tags(packets.size());\n" +
+                "        std::vector<uint32_t> packetLens(packets.size());\n" +
+                "\n" +
+                "        for (size_t i = 0; i < packets.size(); i++) {\n" +
+                "            auto packetCase = packetCases.find(packets[i]->GetDescriptor());\n" +
+                "\n" +
+                "            if (packetCase == packetCases.end())\n" +
+                "                // Код для пакетов этого типа отсутствует в packetCases выше.\n" +
+                "                // Нужно добавить! (исп. awd-ptrans-codegen)\n" +
+                "                throw std::invalid_argument(\"no implemented transformer for this packet type\");\n" +
+                "\n" +
+                "            // Значения PacketWrapper::PacketCase совпадают с номерами полей в \"oneof packet\".\n" +
+                "            tags[i] = WireFormatLite::MakeTag(static_cast<int>(packetCase->second),\n" +
+                "                                              WireFormatLite::WIRETYPE_LENGTH_DELIMITED);\n" +
+                "            packetLens[i] = static_cast<uint32_t>(packets[i]->ByteSizeLong());\n" +
+                "\n" +
+                "            size_t wrapperLen = CodedOutputStream::VarintSize32(tags[i])\n" +
+                "                    + CodedOutputStream::VarintSize32(packetLens[i]) + packetLens[i];\n" +
+                "            dataLen += CodedOutputStream::VarintSize32(static_cast<uint32_t>(wrapperLen)) + wrapperLen;\n" +
+                "        }\n" +
+                "\n" +
+                "        std::shared_ptr<char[]> data(new char[dataLen]);\n" +
+                "        auto* target = reinterpret_cast<uint8_t*>(data.get());\n" +
+                "\n" +
+                "        target = CodedOutputStream::WriteVarint32ToArray(headerLen, target);\n" +
+                "        target = header.SerializeWithCachedSizesToArray(target);\n" +
+                "\n" +
+                "        for (size_t i = 0; i < packets.size(); i++) {\n" +
+                "            auto wrapperLen = static_cast<uint32_t>(CodedOutputStream::VarintSize32(tags[i])\n" +
+                "                    + CodedOutputStream::VarintSize32(packetLens[i]) + packetLens[i]);\n" +
+                "\n" +
+                "            target = CodedOutputStream::WriteVarint32ToArray(wrapperLen, target);\n" +
+                "            target = CodedOutputStream::WriteVarint32ToArray(tags[i], target);\n" +
+                "            target = CodedOutputStream::WriteVarint32ToArray(packetLens[i], target);\n" +
+                "            target = packets[i]->SerializeWithCachedSizesToArray(target);\n" +
+                "        }\n" +
+                "\n");
+
+        if (instrumented)
+            modifiedSrc.append("        // Время всей пачки делится поровну между её пакетами, а байты (вместе с длиной) считаются\n" +
+                    "        // для каждого пакета отдельно. Заголовок пачки ни одному из пакетов не приписывается.\n" +
+                    "        auto batchNanos = std::chrono::duration_cast<std::chrono::nanoseconds>(\n" +
+                    "                std::chrono::steady_clock::now() - startTime).count();\n" +
+                    "        uint64_t nanosPerPacket = packets.empty() ? 0 : static_cast<uint64_t>(batchNanos) / packets.size();\n" +
+                    "\n" +
+                    "        for (size_t i = 0; i < packets.size(); i++) {\n" +
+                    "            std::atomic<uint64_t>* counters = internalGeneratedTrafficCounters()\n" +
+                    "                    + counterIndices.at(packets[i]->GetDescriptor());\n" +
+                    "            size_t wrapperLen = CodedOutputStream::VarintSize32(tags[i])\n" +
+                    "                    + CodedOutputStream::VarintSize32(packetLens[i]) + packetLens[i];\n" +
+                    "\n" +
+                    "            counters[0].fetch_add(1, std::memory_order_relaxed);\n" +
+                    "            counters[1].fetch_add(CodedOutputStream::VarintSize32(static_cast<uint32_t>(wrapperLen)) + wrapperLen,\n" +
+                    "                                  std::memory_order_relaxed);\n" +
+                    "            counters[2].fetch_add(nanosPerPacket, std::memory_order_relaxed);\n" +
+                    "        }\n" +
+                    "\n");
+
+        modifiedSrc.append("        return std::make_shared<WrappedPacketData>(data, dataLen);\n");
+    }
+
+    @Override
+    public void appendGeneratedSourcesUnwrapBatch(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        modifiedSrc.append("        std::vector<std::shared_ptr<UnwrappedPacketData>> packets;\n" +
+                "\n" +
+                "        google::protobuf::io::CodedInputStream input(\n" +
+                "                reinterpret_cast<const uint8_t*>(data), static_cast<int>(dataLen));\n" +
+                "\n" +
+                "        auto readWrapper = [&input](PacketWrapper& wrapper) {\n" +
+                "            uint32_t wrapperLen;\n" +
+                "\n" +
+                "            if (!input.ReadVarint32(&wrapperLen))\n" +
+                "                return false;\n" +
+                "\n" +
+                "            auto limit = input.PushLimit(static_cast<int>(wrapperLen));\n" +
+                "            bool parsed = wrapper.ParseFromCodedStream(&input) && input.ConsumedEntireMessage();\n" +
+                "            input.PopLimit(limit);\n" +
+                "\n" +
+                "            return parsed;\n" +
+                "        };\n" +
+                "\n" +
+                "        PacketWrapper header;\n" +
+                "\n" +
+                "        if (!readWrapper(header))\n" +
+                "            // Повреждённая пачка - она будет проигнорирована целиком.\n" +
+                "            return packets;\n" +
+                "\n" +
+                "        uint32_t sequence    = header.sequence();\n" +
+                "        uint32_t ack         = header.ack();\n" +
+                "        uint32_t ackBitfield = header.ack_bitfield();\n" +
+                "\n");
+
+        // Заголовок пачки ни одному из пакетов не приписывается - как и в wrapBatch.
+        appendTrafficRecorder(modifiedSrc);
+
+        modifiedSrc.append("        while (!input.ExpectAtEnd()) {\n");
+
+        if (instrumented)
+            modifiedSrc.append("            startTime = std::chrono::steady_clock::now();\n" +
+                    "            int startPosition = input.CurrentPosition();\n" +
+                    "\n");
+
+        modifiedSrc.append("            PacketWrapper wrapper;\n" +
+                "\n" +
+                "            if (!readWrapper(wrapper))\n" +
+                "                // Повреждённый пакет - он и все пакеты после него в этой пачке будут проигнорированы.\n" +
+                "                break;\n" +
+                "\n" +
+                "            PacketWrapper::PacketCase packetType = wrapper.packet_case();\n");
+
+        if (instrumented)
+            modifiedSrc.append("            auto packetLen = static_cast<size_t>(input.CurrentPosition() - startPosition);\n");
+
+        modifiedSrc.append("\n" +
+                "            switch (packetType) {\n");
+
+        appendUnwrapCases(modifiedSrc, allPackets, "                ", "packets.push_back(",
+                ");\n                    break;\n\n", true,
+                instrumented ? "packetLen" : null);
+
+        modifiedSrc.append("                default:\n" +
+                "                    // Неизвестный пакет - он будет проигнорирован (не передан никакому PacketListener'у).\n" +
+                "                    break;\n" +
+                "            }\n" +
+                "        }\n" +
+                "\n" +
+                "        return packets;\n");
+    }
+
+    public void appendGeneratedSourcesPeekHeader(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        modifiedSrc.append("        using WireFormatLite = google::protobuf::internal::WireFormatLite;\n" +
+                "\n" +
+                "        google::protobuf::io::CodedInputStream input(\n" +
+                "                reinterpret_cast<const uint8_t*>(data), static_cast<int>(dataLen));\n" +
+                "\n" +
+                "        uint32_t sequence    = 0;\n" +
+                "        uint32_t ack         = 0;\n" +
+                "        uint32_t ackBitfield = 0;\n" +
+                "\n" +
+                "        PacketWrapper::PacketCase packetType = PacketWrapper::PacketCase::PACKET_NOT_SET;\n" +
+                "        uint32_t tag;\n" +
+                "\n" +
+                "        // Читаем только заголовок и номер поля пакета, а содержимое самого пакета\n" +
+                "        // пропускаем без разбора. Полностью разобрать его можно будет позже при помощи\n" +
+                "        // internalGeneratedUnwrap(data, dataLen).\n" +
+                "        while ((tag = input.ReadTag()) != 0) {\n" +
+                "            int fieldNumber = WireFormatLite::GetTagFieldNumber(tag);\n" +
+                "            bool ok;\n" +
+                "\n" +
+                "            switch (fieldNumber) {\n" +
+                "                case PacketWrapper::kSequenceFieldNumber:\n" +
+                "                case PacketWrapper::kAckFieldNumber:\n" +
+                "                case PacketWrapper::kAckBitfieldFieldNumber: {\n" +
+                "                    uint64_t value = 0;\n" +
+                "\n" +
+                "                    switch (WireFormatLite::GetTagWireType(tag)) {\n" +
+                "                        case WireFormatLite::WIRETYPE_VARINT:\n" +
+                "                            ok = input.ReadVarint64(&value);\n" +
+                "                            break;\n" +
+                "\n" +
+                "                        case WireFormatLite::WIRETYPE_FIXED32: {\n" +
+                "                            uint32_t value32 = 0;\n" +
+                "                            ok = input.ReadLittleEndian32(&value32);\n" +
+                "                            value = value32;\n" +
+                "                            break;\n" +
+                "                        }\n" +
+                "\n" +
+                "                        case WireFormatLite::WIRETYPE_FIXED64:\n" +
+                "                            ok = input.ReadLittleEndian64(&value);\n" +
+                "                            break;\n" +
+                "\n" +
+                "                        default:\n" +
+                "                            ok = false;\n" +
+                "                            break;\n" +
+                "                    }\n" +
+                "\n" +
+                "                    if (fieldNumber == PacketWrapper::kSequenceFieldNumber)\n" +
+                "                        sequence = static_cast<uint32_t>(value);\n" +
+                "                    else if (fieldNumber == PacketWrapper::kAckFieldNumber)\n" +
+                "                        ack = static_cast<uint32_t>(value);\n" +
+                "                    else\n" +
+                "                        ackBitfield = static_cast<uint32_t>(value);\n" +
+                "\n" +
+                "                    break;\n" +
+                "                }\n" +
+                "\n");
+
+        for (PacketSpec packet : allPackets)
+            modifiedSrc.append("                case PacketWrapper::k").append(packet.getCamelName())
+                    .append("FieldNumber:\n" +
+                    "                    packetType = PacketWrapper::PacketCase::k").append(packet.getCamelName())
+                    .append(";\n" +
+                    "                    ok = WireFormatLite::SkipField(&input, tag);\n" +
+                    "                    break;\n\n");
+
+        modifiedSrc.append("                default:\n" +
+                "                    ok = WireFormatLite::SkipField(&input, tag);\n" +
+                "                    break;\n" +
+                "            }\n" +
+                "\n" +
+                "            if (!ok)\n" +
+                "                // Повреждённый пакет - он будет проигнорирован, как и неизвестный.\n" +
+                "                return PeekedPacketHeader(0, 0, 0, PacketWrapper::PacketCase::PACKET_NOT_SET, data, dataLen);\n" +
+                "        }\n" +
+                "\n" +
+                "        return PeekedPacketHeader(sequence, ack, ackBitfield, packetType, data, dataLen);\n");
+    }
+
+    public void appendGeneratedSourcesTrafficCounters(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        // Массив нулевой длины в C++ не допускается - даже если пакетов нет.
+        int countersLen = Math.max(1, allPackets.size() * TRAFFIC_COUNTERS_PER_PACKET);
+
+        modifiedSrc.append("        // Счётчики трафика (--instrument). Индекс - номер пакета в \"oneof packet\" * "
+                + TRAFFIC_COUNTERS_PER_PACKET + " + номер счётчика:\n" +
+                "        // число wrap, байт wrap, наносекунд wrap, число unwrap, байт unwrap, наносекунд unwrap.\n" +
+                "        // Так же расположены и счётчики в Java (TRAFFIC_INDEX в InternalGeneratedStatics).\n" +
+                "        static std::atomic<uint64_t> counters[" + countersLen + "] {};\n" +
+                "        return counters;\n");
+    }
+
+    public void appendGeneratedSourcesTrafficSnapshot(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        if (!instrumented) {
+            modifiedSrc.append("        // Код сгенерирован без --instrument - счётчиков трафика нет.\n" +
+                    "        return {};\n");
+
+            return;
+        }
+
+        if (allPackets.isEmpty()) {
+            // Иначе packetTypes ниже был бы массивом нулевой длины.
+            modifiedSrc.append("        // В \"oneof packet\" нет ни одного пакета.\n" +
+                    "        return {};\n");
+
+            return;
+        }
+
+        modifiedSrc.append("        static const PacketWrapper::PacketCase packetTypes[] = {\n");
+
+        for (PacketSpec packet : allPackets)
+            modifiedSrc.append("                PacketWrapper::PacketCase::k")
+                    .append(packet.getCamelName()).append(",\n");
+
+        modifiedSrc.append("        };\n" +
+                "\n" +
+                "        // Значения (по типам пакетов): число wrap, байт wrap, наносекунд wrap,\n" +
+                "        //                            число unwrap, байт unwrap, наносекунд unwrap.\n" +
+                "        // Пакеты из пачек (wrapBatch/unwrapBatch) тоже учитываются - каждый по отдельности.\n" +
+                "        std::map<PacketWrapper::PacketCase, std::array<uint64_t, " + TRAFFIC_COUNTERS_PER_PACKET
+                + ">> snapshot;\n" +
+                "        std::atomic<uint64_t>* counters = internalGeneratedTrafficCounters();\n" +
+                "\n" +
+                "        for (size_t i = 0; i < " + allPackets.size() + "; i++)\n" +
+                "            for (size_t j = 0; j < " + TRAFFIC_COUNTERS_PER_PACKET + "; j++)\n" +
+                "                snapshot[packetTypes[i]][j] = counters[i * " + TRAFFIC_COUNTERS_PER_PACKET
+                + " + j].load(std::memory_order_relaxed);\n" +
+                "\n" +
+                "        return snapshot;\n");
+    }
+
+    public void appendGeneratedSourcesDispatchTable(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        modifiedSrc.append("    public:\n" +
+                "        template<typename T>\n" +
+                "        using PacketHandler = std::function<void(const std::shared_ptr<UnwrappedPacketData>&, T&)>;\n" +
+                "\n" +
+                "        // Индекс - номер поля пакета в \"oneof packet\" (он же PacketWrapper::PacketCase).\n" +
+                "        static constexpr size_t TABLE_SIZE = " + (PacketSpec.maxFieldNumber(allPackets) + 1) + ";\n");
+
+        for (PacketSpec packet : allPackets)
+            modifiedSrc.append("\n" +
+                    "        void on").append(packet.getCamelName())
+                    .append("(PacketHandler<").append(packet.getCamelName()).append("> handler) {\n" +
+                    "            if (handler)\n" +
+                    "                handlers[PacketWrapper::k").append(packet.getCamelName())
+                    .append("FieldNumber] = [handler = std::move(handler)](\n" +
+                    "                        const std::shared_ptr<UnwrappedPacketData>& data) {\n" +
+                    "                    handler(data, *static_cast<").append(packet.getCamelName())
+                    .append("*>(data->getPacket().get()));\n" +
+                    "                };\n" +
+                    "            else\n" +
+                    "                handlers[PacketWrapper::k").append(packet.getCamelName())
+                    .append("FieldNumber] = nullptr;\n" +
+                    "        }\n");
+
+        modifiedSrc.append("\n" +
+                "        bool dispatch(const std::shared_ptr<UnwrappedPacketData>& data) const {\n" +
+                "            if (!data)\n" +
+                "                // Неизвестный пакет (см. internalGeneratedUnwrap).\n" +
+                "                return false;\n" +
+                "\n" +
+                "            const auto& handler = handlers[static_cast<size_t>(data->getPacketType())];\n" +
+                "\n" +
+                "            if (!handler)\n" +
+                "                return false;\n" +
+                "\n" +
+                "            handler(data);\n" +
+                "\n" +
+                "            return true;\n" +
+                "        }\n" +
+                "\n" +
+                "    private:\n" +
+                "        // Обработчики регистрируются только через типизированные методы on...() выше, поэтому\n" +
+                "        // в каждой ячейке лежит обработчик именно того типа пакета, номер поля которого - её индекс.\n" +
+                "        std::function<void(const std::shared_ptr<UnwrappedPacketData>&)> handlers[TABLE_SIZE];\n");
+    }
+
+    // Тот же алгоритм, что и в Java (см. JavaCodeGenerator.appendGeneratedSourcesSequenceTracker).
+    public void appendGeneratedSourcesSequenceTracker(StringBuilder modifiedSrc) {
+        modifiedSrc.append("    public:\n" +
+                "        // Размер кольцевых буферов отправленных и полученных пакетов (степень двойки).\n" +
+                "        static constexpr uint32_t RING_SIZE = " + SequenceTrackerSpec.RING_SIZE + ";\n" +
+                "\n" +
+                "        // Число предыдущих пакетов, подтверждаемых битами ackBitfield (ack - 1 - i для бита i).\n" +
+                "        static constexpr uint32_t ACK_BITS = " + SequenceTrackerSpec.ACK_BITS + ";\n" +
+                "\n" +
+                "        // Вызывается перед отправкой каждого пакета. Возвращает sequence для wrap.\n" +
+                "        uint32_t nextSequence() {\n" +
+                "            uint32_t sequence = localSequence.fetch_add(1) + 1;\n" +
+                "            uint32_t slot = sequence & (RING_SIZE - 1);\n" +
+                "\n" +
+                "            // Пакет, отправленный RING_SIZE пакетов назад, так и не был ни подтверждён, ни признан потерянным.\n" +
+                "            if ((sentEntries[slot].exchange(EMPTY) & 3) == SENT)\n" +
+                "                onLost();\n" +
+                "\n" +
+                "            sentTimes[slot].store(nowNanos());\n" +
+                "\n" +
+                "            // Другой поток (с sequence на RING_SIZE больше или меньше) мог успеть занять эту же ячейку\n" +
+                "            // между двумя exchange - его пакет тоже не должен пропасть из счётчиков.\n" +
+                "            if ((sentEntries[slot].exchange(sentEntry(sequence, SENT)) & 3) == SENT)\n" +
+                "                onLost();\n" +
+                "\n" +
+                "            sentPackets++;\n" +
+                "\n" +
+                "            return sequence;\n" +
+                "        }\n" +
+                "\n" +
+                "        // ack для wrap - последний полученный sequence.\n" +
+                "        uint32_t getAck() const {\n" +
+                "            int64_t remote = remoteSequence.load();\n" +
+                "\n" +
+                "            return remote < 0 ? 0 : static_cast<uint32_t>(remote);\n" +
+                "        }\n" +
+                "\n" +
+                "        // ackBitfield для wrap - какие из ACK_BITS пакетов перед ack были получены.\n" +
+                "        uint32_t getAckBitfield() const {\n" +
+                "            int64_t remote = remoteSequence.load();\n" +
+                "            uint32_t ackBitfield = 0;\n" +
+                "\n" +
+                "            if (remote < 0)\n" +
+                "                return ackBitfield;\n" +
+                "\n" +
+                "            for (uint32_t i = 0; i < ACK_BITS; i++) {\n" +
+                "                uint32_t sequence = static_cast<uint32_t>(remote) - 1 - i;\n" +
+                "\n" +
+                "                if (receivedEntries[sequence & (RING_SIZE - 1)].load() == receivedEntry(sequence))\n" +
+                "                    ackBitfield |= UINT32_C(1) << i;\n" +
+                "            }\n" +
+                "\n" +
+                "            return ackBitfield;\n" +
+                "        }\n" +
+                "\n" +
+                "        // Вызывается для каждого полученного пакета (с его sequence, ack и ackBitfield после unwrap).\n" +
+                "        // Возвращает false для повторно полученных и слишком старых пакетов - их следует проигнорировать.\n" +
+                "        bool onReceived(uint32_t sequence, uint32_t ack, uint32_t ackBitfield) {\n" +
+                "            int64_t remote = remoteSequence.load();\n" +
+                "\n" +
+                "            if (remote >= 0 && static_cast<int32_t>(static_cast<uint32_t>(remote) - sequence)\n" +
+                "                               >= static_cast<int32_t>(RING_SIZE))\n" +
+                "                return false;\n" +
+                "\n" +
+                "            if (receivedEntries[sequence & (RING_SIZE - 1)].exchange(receivedEntry(sequence)) == receivedEntry(sequence))\n" +
+                "                return false;\n" +
+                "\n" +
+                "            while ((remote = remoteSequence.load()) < 0 || isNewer(sequence, static_cast<uint32_t>(remote)))\n" +
+                "                if (remoteSequence.compare_exchange_weak(remote, sequence))\n" +
+                "                    break;\n" +
+                "\n" +
+                "            int64_t now = nowNanos();\n" +
+                "            onAcked(ack, now);\n" +
+                "\n" +
+                "            for (uint32_t i = 0; i < ACK_BITS; i++)\n" +
+                "                if (ackBitfield & (UINT32_C(1) << i))\n" +
+                "                    onAcked(ack - 1 - i, now);\n" +
+                "\n" +
+                "            detectLosses(ack);\n" +
+                "\n" +
+                "            return true;\n" +
+                "        }\n" +
+                "\n" +
+                "        // Сглаженное время от отправки пакета до получения его подтверждения (-1, пока нет ни одного).\n" +
+                "        double getRoundTripTimeMillis() const {\n" +
+                "            return roundTripTime.load();\n" +
+                "        }\n" +
+                "\n" +
+                "        // Сглаженная доля потерянных пакетов среди подтверждённых и потерянных (от 0 до 1).\n" +
+                "        double getPacketLoss() const {\n" +
+                "            return packetLoss.load();\n" +
+                "        }\n" +
+                "\n" +
+                "        uint64_t getSentPackets() const {\n" +
+                "            return sentPackets.load();\n" +
+                "        }\n" +
+                "\n" +
+                "        uint64_t getAckedPackets() const {\n" +
+                "            return ackedPackets.load();\n" +
+                "        }\n" +
+                "\n" +
+                "        uint64_t getLostPackets() const {\n" +
+                "            return lostPackets.load();\n" +
+                "        }\n" +
+                "\n" +
+                "    private:\n" +
+                "        // Состояние отправленного пакета - младшие 2 бита записи в sentEntries (старшие - его sequence).\n" +
+                "        // Запись меняется одним compare_exchange, поэтому пакет подтверждается или теряется ровно один раз.\n" +
+                "        static constexpr uint64_t EMPTY = 0, SENT = 1, ACKED = 2, LOST = 3;\n" +
+                "\n" +
+                "        // Вес нового значения в скользящих средних RTT и доли потерь.\n" +
+                "        static constexpr double SMOOTHING = 0.125;\n" +
+                "\n" +
+                "        std::atomic<uint32_t> localSequence{0};\n" +
+                "        std::atomic<uint64_t> sentEntries[RING_SIZE] = {};\n" +
+                "        std::atomic<int64_t> sentTimes[RING_SIZE] = {};\n" +
+                "\n" +
+                "        // Записи (sequence << 1) | 1, так что 0 означает \"ничего не получено\".\n" +
+                "        std::atomic<uint64_t> receivedEntries[RING_SIZE] = {};\n" +
+                "\n" +
+                "        // Последний (с учётом переполнения) полученный sequence или -1, если ничего не получено.\n" +
+                "        std::atomic<int64_t> remoteSequence{-1};\n" +
+                "\n" +
+                "        // Отправленные пакеты до этого sequence включительно уже проверены на потерю.\n" +
+                "        std::atomic<uint32_t> lossCheckedSequence{0};\n" +
+                "\n" +
+                "        std::atomic<uint64_t> sentPackets{0};\n" +
+                "        std::atomic<uint64_t> ackedPackets{0};\n" +
+                "        std::atomic<uint64_t> lostPackets{0};\n" +
+                "\n" +
+                "        // Скользящие средние: RTT в миллисекундах (-1 - ещё нет ни одного замера)\n" +
+                "        // и доля потерянных пакетов (от 0 до 1).\n" +
+                "        std::atomic<double> roundTripTime{-1.0};\n" +
+                "        std::atomic<double> packetLoss{0.0};\n" +
+                "\n" +
+                "        void onAcked(uint32_t sequence, int64_t now) {\n" +
+                "            uint32_t slot = sequence & (RING_SIZE - 1);\n" +
+                "            uint64_t expected = sentEntry(sequence, SENT);\n" +
+                "\n" +
+                "            if (!sentEntries[slot].compare_exchange_strong(expected, sentEntry(sequence, ACKED)))\n" +
+                "                return;\n" +
+                "\n" +
+                "            int64_t sentTime = sentTimes[slot].load();\n" +
+                "            ackedPackets++;\n" +
+                "            updateAverage(packetLoss, 0.0);\n" +
+                "\n" +
+                "            // Если ячейку уже занял более новый пакет, время отправки могло быть перезаписано.\n" +
+                "            if (sentEntries[slot].load() == sentEntry(sequence, ACKED))\n" +
+                "                updateAverage(roundTripTime, (now - sentTime) / 1000000.0);\n" +
+                "        }\n" +
+                "\n" +
+                "        // Пакеты старше ack более чем на ACK_BITS уже не могут быть подтверждены - неподтверждённые потеряны.\n" +
+                "        void detectLosses(uint32_t ack) {\n" +
+                "            uint32_t lastLost = ack - ACK_BITS - 1;\n" +
+                "            uint32_t checked = lossCheckedSequence.load();\n" +
+                "\n" +
+                "            while (isNewer(lastLost, checked)) {\n" +
+                "                if (lossCheckedSequence.compare_exchange_weak(checked, lastLost)) {\n" +
+                "                    uint32_t first = lastLost - checked > RING_SIZE ? lastLost - RING_SIZE + 1 : checked + 1;\n" +
+                "\n" +
+                "                    for (uint32_t sequence = first; !isNewer(sequence, lastLost); sequence++) {\n" +
+                "                        uint64_t expected = sentEntry(sequence, SENT);\n" +
+                "\n" +
+                "                        if (sentEntries[sequence & (RING_SIZE - 1)].compare_exchange_strong(\n" +
+                "                                expected, sentEntry(sequence, LOST)))\n" +
+                "                            onLost();\n" +
+                "                    }\n" +
+                "\n" +
+                "                    return;\n" +
+                "                }\n" +
+                "            }\n" +
+                "        }\n" +
+                "\n" +
+                "        void onLost() {\n" +
+                "            lostPackets++;\n" +
+                "            updateAverage(packetLoss, 1.0);\n" +
+                "        }\n" +
+                "\n" +
+                "        static void updateAverage(std::atomic<double>& average, double sample) {\n" +
+                "            double oldAverage = average.load();\n" +
+                "\n" +
+                "            while (!average.compare_exchange_weak(oldAverage,\n" +
+                "                    oldAverage < 0 ? sample : oldAverage + (sample - oldAverage) * SMOOTHING));\n" +
+                "        }\n" +
+                "\n" +
+                "        // Сравнение с учётом переполнения sequence (как в TCP).\n" +
+                "        static bool isNewer(uint32_t sequence, uint32_t than) {\n" +
+                "            return static_cast<int32_t>(sequence - than) > 0;\n" +
+                "        }\n" +
+                "\n" +
+                "        static uint64_t sentEntry(uint32_t sequence, uint64_t state) {\n" +
+                "            return static_cast<uint64_t>(sequence) << 2 | state;\n" +
+                "        }\n" +
+                "\n" +
+                "        static uint64_t receivedEntry(uint32_t sequence) {\n" +
+                "            return static_cast<uint64_t>(sequence) << 1 | 1;\n" +
+                "        }\n" +
+                "\n" +
+                "        static int64_t nowNanos() {\n" +
+                "            return std::chrono::duration_cast<std::chrono::nanoseconds>(\n" +
+                "                    std::chrono::steady_clock::now().time_since_epoch()).count();\n" +
+                "        }\n");
+    }
+
 }
@@ -0,0 +1,156 @@
+package gg.aswedrown.ptranscodegen;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+// Кэш результатов последнего успешного запуска: хэши proto-файла, исходников и самого генератора.
+// Если ничего из этого не изменилось, то генерация кода заведомо ничего не изменит, и её можно пропустить,
+// не разбирая proto-файл и не читая исходники целиком в память.
+//
+// Один файл кэша может быть общим для нескольких запусков (например, для всех строк --config): хэши файлов
+// хранятся по их путям, а настройки - по набору файлов запуска, так что запуски не затирают записи друг друга.
+public class GenerationCache {
+
+    private static final String SETTINGS_KEY_PREFIX = "settings:";
+
+    // Классы, от которых зависит сгенерированный код (при обновлении генератора кэш сбрасывается).
+    private static final String[] GENERATOR_CLASSES = {
+            "ProtoTokenizer.class", "ProtoSchema.class", "ProtoSchema$Parser.class", "PacketSpec.class",
+            "Convert.class", "JavaCodeGenerator.class", "CppCodeGenerator.class"
+    };
+
+    private final File cacheFile;
+    private final CodeGenLog log;
+    private final Properties entries = new Properties();
+
+    private GenerationCache(File cacheFile, CodeGenLog log) {
+        this.cacheFile = cacheFile;
+        this.log = log;
+    }
+
+    public static GenerationCache load(File cacheFile) {
+        return load(cacheFile, CodeGenLog.STDOUT);
+    }
+
+    public static GenerationCache load(File cacheFile, CodeGenLog log) {
+        GenerationCache cache = new GenerationCache(cacheFile, log);
+
+        if (cacheFile.isFile()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8)) {
+                cache.entries.load(reader);
+            } catch (IOException | IllegalArgumentException ex) {
+                // Повреждённый кэш равносилен отсутствующему - просто сгенерируем всё заново.
+                log.info("Ignoring unreadable cache file: " + ex);
+                cache.entries.clear();
+            }
+        }
+
+        return cache;
+    }
+
+    public boolean isUpToDate(String settings, File... files) throws IOException {
+        if (!settingsFingerprint(settings).equals(entries.getProperty(settingsKey(files))))
+            return false;
+
+        for (File file : files) {
+            String cached = entries.getProperty(file.getAbsolutePath());
+
+            // Сначала дешёвая проверка размера, и только при его совпадении - хэш содержимого.
+            if (cached == null || !cached.startsWith(file.length() + ":")
+                    || !cached.equals(fileFingerprint(file)))
+                return false;
+        }
+
+        return true;
+    }
+
+    // Записи других запусков (с другими файлами), загруженные в load, сохраняются как есть.
+    public void update(String settings, File... files) throws IOException {
+        entries.setProperty(settingsKey(files), settingsFingerprint(settings));
+
+        for (File file : files)
+            entries.setProperty(file.getAbsolutePath(), fileFingerprint(file));
+
+        // Как и исходники в PTransCodeGen.generate: пишем во временный файл рядом и атомарно заменяем им кэш,
+        // чтобы прерванная запись или параллельный запуск не оставили кэш записанным наполовину.
+        Path cachePath = cacheFile.toPath().toAbsolutePath();
+        Path tempPath = Files.createTempFile(cachePath.getParent(), "." + cacheFile.getName() + ".", ".tmp");
+
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                entries.store(writer, "awd-ptrans-codegen cache - do not edit");
+            }
+
+            PTransCodeGen.replace(tempPath, cachePath, log);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    // Запуск определяется набором своих файлов (исходники у разных запусков всегда разные).
+    private static String settingsKey(File... files) {
+        StringBuilder key = new StringBuilder(SETTINGS_KEY_PREFIX);
+
+        for (int i = 0; i < files.length; i++)
+            key.append(i == 0 ? "" : File.pathSeparator).append(files[i].getAbsolutePath());
+
+        return key.toString();
+    }
+
+    private static String settingsFingerprint(String settings) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+
+        for (String generatorClass : GENERATOR_CLASSES) {
+            try (InputStream classBytes = GenerationCache.class.getResourceAsStream(generatorClass)) {
+                if (classBytes == null)
+                    throw new IOException("cannot read generator class " + generatorClass);
+
+                digestAll(digest, classBytes);
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    static String fileFingerprint(File file) throws IOException {
+        MessageDigest digest = newDigest();
+
+        try (InputStream fileBytes = Files.newInputStream(file.toPath())) {
+            digestAll(digest, fileBytes);
+        }
+
+        return file.length() + ":" + toHex(digest.digest());
+    }
+
+    private static void digestAll(MessageDigest digest, InputStream input) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = input.read(buffer)) != -1)
+            digest.update(buffer, 0, read);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+        return hex.toString();
+    }
+
+}
@@ -1,36 +1,123 @@
 package gg.aswedrown.ptranscodegen;
 
 import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class JavaCodeGenerator implements CodeGenerator {
 
+    // HotSpot не JIT-компилирует методы, байткод которых длиннее -XX:HugeMethodLimit (8000 байт по умолчанию).
+    private static final int HUGE_METHOD_LIMIT = 8000;
+
+    // ...и не встраивает (inline) горячие методы, байткод которых длиннее -XX:FreqInlineSize (325 байт).
+    private static final int FREQ_INLINE_SIZE = 325;
+
+    // Оценки сверху размера байткода: ветки "case" в wrap (самой "тяжёлой" из генерируемых), ветки "case",
+    // которая только вызывает другой метод, записи о ветке в tableswitch и всего остального в методе со switch'ем.
+    private static final int WRAP_CASE_BYTECODE_ESTIMATE = 48;
+    private static final int CALL_CASE_BYTECODE_ESTIMATE = 16;
+    private static final int TABLESWITCH_ENTRY_BYTES = 4;
+    private static final int SWITCH_OVERHEAD_BYTECODE_ESTIMATE = 64;
+
+    // Если wrap/unwrap превысили бы HUGE_METHOD_LIMIT, пакет выбирается по дереву методов: каждый "узел"
+    // выбирает по диапазону номеров полей один из RANGE_FANOUT методов ниже, а каждый "лист" - пакет из
+    // не более чем RANGE_LEAF_SIZE пакетов. И те, и другие помещаются в FREQ_INLINE_SIZE.
+    private static final int RANGE_LEAF_SIZE = (FREQ_INLINE_SIZE - SWITCH_OVERHEAD_BYTECODE_ESTIMATE)
+            / (WRAP_CASE_BYTECODE_ESTIMATE + TABLESWITCH_ENTRY_BYTES);
+    private static final int RANGE_FANOUT = (FREQ_INLINE_SIZE - SWITCH_OVERHEAD_BYTECODE_ESTIMATE)
+            / (CALL_CASE_BYTECODE_ESTIMATE + TABLESWITCH_ENTRY_BYTES);
+
+    // Число PACKET_CASES.put(...) в одном методе: статический инициализатор (как и любой метод) не может быть
+    // длиннее 64 КБ байткода, поэтому для большого числа пакетов он вызывает несколько методов.
+    private static final int PACKET_CASES_PER_METHOD = 1000;
+
+    // Число счётчиков трафика на один тип пакета (см. appendTrafficCounters).
+    private static final int TRAFFIC_COUNTERS_PER_PACKET = 6;
+
+    private static final String STATICS_CLASS_DECL
+            = "private static final class InternalGeneratedStatics {";
+
     private static final String WRAP_MTD_DECL
             = "private static byte[] internalGeneratedWrap(Message packet, int sequence, int ack, long ackBitfield) {";
 
+    private static final String WRAP_INTO_MTD_DECL
+            = "private static int internalGeneratedWrapInto(Message packet, int sequence, int ack, long ackBitfield, ByteBuffer buffer) throws IOException {";
+
     private static final String UNWRAP_MTD_DECL
             = "private static UnwrappedPacketData internalGeneratedUnwrap(byte[] data) throws InvalidProtocolBufferException {";
 
+    private static final String UNWRAP_BUFFER_MTD_DECL
+            = "private static UnwrappedPacketData internalGeneratedUnwrap(ByteBuffer data) throws InvalidProtocolBufferException {";
+
+    private static final String UNWRAP_ARRAY_MTD_DECL
+            = "private static UnwrappedPacketData internalGeneratedUnwrap(byte[] data, int offset, int length) throws InvalidProtocolBufferException {";
+
+    private static final String PEEK_HEADER_MTD_DECL
+            = "private static PeekedPacketHeader internalGeneratedPeekHeader(byte[] data, int offset, int length) throws IOException {";
+
+    private static final String WRAP_BATCH_MTD_DECL
+            = "private static byte[] internalGeneratedWrapBatch(List<Message> packets, int sequence, int ack, long ackBitfield) throws IOException {";
+
+    private static final String UNWRAP_BATCH_MTD_DECL
+            = "private static List<UnwrappedPacketData> internalGeneratedUnwrapBatch(byte[] data, int offset, int length) throws IOException {";
+
+    private static final String TRAFFIC_SNAPSHOT_MTD_DECL
+            = "public static Map<PacketWrapper.PacketCase, long[]> internalGeneratedTrafficSnapshot() {";
+
+    private static final String DISPATCH_TABLE_CLASS_DECL
+            = "public static final class PacketDispatchTable {";
+
+    private static final String SEQUENCE_TRACKER_CLASS_DECL
+            = "public static final class PacketSequenceTracker {";
+
+    private final boolean instrumented;
+    private final boolean reuseBuilders;
+
+    public JavaCodeGenerator(boolean instrumented, boolean reuseBuilders) {
+        this.instrumented = instrumented;
+        this.reuseBuilders = reuseBuilders;
+    }
+
+    @Override
+    public SourceScan scanExistingSources(BufferedReader srcReader) throws Exception {
+        return SourceScan.scan(srcReader, JavaCodeGenerator::findDecl);
+    }
+
     @SuppressWarnings ("DuplicatedCode")
     @Override
-    public SourceSets insertInExistingSources(BufferedReader srcReader, List<String> allPackets) throws Exception {
-        StringBuilder originalSrc = new StringBuilder();
-        StringBuilder modifiedSrc = new StringBuilder();
+    public boolean insertInExistingSources(BufferedReader srcReader, SourceScan scan, SourceRewrite rewrite,
+                                           List<PacketSpec> allPackets, CodeGenLog log) throws Exception {
+
+        // Без InternalGeneratedStatics не из чего брать таблицу типов пакетов для wrap (а также счётчики
+        // трафика, PacketWrapper.Builder и методы выбора пакета по диапазонам номеров полей).
+        if (!scan.isDeclared(STATICS_CLASS_DECL)) {
+            log.error("WARNING: did not generate any code (Java) - missing empty declaration " +
+                    "of class InternalGeneratedStatics, which wrap and unwrap depend on:");
+            log.error("    " + STATICS_CLASS_DECL);
+            log.error("    }");
+
+            return false;
+        }
 
         boolean skipBody = false;
         int brackets = -1;
-        String line;
+        String line, currentDecl = null;
 
-        boolean generatedWrap   = false,
-                generatedUnwrap = false;
+        Set<String> generatedDecls = new HashSet<>();
 
         while ((line = srcReader.readLine()) != null) {
-            originalSrc.append(line);
+            rewrite.appendOriginal(line);
 
             if (!skipBody)
-                modifiedSrc.append(line).append('\n');
+                rewrite.appendModified(line + '\n');
 
-            if (line.trim().startsWith(WRAP_MTD_DECL) || line.trim().startsWith(UNWRAP_MTD_DECL)) {
+            String decl = skipBody ? null : findDecl(line.trim());
+
+            if (decl != null) {
+                currentDecl = decl;
                 skipBody = true;
                 brackets = 1;
             } else if (skipBody) {
@@ -39,85 +126,515 @@ public class JavaCodeGenerator implements CodeGenerator {
 
                 if (line.contains("}") && --brackets == 0) {
                     skipBody = false;
-
-                    if (!generatedWrap) {
-                        generatedWrap = true;
-                        appendGeneratedSourcesWrap(modifiedSrc, allPackets);
-                        modifiedSrc.append("    }\n");
-                    } else if (!generatedUnwrap) {
-                        generatedUnwrap = true;
-                        appendGeneratedSourcesUnrap(modifiedSrc, allPackets);
-                        modifiedSrc.append("    }\n");
-                    }
+                    generatedDecls.add(currentDecl);
+                    StringBuilder generatedSrc = new StringBuilder();
+                    appendGeneratedSources(currentDecl, generatedSrc, allPackets);
+                    rewrite.appendModified(generatedSrc.append(line).append('\n'));
                 }
             }
         }
 
-        if (generatedWrap)
-            System.out.println("Successfully generated code in method wrap (Java)");
-        else {
-            System.err.println("WARNING: did not generate any code " +
-                    "in method wrap (Java) - missing empty declaration");
+        if (!checkGenerated(log, generatedDecls, STATICS_CLASS_DECL, "class InternalGeneratedStatics"))
+            return false;
+
+        if (!checkGenerated(log, generatedDecls, WRAP_MTD_DECL, "method wrap"))
+            return false;
+
+        if (!checkGenerated(log, generatedDecls, UNWRAP_MTD_DECL, "method unwrap"))
+            return false;
 
+        checkGeneratedOptional(log, generatedDecls, WRAP_INTO_MTD_DECL, "method wrapInto");
+        checkGeneratedOptional(log, generatedDecls, UNWRAP_BUFFER_MTD_DECL, "method unwrap(ByteBuffer)");
+        checkGeneratedOptional(log, generatedDecls, UNWRAP_ARRAY_MTD_DECL, "method unwrap(byte[], int, int)");
+        checkGeneratedOptional(log, generatedDecls, PEEK_HEADER_MTD_DECL, "method peekHeader");
+        checkGeneratedOptional(log, generatedDecls, WRAP_BATCH_MTD_DECL, "method wrapBatch");
+        checkGeneratedOptional(log, generatedDecls, UNWRAP_BATCH_MTD_DECL, "method unwrapBatch");
+        checkGeneratedOptional(log, generatedDecls, TRAFFIC_SNAPSHOT_MTD_DECL, "method trafficSnapshot");
+        checkGeneratedOptional(log, generatedDecls, DISPATCH_TABLE_CLASS_DECL, "class PacketDispatchTable");
+        checkGeneratedOptional(log, generatedDecls, SEQUENCE_TRACKER_CLASS_DECL, "class PacketSequenceTracker");
+
+        return true;
+    }
+
+    private static String findDecl(String trimmedLine) {
+        if (trimmedLine.startsWith(STATICS_CLASS_DECL))
+            return STATICS_CLASS_DECL;
+        else if (trimmedLine.startsWith(WRAP_MTD_DECL))
+            return WRAP_MTD_DECL;
+        else if (trimmedLine.startsWith(WRAP_INTO_MTD_DECL))
+            return WRAP_INTO_MTD_DECL;
+        else if (trimmedLine.startsWith(UNWRAP_MTD_DECL))
+            return UNWRAP_MTD_DECL;
+        else if (trimmedLine.startsWith(UNWRAP_BUFFER_MTD_DECL))
+            return UNWRAP_BUFFER_MTD_DECL;
+        else if (trimmedLine.startsWith(UNWRAP_ARRAY_MTD_DECL))
+            return UNWRAP_ARRAY_MTD_DECL;
+        else if (trimmedLine.startsWith(PEEK_HEADER_MTD_DECL))
+            return PEEK_HEADER_MTD_DECL;
+        else if (trimmedLine.startsWith(WRAP_BATCH_MTD_DECL))
+            return WRAP_BATCH_MTD_DECL;
+        else if (trimmedLine.startsWith(UNWRAP_BATCH_MTD_DECL))
+            return UNWRAP_BATCH_MTD_DECL;
+        else if (trimmedLine.startsWith(TRAFFIC_SNAPSHOT_MTD_DECL))
+            return TRAFFIC_SNAPSHOT_MTD_DECL;
+        else if (trimmedLine.startsWith(DISPATCH_TABLE_CLASS_DECL))
+            return DISPATCH_TABLE_CLASS_DECL;
+        else if (trimmedLine.startsWith(SEQUENCE_TRACKER_CLASS_DECL))
+            return SEQUENCE_TRACKER_CLASS_DECL;
+        else
             return null;
+    }
+
+    private static boolean checkGenerated(CodeGenLog log, Set<String> generatedDecls, String decl, String what) {
+        if (generatedDecls.contains(decl)) {
+            log.info("Successfully generated code in " + what + " (Java)");
+            return true;
+        } else {
+            log.error("WARNING: did not generate any code " +
+                    "in " + what + " (Java) - missing empty declaration");
+
+            return false;
         }
+    }
 
-        if (generatedUnwrap)
-            System.out.println("Successfully generated code in method unwrap (Java)");
-        else {
-            System.err.println("WARNING: did not generate any code " +
-                    "in method unwrap (Java) - missing empty declaration");
+    private static void checkGeneratedOptional(CodeGenLog log, Set<String> generatedDecls, String decl, String what) {
+        if (generatedDecls.contains(decl))
+            log.info("Successfully generated code in " + what + " (Java)");
+        else
+            log.info("Skipping optional " + what + " (Java) - no empty declaration");
+    }
 
-            return null;
+    private void appendGeneratedSources(String decl, StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        switch (decl) {
+            case STATICS_CLASS_DECL:
+                appendGeneratedSourcesStatics(modifiedSrc, allPackets);
+                break;
+
+            case WRAP_MTD_DECL:
+                appendGeneratedSourcesWrap(modifiedSrc, allPackets);
+                break;
+
+            case WRAP_INTO_MTD_DECL:
+                appendGeneratedSourcesWrapInto(modifiedSrc, allPackets);
+                break;
+
+            case UNWRAP_MTD_DECL:
+                appendGeneratedSourcesUnrap(modifiedSrc, allPackets);
+                break;
+
+            case UNWRAP_BUFFER_MTD_DECL:
+                appendGeneratedSourcesUnwrapInPlace(modifiedSrc, allPackets, "data", "data.remaining()");
+                break;
+
+            case UNWRAP_ARRAY_MTD_DECL:
+                appendGeneratedSourcesUnwrapInPlace(modifiedSrc, allPackets, "data, offset, length", "length");
+                break;
+
+            case PEEK_HEADER_MTD_DECL:
+                appendGeneratedSourcesPeekHeader(modifiedSrc, allPackets);
+                break;
+
+            case WRAP_BATCH_MTD_DECL:
+                appendGeneratedSourcesWrapBatch(modifiedSrc, allPackets);
+                break;
+
+            case UNWRAP_BATCH_MTD_DECL:
+                appendGeneratedSourcesUnwrapBatch(modifiedSrc, allPackets);
+                break;
+
+            case TRAFFIC_SNAPSHOT_MTD_DECL:
+                appendGeneratedSourcesTrafficSnapshot(modifiedSrc);
+                break;
+
+            case DISPATCH_TABLE_CLASS_DECL:
+                appendGeneratedSourcesDispatchTable(modifiedSrc, allPackets);
+                break;
+
+            case SEQUENCE_TRACKER_CLASS_DECL:
+                appendGeneratedSourcesSequenceTracker(modifiedSrc);
+                break;
+
+            default:
+                throw new IllegalArgumentException("unsupported declaration: " + decl);
         }
+    }
+
+    public void appendGeneratedSourcesStatics(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        modifiedSrc.append("        // Заполняется один раз при инициализации класса, далее - только чтение.\n" +
+                "        static final java.util.Map<Class<?>, PacketWrapper.PacketCase> PACKET_CASES\n" +
+                "                = new java.util.IdentityHashMap<>();\n" +
+                "\n");
 
-        return new SourceSets(originalSrc.toString(), modifiedSrc.toString());
+        if (instrumented)
+            modifiedSrc.append("        // Номер пакета в \"oneof packet\" (как и в C++) по PacketCase.ordinal() - по нему\n" +
+                    "        // расположены счётчики трафика пакета в TRAFFIC. Заполняется вместе с PACKET_CASES.\n" +
+                    "        static final int[] TRAFFIC_INDEX = new int[PacketWrapper.PacketCase.values().length];\n" +
+                    "\n");
+
+        modifiedSrc.append("        static {\n");
+
+        if (allPackets.size() <= PACKET_CASES_PER_METHOD) {
+            appendPacketCasesPuts(modifiedSrc, allPackets, 0);
+            modifiedSrc.append("        }\n");
+        } else {
+            List<List<PacketSpec>> parts = new ArrayList<>();
+
+            for (int from = 0; from < allPackets.size(); from += PACKET_CASES_PER_METHOD)
+                parts.add(allPackets.subList(from, Math.min(from + PACKET_CASES_PER_METHOD, allPackets.size())));
+
+            for (int i = 0; i < parts.size(); i++)
+                modifiedSrc.append("            putPacketCases").append(i).append("();\n");
+
+            modifiedSrc.append("        }\n");
+
+            for (int i = 0; i < parts.size(); i++) {
+                modifiedSrc.append("\n" +
+                        "        private static void putPacketCases").append(i).append("() {\n");
+                appendPacketCasesPuts(modifiedSrc, parts.get(i), i * PACKET_CASES_PER_METHOD);
+                modifiedSrc.append("        }\n");
+            }
+        }
+
+        if (reuseBuilders)
+            modifiedSrc.append("\n" +
+                    "        // Один PacketWrapper.Builder на поток (--reuse_builders): после каждого wrap он очищается\n" +
+                    "        // через clear(), а не создаётся заново. Для виртуальных потоков выигрыша нет - у каждого\n" +
+                    "        // из них будет свой (одноразовый) Builder, как и без этой опции.\n" +
+                    "        static final ThreadLocal<PacketWrapper.Builder> WRAPPER_BUILDER\n" +
+                    "                = ThreadLocal.withInitial(PacketWrapper::newBuilder);\n" +
+                    "\n" +
+                    "        // Очищаем сразу после build(), а не перед следующим wrap - иначе Builder (а он живёт\n" +
+                    "        // столько же, сколько поток) держал бы последний отправленный пакет.\n" +
+                    "        static PacketWrapper buildAndClear(PacketWrapper.Builder builder) {\n" +
+                    "            PacketWrapper wrapper = builder.build();\n" +
+                    "            builder.clear();\n" +
+                    "\n" +
+                    "            return wrapper;\n" +
+                    "        }\n");
+
+        if (instrumented)
+            appendTrafficCounters(modifiedSrc, allPackets);
+
+        if (needsChunking(allPackets)) {
+            List<PacketSpec> sortedPackets = sortedByFieldNumber(allPackets);
+            int from = sortedPackets.get(0).getFieldNumber();
+            long span = rootRangeSpan(sortedPackets);
+
+            appendRangeMethods(modifiedSrc, true, from, span, sortedPackets);
+            appendRangeMethods(modifiedSrc, false, from, span, sortedPackets);
+        }
+    }
+
+    // firstIndex - номер первого из packets в "oneof packet".
+    private void appendPacketCasesPuts(StringBuilder modifiedSrc, List<PacketSpec> packets, int firstIndex) {
+        for (int i = 0; i < packets.size(); i++) {
+            PacketSpec packet = packets.get(i);
+
+            modifiedSrc.append("            PACKET_CASES.put(").append(packet.getCamelName())
+                    .append(".class, PacketWrapper.PacketCase.").append(packet.getUpperName()).append(");\n");
+
+            if (instrumented)
+                modifiedSrc.append("            TRAFFIC_INDEX[PacketWrapper.PacketCase.").append(packet.getUpperName())
+                        .append(".ordinal()] = ").append(firstIndex + i).append(";\n");
+        }
+    }
+
+    private static void appendTrafficCounters(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        modifiedSrc.append("\n" +
+                "        // Счётчики трафика (--instrument). Индекс - номер пакета в \"oneof packet\" (TRAFFIC_INDEX) * "
+                + TRAFFIC_COUNTERS_PER_PACKET + " + номер счётчика:\n" +
+                "        // число wrap, байт wrap, наносекунд wrap, число unwrap, байт unwrap, наносекунд unwrap.\n" +
+                "        // Так же расположены и счётчики в C++ (а не по номерам полей - они могут быть очень большими).\n" +
+                "        static final java.util.concurrent.atomic.LongAdder[] TRAFFIC\n" +
+                "                = new java.util.concurrent.atomic.LongAdder[" + allPackets.size() * TRAFFIC_COUNTERS_PER_PACKET
+                + "];\n" +
+                "\n" +
+                "        static {\n" +
+                "            for (int i = 0; i < TRAFFIC.length; i++)\n" +
+                "                TRAFFIC[i] = new java.util.concurrent.atomic.LongAdder();\n" +
+                "        }\n" +
+                "\n" +
+                "        static void recordWrap(PacketWrapper.PacketCase packetType, int bytes, long nanos) {\n" +
+                "            int base = TRAFFIC_INDEX[packetType.ordinal()] * " + TRAFFIC_COUNTERS_PER_PACKET + ";\n" +
+                "            TRAFFIC[base].increment();\n" +
+                "            TRAFFIC[base + 1].add(bytes);\n" +
+                "            TRAFFIC[base + 2].add(nanos);\n" +
+                "        }\n" +
+                "\n" +
+                "        static void recordUnwrap(PacketWrapper.PacketCase packetType, int bytes, long nanos) {\n" +
+                "            int base = TRAFFIC_INDEX[packetType.ordinal()] * " + TRAFFIC_COUNTERS_PER_PACKET + ";\n" +
+                "            TRAFFIC[base + 3].increment();\n" +
+                "            TRAFFIC[base + 4].add(bytes);\n" +
+                "            TRAFFIC[base + 5].add(nanos);\n" +
+                "        }\n");
+    }
+
+    private static boolean needsChunking(List<PacketSpec> allPackets) {
+        return allPackets.size() * (WRAP_CASE_BYTECODE_ESTIMATE + TABLESWITCH_ENTRY_BYTES)
+                + SWITCH_OVERHEAD_BYTECODE_ESTIMATE > HUGE_METHOD_LIMIT;
+    }
+
+    private static List<PacketSpec> sortedByFieldNumber(List<PacketSpec> allPackets) {
+        List<PacketSpec> sortedPackets = new ArrayList<>(allPackets);
+        sortedPackets.sort(Comparator.comparingInt(PacketSpec::getFieldNumber));
+
+        return sortedPackets;
+    }
+
+    // Наименьший диапазон вида RANGE_LEAF_SIZE * RANGE_FANOUT^n, в который попадают номера полей всех пакетов.
+    // Для номеров полей вплоть до 2^29 - 1 он может не поместиться в int (а дочерние диапазоны - всегда помещаются).
+    private static long rootRangeSpan(List<PacketSpec> sortedPackets) {
+        int from = sortedPackets.get(0).getFieldNumber();
+        int to = sortedPackets.get(sortedPackets.size() - 1).getFieldNumber();
+        long span = RANGE_LEAF_SIZE;
+
+        while (span <= to - from)
+            span *= RANGE_FANOUT;
+
+        return span;
+    }
+
+    private static String rangeMethodName(boolean wrap, long from, long span) {
+        return (wrap ? "wrapFields" : "unwrapFields") + from + "To" + (from + span - 1);
+    }
+
+    private static String rangeMethodCall(boolean wrap, long from, long span) {
+        return rangeMethodName(wrap, from, span) + (wrap
+                ? "(packetType, packet, sequence, ack, ackBitfield)"
+                : "(wrapper, packetType, sequence, ack, ackBitfield)");
+    }
+
+    private static String rootRangeMethodCall(boolean wrap, List<PacketSpec> allPackets) {
+        List<PacketSpec> sortedPackets = sortedByFieldNumber(allPackets);
+
+        return "InternalGeneratedStatics." + rangeMethodCall(
+                wrap, sortedPackets.get(0).getFieldNumber(), rootRangeSpan(sortedPackets));
+    }
+
+    // Метод для пакетов с номерами полей из [from, from + span) и (рекурсивно) все методы ниже него.
+    private void appendRangeMethods(StringBuilder modifiedSrc, boolean wrap,
+                                    long from, long span, List<PacketSpec> packets) {
+        String declStart = wrap ? "        static PacketWrapper " : "        static UnwrappedPacketData ";
+        String name = rangeMethodName(wrap, from, span);
+
+        modifiedSrc.append("\n").append(declStart).append(name).append(wrap
+                ? "(PacketWrapper.PacketCase packetType, Message packet,\n"
+                : "(PacketWrapper wrapper, PacketWrapper.PacketCase packetType,\n");
+
+        for (int i = 0; i < declStart.length() + name.length() + 1; i++)
+            modifiedSrc.append(' ');
+
+        modifiedSrc.append("int sequence, int ack, long ackBitfield) {\n");
+
+        if (span <= RANGE_LEAF_SIZE) {
+            appendRangeLeaf(modifiedSrc, wrap, packets);
+            return;
+        }
+
+        long childSpan = span / RANGE_FANOUT;
+        List<long[]> children = new ArrayList<>();
+        List<List<PacketSpec>> childPackets = new ArrayList<>();
+
+        modifiedSrc.append("            switch ((packetType.getNumber() - ").append(from).append(") / ")
+                .append(childSpan).append(") {\n");
+
+        for (int i = 0, next = 0; i < RANGE_FANOUT && next < packets.size(); i++) {
+            long childFrom = from + i * childSpan;
+            int childEnd = next;
+
+            while (childEnd < packets.size() && packets.get(childEnd).getFieldNumber() < childFrom + childSpan)
+                childEnd++;
+
+            if (childEnd > next) {
+                children.add(new long[] {childFrom, childSpan});
+                childPackets.add(packets.subList(next, childEnd));
+
+                modifiedSrc.append("                case ").append(i).append(":\n" +
+                        "                    return ").append(rangeMethodCall(wrap, childFrom, childSpan)).append(";\n\n");
+            }
+
+            next = childEnd;
+        }
+
+        appendRangeDefault(modifiedSrc, wrap);
+
+        for (int i = 0; i < children.size(); i++)
+            appendRangeMethods(modifiedSrc, wrap, children.get(i)[0], children.get(i)[1], childPackets.get(i));
+    }
+
+    private void appendRangeLeaf(StringBuilder modifiedSrc, boolean wrap, List<PacketSpec> packets) {
+        modifiedSrc.append("            switch (packetType) {\n");
+
+        for (PacketSpec packet : packets) {
+            modifiedSrc.append("                case ").append(packet.getUpperName()).append(":\n");
+
+            if (wrap) {
+                modifiedSrc.append("                    return ");
+                appendWrapperBuilderChain(modifiedSrc, packet, "                            ");
+                modifiedSrc.append(";\n\n");
+            } else
+                modifiedSrc.append("                    return new UnwrappedPacketData(\n" +
+                        "                            sequence, ack, ackBitfield, packetType, wrapper.get")
+                        .append(packet.getCamelName()).append("());\n\n");
+        }
+
+        appendRangeDefault(modifiedSrc, wrap);
+    }
+
+    private static void appendRangeDefault(StringBuilder modifiedSrc, boolean wrap) {
+        modifiedSrc.append("                default:\n");
+        modifiedSrc.append(wrap
+                ? "                    throw new IllegalStateException(\"unexpected packet type \" + packetType);\n"
+                : "                    return null;\n");
+        modifiedSrc.append("            }\n" +
+                "        }\n");
+    }
+
+    private void appendWrapperBuilderChain(StringBuilder modifiedSrc, PacketSpec packet, String indent) {
+        modifiedSrc.append(reuseBuilders
+                        ? "InternalGeneratedStatics.buildAndClear(InternalGeneratedStatics.WRAPPER_BUILDER.get()\n"
+                        : "PacketWrapper.newBuilder()\n")
+                .append(indent).append(".setSequence(sequence)\n")
+                .append(indent).append(".setAck(ack)\n")
+                .append(indent).append(".setAckBitfield(ackBitfield)\n")
+                .append(indent).append(".set").append(packet.getCamelName())
+                .append("((").append(packet.getCamelName()).append(") packet)");
+
+        if (reuseBuilders)
+            modifiedSrc.append(")");
+        else
+            modifiedSrc.append("\n").append(indent).append(".build()");
     }
 
     @Override
-    public void appendGeneratedSourcesWrap(StringBuilder modifiedSrc, List<String> allPackets) {
-        modifiedSrc.append("        String packetClassNameUpper = packet.getClass().getSimpleName().toUpperCase();\n" +
-                "        PacketWrapper.PacketCase packetType = getPacketCase(packet.getClass());\n" +
+    public void appendGeneratedSourcesWrap(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        appendWrapperBuilding(modifiedSrc, allPackets);
+
+        if (instrumented)
+            modifiedSrc.append("\n" +
+                    "        byte[] data = wrapper.toByteArray();\n" +
+                    "        InternalGeneratedStatics.recordWrap(packetType, data.length, System.nanoTime() - startNanos);\n" +
+                    "\n" +
+                    "        return data;\n");
+        else
+            modifiedSrc.append("\n" +
+                    "        return wrapper.toByteArray();\n");
+    }
+
+    public void appendGeneratedSourcesWrapInto(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        appendWrapperBuilding(modifiedSrc, allPackets);
+        modifiedSrc.append("\n" +
+                "        // Сериализуем прямо в переданный буфер (без промежуточного byte[]).\n" +
+                "        com.google.protobuf.CodedOutputStream output\n" +
+                "                = com.google.protobuf.CodedOutputStream.newInstance(buffer);\n" +
+                "\n" +
+                "        wrapper.writeTo(output);\n" +
+                "        output.flush();\n" +
+                "\n");
+
+        if (instrumented)
+            modifiedSrc.append("        int dataLen = output.getTotalBytesWritten();\n" +
+                    "        InternalGeneratedStatics.recordWrap(packetType, dataLen, System.nanoTime() - startNanos);\n" +
+                    "\n" +
+                    "        return dataLen;\n");
+        else
+            modifiedSrc.append("        return output.getTotalBytesWritten();\n");
+    }
+
+    private void appendWrapperBuilding(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        appendStartNanos(modifiedSrc);
+        modifiedSrc.append("        PacketWrapper.PacketCase packetType = ");
+        appendPacketTypeLookup(modifiedSrc, "        ");
+        modifiedSrc.append(";\n" +
+                "\n");
+
+        if (needsChunking(allPackets)) {
+            // Иначе метод превысит HUGE_METHOD_LIMIT и никогда не будет JIT-скомпилирован.
+            modifiedSrc.append("        if (packetType == PacketWrapper.PacketCase.PACKET_NOT_SET)\n" +
+                    "            // Код для пакетов этого типа отсутствует в InternalGeneratedStatics.\n" +
+                    "            // Нужно добавить! (исп. awd-ptrans-codegen)\n" +
+                    "            throw new RuntimeException(\"no implemented transformer for packet type \"\n" +
+                    "                    + packet.getClass().getSimpleName().toUpperCase()\n" +
+                    "                    + \" (\" + packet.getClass().getName() + \")\");\n" +
+                    "\n" +
+                    "        // Пакет выбирается по диапазонам номеров полей (см. InternalGeneratedStatics).\n" +
+                    "        PacketWrapper wrapper = ").append(rootRangeMethodCall(true, allPackets)).append(";\n");
+
+            return;
+        }
+
+        modifiedSrc.append("        PacketWrapper wrapper;\n" +
                 "\n" +
                 "        switch (packetType) {\n");
 
-        for (String packetType : allPackets)
-            modifiedSrc.append("            case ").append(packetType.toUpperCase()).append(":\n")
-                    .append("                return PacketWrapper.newBuilder()\n" +
-                            "                        .setSequence(sequence)\n" +
-                            "                        .setAck(ack)\n" +
-                            "                        .setAckBitfield(ackBitfield)\n" +
-                            "                        .set").append(Convert.snakeToCamel(packetType))
-                    .append("((").append(Convert.snakeToCamel(packetType))
-                    .append(") packet)\n" +
-                            "                        .build()\n" +
-                            "                        .toByteArray();\n\n");
+        for (PacketSpec packet : allPackets) {
+            modifiedSrc.append("            case ").append(packet.getUpperName()).append(":\n" +
+                    "                wrapper = ");
+            appendWrapperBuilderChain(modifiedSrc, packet, "                        ");
+            modifiedSrc.append(";\n" +
+                    "\n" +
+                    "                break;\n\n");
+        }
 
         modifiedSrc.append("            default:\n" +
                 "                // Код \"case ...\" для пакетов этого типа отсутствует выше.\n" +
                 "                // Нужно добавить! (исп. awd-ptrans-codegen)\n" +
                 "                throw new RuntimeException(\"no implemented transformer for packet type \"\n" +
-                "                        + packetClassNameUpper + \" (\" + packet.getClass().getName() + \")\");\n" +
+                "                        + packet.getClass().getSimpleName().toUpperCase()\n" +
+                "                        + \" (\" + packet.getClass().getName() + \")\");\n" +
                 "        }\n");
     }
 
+    private static void appendPacketTypeLookup(StringBuilder modifiedSrc, String indent) {
+        modifiedSrc.append("InternalGeneratedStatics.PACKET_CASES\n")
+                .append(indent).append("        .getOrDefault(packet.getClass(), PacketWrapper.PacketCase.PACKET_NOT_SET)");
+    }
+
     @Override
-    public void appendGeneratedSourcesUnrap(StringBuilder modifiedSrc, List<String> allPackets) {
-        modifiedSrc.append("        PacketWrapper wrapper = PacketWrapper.parseFrom(data);\n" +
-                "\n" +
+    public void appendGeneratedSourcesUnrap(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        appendStartNanos(modifiedSrc);
+        modifiedSrc.append("        PacketWrapper wrapper = PacketWrapper.parseFrom(data);\n");
+        appendUnwrapDispatch(modifiedSrc, allPackets, "data.length");
+    }
+
+    public void appendGeneratedSourcesUnwrapInPlace(StringBuilder modifiedSrc, List<PacketSpec> allPackets,
+                                                    String inputArgs, String dataLenExpr) {
+        appendStartNanos(modifiedSrc);
+        modifiedSrc.append("        // Разбираем пакет прямо из переданного буфера (без копирования в отдельный byte[]).\n" +
+                "        PacketWrapper wrapper = PacketWrapper.parser().parseFrom(\n" +
+                "                com.google.protobuf.CodedInputStream.newInstance(").append(inputArgs).append("));\n");
+        appendUnwrapDispatch(modifiedSrc, allPackets, dataLenExpr);
+    }
+
+    private void appendUnwrapDispatch(StringBuilder modifiedSrc, List<PacketSpec> allPackets, String dataLenExpr) {
+        modifiedSrc.append("\n" +
                 "        int  sequence    = wrapper.getSequence();\n" +
                 "        int  ack         = wrapper.getAck();\n" +
                 "        long ackBitfield = wrapper.getAckBitfield();\n" +
                 "\n" +
                 "        PacketWrapper.PacketCase packetType = wrapper.getPacketCase();\n" +
-                "\n" +
-                "        switch (packetType) {\n");
+                "\n");
+
+        if (instrumented)
+            modifiedSrc.append("        InternalGeneratedStatics.recordUnwrap(packetType, ").append(dataLenExpr)
+                    .append(", System.nanoTime() - startNanos);\n" +
+                    "\n");
+
+        if (needsChunking(allPackets)) {
+            // Иначе метод превысит HUGE_METHOD_LIMIT и никогда не будет JIT-скомпилирован.
+            modifiedSrc.append("        if (packetType == PacketWrapper.PacketCase.PACKET_NOT_SET)\n" +
+                    "            // Неизвестный пакет - он будет проигнорирован (не передан никакому PacketListener'у).\n" +
+                    "            return null;\n" +
+                    "\n" +
+                    "        // Пакет выбирается по диапазонам номеров полей (см. InternalGeneratedStatics).\n" +
+                    "        return ").append(rootRangeMethodCall(false, allPackets)).append(";\n");
+
+            return;
+        }
+
+        modifiedSrc.append("        switch (packetType) {\n");
 
-        for (String packetType : allPackets)
-            modifiedSrc.append("            case ").append(packetType.toUpperCase()).append(":\n" +
-                    "                return new UnwrappedPacketData(\n" +
-                    "                        sequence, ack, ackBitfield, packetType, wrapper.get")
-                    .append(Convert.snakeToCamel(packetType)).append("());\n\n");
+        appendUnwrapCases(modifiedSrc, allPackets, "            ", "return ", ";\n\n");
 
         modifiedSrc.append("            default:\n" +
                 "                // Неизвестный пакет - он будет проигнорирован (не передан никакому PacketListener'у).\n" +
@@ -125,4 +642,510 @@ public class JavaCodeGenerator implements CodeGenerator {
                 "        }\n");
     }
 
+    private void appendStartNanos(StringBuilder modifiedSrc) {
+        if (instrumented)
+            modifiedSrc.append("        long startNanos = System.nanoTime();\n" +
+                    "\n");
+    }
+
+    private void appendUnwrapCases(StringBuilder modifiedSrc, List<PacketSpec> allPackets,
+                                   String indent, String resultStart, String resultEnd) {
+        for (PacketSpec packet : allPackets)
+            modifiedSrc.append(indent).append("case ").append(packet.getUpperName()).append(":\n")
+                    .append(indent).append("    ").append(resultStart).append("new UnwrappedPacketData(\n")
+                    .append(indent).append("            sequence, ack, ackBitfield, packetType, wrapper.get")
+                    .append(packet.getCamelName()).append("())").append(resultEnd);
+    }
+
+    @Override
+    public void appendGeneratedSourcesWrapBatch(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        // Формат пачки: [длина][PacketWrapper только с заголовком], а затем для каждого пакета -
+        // [длина][PacketWrapper только с этим пакетом]. Вложенный PacketWrapper с одним-единственным
+        // полем из "oneof packet" в protobuf кодируется ровно как это поле, поэтому его можно записать
+        // через writeMessage(номер поля, пакет) без отдельного PacketWrapper.Builder на каждый пакет.
+        appendStartNanos(modifiedSrc);
+        modifiedSrc.append("        PacketWrapper header = ").append(reuseBuilders
+                ? "InternalGeneratedStatics.buildAndClear(InternalGeneratedStatics.WRAPPER_BUILDER.get()\n"
+                : "PacketWrapper.newBuilder()\n")
+                .append("                .setSequence(sequence)\n" +
+                "                .setAck(ack)\n" +
+                "                .setAckBitfield(ackBitfield)")
+                .append(reuseBuilders ? ");\n" : "\n                .build();\n")
+                .append("\n" +
+                "        int[] fieldNumbers = new int[packets.size()];\n");
+
+        if (instrumented)
+            modifiedSrc.append("        PacketWrapper.PacketCase[] packetTypes = new PacketWrapper.PacketCase[packets.size()];\n");
+
+        modifiedSrc.append("        int batchSize = com.google.protobuf.CodedOutputStream.computeMessageSizeNoTag(header);\n" +
+                "\n" +
+                "        for (int i = 0; i < fieldNumbers.length; i++) {\n" +
+                "            Message packet = packets.get(i);\n" +
+                "            PacketWrapper.PacketCase packetType = ");
+        appendPacketTypeLookup(modifiedSrc, "            ");
+        modifiedSrc.append(";\n" +
+                "\n" +
+                "            if (packetType == PacketWrapper.PacketCase.PACKET_NOT_SET)\n" +
+                "                // Код для пакетов этого типа отсутствует в InternalGeneratedStatics.\n" +
+                "                // Нужно добавить! (исп. awd-ptrans-codegen)\n" +
+                "                throw new RuntimeException(\"no implemented transformer for packet type \"\n" +
+                "                        + packet.getClass().getSimpleName().toUpperCase()\n" +
+                "                        + \" (\" + packet.getClass().getName() + \")\");\n" +
+                "\n" +
+                "            fieldNumbers[i] = packetType.getNumber();\n" +
+                (instrumented ? "            packetTypes[i] = packetType;\n" : "") +
+                "            int wrapperSize = com.google.protobuf.CodedOutputStream.computeMessageSize(fieldNumbers[i], packet);\n" +
+                "            batchSize += com.google.protobuf.CodedOutputStream.computeUInt32SizeNoTag(wrapperSize) + wrapperSize;\n" +
+                "        }\n" +
+                "\n" +
+                "        byte[] batch = new byte[batchSize];\n" +
+                "        com.google.protobuf.CodedOutputStream output\n" +
+                "                = com.google.protobuf.CodedOutputStream.newInstance(batch);\n" +
+                "\n" +
+                "        output.writeMessageNoTag(header);\n" +
+                "\n" +
+                "        for (int i = 0; i < fieldNumbers.length; i++) {\n" +
+                "            Message packet = packets.get(i);\n" +
+                "            output.writeUInt32NoTag(com.google.protobuf.CodedOutputStream.computeMessageSize(fieldNumbers[i], packet));\n" +
+                "            output.writeMessage(fieldNumbers[i], packet);\n" +
+                "        }\n" +
+                "\n" +
+                "        output.checkNoSpaceLeft();\n" +
+                "\n");
+
+        if (instrumented)
+            modifiedSrc.append("        // Время всей пачки делится поровну между её пакетами, а байты (вместе с длиной) считаются\n" +
+                    "        // для каждого пакета отдельно. Заголовок пачки ни одному из пакетов не приписывается.\n" +
+                    "        long nanosPerPacket = (System.nanoTime() - startNanos) / Math.max(fieldNumbers.length, 1);\n" +
+                    "\n" +
+                    "        for (int i = 0; i < fieldNumbers.length; i++) {\n" +
+                    "            int wrapperSize = com.google.protobuf.CodedOutputStream.computeMessageSize(fieldNumbers[i], packets.get(i));\n" +
+                    "            InternalGeneratedStatics.recordWrap(packetTypes[i],\n" +
+                    "                    com.google.protobuf.CodedOutputStream.computeUInt32SizeNoTag(wrapperSize) + wrapperSize,\n" +
+                    "                    nanosPerPacket);\n" +
+                    "        }\n" +
+                    "\n");
+
+        modifiedSrc.append("        return batch;\n");
+    }
+
+    @Override
+    public void appendGeneratedSourcesUnwrapBatch(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        modifiedSrc.append("        com.google.protobuf.CodedInputStream input\n" +
+                "                = com.google.protobuf.CodedInputStream.newInstance(data, offset, length);\n" +
+                "        com.google.protobuf.ExtensionRegistryLite noExtensions\n" +
+                "                = com.google.protobuf.ExtensionRegistryLite.getEmptyRegistry();\n" +
+                "\n" +
+                "        PacketWrapper header = input.readMessage(PacketWrapper.parser(), noExtensions);\n" +
+                "\n" +
+                "        int  sequence    = header.getSequence();\n" +
+                "        int  ack         = header.getAck();\n" +
+                "        long ackBitfield = header.getAckBitfield();\n" +
+                "\n" +
+                "        List<UnwrappedPacketData> packets = new java.util.ArrayList<>();\n" +
+                "\n" +
+                "        while (!input.isAtEnd()) {\n");
+
+        if (instrumented)
+            modifiedSrc.append("            long startNanos = System.nanoTime();\n" +
+                    "            int startBytes = input.getTotalBytesRead();\n" +
+                    "\n");
+
+        modifiedSrc.append("            PacketWrapper wrapper = input.readMessage(PacketWrapper.parser(), noExtensions);\n" +
+                "            PacketWrapper.PacketCase packetType = wrapper.getPacketCase();\n" +
+                "\n");
+
+        if (instrumented)
+            // Заголовок пачки ни одному из пакетов не приписывается - как и в wrapBatch.
+            modifiedSrc.append("            InternalGeneratedStatics.recordUnwrap(packetType,\n" +
+                    "                    input.getTotalBytesRead() - startBytes, System.nanoTime() - startNanos);\n" +
+                    "\n");
+
+        if (needsChunking(allPackets)) {
+            // Иначе метод превысит HUGE_METHOD_LIMIT и никогда не будет JIT-скомпилирован.
+            modifiedSrc.append("            // Неизвестный пакет - он будет проигнорирован (не передан никакому PacketListener'у).\n" +
+                    "            // Остальные выбираются по диапазонам номеров полей (см. InternalGeneratedStatics).\n" +
+                    "            if (packetType != PacketWrapper.PacketCase.PACKET_NOT_SET)\n" +
+                    "                packets.add(").append(rootRangeMethodCall(false, allPackets)).append(");\n" +
+                    "        }\n");
+        } else {
+            modifiedSrc.append("            switch (packetType) {\n");
+
+            appendUnwrapCases(modifiedSrc, allPackets, "                ", "packets.add(",
+                    ");\n                    break;\n\n");
+
+            modifiedSrc.append("                default:\n" +
+                    "                    // Неизвестный пакет - он будет проигнорирован (не передан никакому PacketListener'у).\n" +
+                    "                    break;\n" +
+                    "            }\n" +
+                    "        }\n");
+        }
+
+        modifiedSrc.append("\n" +
+                "        return packets;\n");
+    }
+
+    public void appendGeneratedSourcesPeekHeader(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        modifiedSrc.append("        com.google.protobuf.CodedInputStream input\n" +
+                "                = com.google.protobuf.CodedInputStream.newInstance(data, offset, length);\n" +
+                "\n" +
+                "        int  sequence    = 0;\n" +
+                "        int  ack         = 0;\n" +
+                "        long ackBitfield = 0;\n" +
+                "\n" +
+                "        PacketWrapper.PacketCase packetType = PacketWrapper.PacketCase.PACKET_NOT_SET;\n" +
+                "        int tag;\n" +
+                "\n" +
+                "        // Читаем только заголовок и номер поля пакета, а содержимое самого пакета\n" +
+                "        // пропускаем без разбора. Полностью разобрать его можно будет позже при помощи\n" +
+                "        // internalGeneratedUnwrap(data, offset, length).\n" +
+                "        while ((tag = input.readTag()) != 0) {\n" +
+                "            int fieldNumber = com.google.protobuf.WireFormat.getTagFieldNumber(tag);\n" +
+                "\n" +
+                "            switch (fieldNumber) {\n" +
+                "                case PacketWrapper.SEQUENCE_FIELD_NUMBER:\n" +
+                "                case PacketWrapper.ACK_FIELD_NUMBER:\n" +
+                "                case PacketWrapper.ACK_BITFIELD_FIELD_NUMBER:\n" +
+                "                    long value;\n" +
+                "\n" +
+                "                    switch (com.google.protobuf.WireFormat.getTagWireType(tag)) {\n" +
+                "                        case com.google.protobuf.WireFormat.WIRETYPE_VARINT:\n" +
+                "                            value = input.readRawVarint64();\n" +
+                "                            break;\n" +
+                "\n" +
+                "                        case com.google.protobuf.WireFormat.WIRETYPE_FIXED32:\n" +
+                "                            value = input.readRawLittleEndian32() & 0xFFFFFFFFL;\n" +
+                "                            break;\n" +
+                "\n" +
+                "                        case com.google.protobuf.WireFormat.WIRETYPE_FIXED64:\n" +
+                "                            value = input.readRawLittleEndian64();\n" +
+                "                            break;\n" +
+                "\n" +
+                "                        default:\n" +
+                "                            throw new com.google.protobuf.InvalidProtocolBufferException(\n" +
+                "                                    \"unexpected wire type of packet header field \" + fieldNumber);\n" +
+                "                    }\n" +
+                "\n" +
+                "                    if (fieldNumber == PacketWrapper.SEQUENCE_FIELD_NUMBER)\n" +
+                "                        sequence = (int) value;\n" +
+                "                    else if (fieldNumber == PacketWrapper.ACK_FIELD_NUMBER)\n" +
+                "                        ack = (int) value;\n" +
+                "                    else\n" +
+                "                        ackBitfield = value;\n" +
+                "\n" +
+                "                    break;\n" +
+                "\n");
+
+        if (needsChunking(allPackets))
+            // Отдельная ветка "case" на каждый пакет раздула бы этот метод сверх HUGE_METHOD_LIMIT.
+            modifiedSrc.append("                default:\n" +
+                    "                    PacketWrapper.PacketCase peekedType = PacketWrapper.PacketCase.forNumber(fieldNumber);\n" +
+                    "\n" +
+                    "                    if (peekedType != null)\n" +
+                    "                        packetType = peekedType;\n" +
+                    "\n" +
+                    "                    input.skipField(tag);\n" +
+                    "                    break;\n");
+        else {
+            for (PacketSpec packet : allPackets)
+                modifiedSrc.append("                case PacketWrapper.").append(packet.getUpperName())
+                        .append("_FIELD_NUMBER:\n" +
+                        "                    packetType = PacketWrapper.PacketCase.").append(packet.getUpperName())
+                        .append(";\n" +
+                        "                    input.skipField(tag);\n" +
+                        "                    break;\n\n");
+
+            modifiedSrc.append("                default:\n" +
+                    "                    input.skipField(tag);\n" +
+                    "                    break;\n");
+        }
+
+        modifiedSrc.append("            }\n" +
+                "        }\n" +
+                "\n" +
+                "        return new PeekedPacketHeader(sequence, ack, ackBitfield, packetType, data, offset, length);\n");
+    }
+
+    public void appendGeneratedSourcesTrafficSnapshot(StringBuilder modifiedSrc) {
+        if (!instrumented) {
+            modifiedSrc.append("        // Код сгенерирован без --instrument - счётчиков трафика нет.\n");
+            modifiedSrc.append("        return java.util.Collections.emptyMap();\n");
+
+            return;
+        }
+
+        modifiedSrc.append("        // Значения (по типам пакетов): число wrap, байт wrap, наносекунд wrap,\n" +
+                "        //                            число unwrap, байт unwrap, наносекунд unwrap.\n" +
+                "        // Пакеты из пачек (wrapBatch/unwrapBatch) тоже учитываются - каждый по отдельности.\n" +
+                "        Map<PacketWrapper.PacketCase, long[]> snapshot = new java.util.EnumMap<>(PacketWrapper.PacketCase.class);\n" +
+                "\n" +
+                "        for (PacketWrapper.PacketCase packetType : PacketWrapper.PacketCase.values()) {\n" +
+                "            if (packetType == PacketWrapper.PacketCase.PACKET_NOT_SET)\n" +
+                "                continue;\n" +
+                "\n" +
+                "            int base = InternalGeneratedStatics.TRAFFIC_INDEX[packetType.ordinal()] * " + TRAFFIC_COUNTERS_PER_PACKET + ";\n" +
+                "            long[] counters = new long[" + TRAFFIC_COUNTERS_PER_PACKET + "];\n" +
+                "\n" +
+                "            for (int i = 0; i < counters.length; i++)\n" +
+                "                counters[i] = InternalGeneratedStatics.TRAFFIC[base + i].sum();\n" +
+                "\n" +
+                "            snapshot.put(packetType, counters);\n" +
+                "        }\n" +
+                "\n" +
+                "        return snapshot;\n");
+    }
+
+    public void appendGeneratedSourcesDispatchTable(StringBuilder modifiedSrc, List<PacketSpec> allPackets) {
+        modifiedSrc.append("        public interface PacketHandler<T extends Message> {\n" +
+                "            void handle(UnwrappedPacketData data, T packet);\n" +
+                "        }\n" +
+                "\n" +
+                "        // Индекс - номер поля пакета в \"oneof packet\" (он же PacketWrapper.PacketCase.getNumber()).\n" +
+                "        private static final int TABLE_SIZE = " + (PacketSpec.maxFieldNumber(allPackets) + 1) + ";\n" +
+                "\n" +
+                "        // Обработчики регистрируются только через типизированные методы on...() ниже, поэтому\n" +
+                "        // в каждой ячейке лежит обработчик именно того типа пакета, номер поля которого - её индекс.\n" +
+                "        private final PacketHandler<?>[] handlers = new PacketHandler<?>[TABLE_SIZE];\n");
+
+        for (PacketSpec packet : allPackets)
+            modifiedSrc.append("\n" +
+                    "        public void on").append(packet.getCamelName())
+                    .append("(PacketHandler<").append(packet.getCamelName()).append("> handler) {\n" +
+                    "            handlers[PacketWrapper.").append(packet.getUpperName())
+                    .append("_FIELD_NUMBER] = handler;\n" +
+                    "        }\n");
+
+        modifiedSrc.append("\n" +
+                "        @SuppressWarnings (\"unchecked\")\n" +
+                "        public boolean dispatch(UnwrappedPacketData data) {\n" +
+                "            if (data == null)\n" +
+                "                // Неизвестный пакет (см. internalGeneratedUnwrap).\n" +
+                "                return false;\n" +
+                "\n" +
+                "            PacketHandler<Message> handler\n" +
+                "                    = (PacketHandler<Message>) handlers[data.getPacketType().getNumber()];\n" +
+                "\n" +
+                "            if (handler == null)\n" +
+                "                return false;\n" +
+                "\n" +
+                "            handler.handle(data, data.getPacket());\n" +
+                "\n" +
+                "            return true;\n" +
+                "        }\n");
+    }
+
+    // Не зависит от набора пакетов - одинаков в Java и C++ (см. CppCodeGenerator), чтобы обе стороны
+    // одинаково считали ack/ackBitfield, RTT и потери.
+    public void appendGeneratedSourcesSequenceTracker(StringBuilder modifiedSrc) {
+        modifiedSrc.append("        // Размер кольцевых буферов отправленных и полученных пакетов (степень двойки).\n" +
+                "        public static final int RING_SIZE = " + SequenceTrackerSpec.RING_SIZE + ";\n" +
+                "\n" +
+                "        // Число предыдущих пакетов, подтверждаемых битами ackBitfield (ack - 1 - i для бита i).\n" +
+                "        public static final int ACK_BITS = " + SequenceTrackerSpec.ACK_BITS + ";\n" +
+                "\n" +
+                "        private static final long SEQUENCE_MASK = 0xFFFFFFFFL;\n" +
+                "\n" +
+                "        // Состояние отправленного пакета - младшие 2 бита записи в sentEntries (старшие - его sequence).\n" +
+                "        // Запись меняется одним compareAndSet, поэтому пакет подтверждается или теряется ровно один раз.\n" +
+                "        private static final long EMPTY = 0, SENT = 1, ACKED = 2, LOST = 3;\n" +
+                "\n" +
+                "        // Вес нового значения в скользящих средних RTT и доли потерь.\n" +
+                "        private static final double SMOOTHING = 0.125;\n" +
+                "\n" +
+                "        private final java.util.concurrent.atomic.AtomicInteger localSequence\n" +
+                "                = new java.util.concurrent.atomic.AtomicInteger();\n" +
+                "\n" +
+                "        private final java.util.concurrent.atomic.AtomicLongArray sentEntries\n" +
+                "                = new java.util.concurrent.atomic.AtomicLongArray(RING_SIZE);\n" +
+                "\n" +
+                "        private final java.util.concurrent.atomic.AtomicLongArray sentTimes\n" +
+                "                = new java.util.concurrent.atomic.AtomicLongArray(RING_SIZE);\n" +
+                "\n" +
+                "        // Записи (sequence << 1) | 1, так что 0 означает \"ничего не получено\".\n" +
+                "        private final java.util.concurrent.atomic.AtomicLongArray receivedEntries\n" +
+                "                = new java.util.concurrent.atomic.AtomicLongArray(RING_SIZE);\n" +
+                "\n" +
+                "        // Последний (с учётом переполнения) полученный sequence или -1, если ничего не получено.\n" +
+                "        private final java.util.concurrent.atomic.AtomicLong remoteSequence\n" +
+                "                = new java.util.concurrent.atomic.AtomicLong(-1);\n" +
+                "\n" +
+                "        // Отправленные пакеты до этого sequence включительно уже проверены на потерю.\n" +
+                "        private final java.util.concurrent.atomic.AtomicLong lossCheckedSequence\n" +
+                "                = new java.util.concurrent.atomic.AtomicLong();\n" +
+                "\n" +
+                "        private final java.util.concurrent.atomic.AtomicLong sentPackets\n" +
+                "                = new java.util.concurrent.atomic.AtomicLong();\n" +
+                "\n" +
+                "        private final java.util.concurrent.atomic.AtomicLong ackedPackets\n" +
+                "                = new java.util.concurrent.atomic.AtomicLong();\n" +
+                "\n" +
+                "        private final java.util.concurrent.atomic.AtomicLong lostPackets\n" +
+                "                = new java.util.concurrent.atomic.AtomicLong();\n" +
+                "\n" +
+                "        // Скользящие средние (биты double): RTT в миллисекундах (-1 - ещё нет ни одного замера)\n" +
+                "        // и доля потерянных пакетов (от 0 до 1).\n" +
+                "        private final java.util.concurrent.atomic.AtomicLong roundTripTimeBits\n" +
+                "                = new java.util.concurrent.atomic.AtomicLong(Double.doubleToRawLongBits(-1.0));\n" +
+                "\n" +
+                "        private final java.util.concurrent.atomic.AtomicLong packetLossBits\n" +
+                "                = new java.util.concurrent.atomic.AtomicLong(Double.doubleToRawLongBits(0.0));\n" +
+                "\n" +
+                "        // Вызывается перед отправкой каждого пакета. Возвращает sequence для wrap.\n" +
+                "        public int nextSequence() {\n" +
+                "            int sequence = localSequence.incrementAndGet();\n" +
+                "            int slot = sequence & (RING_SIZE - 1);\n" +
+                "\n" +
+                "            // Пакет, отправленный RING_SIZE пакетов назад, так и не был ни подтверждён, ни признан потерянным.\n" +
+                "            if ((sentEntries.getAndSet(slot, EMPTY) & 3) == SENT)\n" +
+                "                onLost();\n" +
+                "\n" +
+                "            sentTimes.set(slot, System.nanoTime());\n" +
+                "\n" +
+                "            // Другой поток (с sequence на RING_SIZE больше или меньше) мог успеть занять эту же ячейку\n" +
+                "            // между двумя getAndSet - его пакет тоже не должен пропасть из счётчиков.\n" +
+                "            if ((sentEntries.getAndSet(slot, sentEntry(sequence, SENT)) & 3) == SENT)\n" +
+                "                onLost();\n" +
+                "\n" +
+                "            sentPackets.incrementAndGet();\n" +
+                "\n" +
+                "            return sequence;\n" +
+                "        }\n" +
+                "\n" +
+                "        // ack для wrap - последний полученный sequence.\n" +
+                "        public int getAck() {\n" +
+                "            long remote = remoteSequence.get();\n" +
+                "\n" +
+                "            return remote < 0 ? 0 : (int) remote;\n" +
+                "        }\n" +
+                "\n" +
+                "        // ackBitfield для wrap - какие из ACK_BITS пакетов перед ack были получены.\n" +
+                "        public long getAckBitfield() {\n" +
+                "            long remote = remoteSequence.get();\n" +
+                "            long ackBitfield = 0;\n" +
+                "\n" +
+                "            if (remote < 0)\n" +
+                "                return ackBitfield;\n" +
+                "\n" +
+                "            for (int i = 0; i < ACK_BITS; i++) {\n" +
+                "                int sequence = (int) remote - 1 - i;\n" +
+                "\n" +
+                "                if (receivedEntries.get(sequence & (RING_SIZE - 1)) == receivedEntry(sequence))\n" +
+                "                    ackBitfield |= 1L << i;\n" +
+                "            }\n" +
+                "\n" +
+                "            return ackBitfield;\n" +
+                "        }\n" +
+                "\n" +
+                "        // Вызывается для каждого полученного пакета (с его sequence, ack и ackBitfield после unwrap).\n" +
+                "        // Возвращает false для повторно полученных и слишком старых пакетов - их следует проигнорировать.\n" +
+                "        public boolean onReceived(int sequence, int ack, long ackBitfield) {\n" +
+                "            long remote = remoteSequence.get();\n" +
+                "\n" +
+                "            if (remote >= 0 && (int) remote - sequence >= RING_SIZE)\n" +
+                "                return false;\n" +
+                "\n" +
+                "            if (receivedEntries.getAndSet(sequence & (RING_SIZE - 1), receivedEntry(sequence)) == receivedEntry(sequence))\n" +
+                "                return false;\n" +
+                "\n" +
+                "            while ((remote = remoteSequence.get()) < 0 || isNewer(sequence, (int) remote))\n" +
+                "                if (remoteSequence.compareAndSet(remote, sequence & SEQUENCE_MASK))\n" +
+                "                    break;\n" +
+                "\n" +
+                "            long now = System.nanoTime();\n" +
+                "            onAcked(ack, now);\n" +
+                "\n" +
+                "            for (int i = 0; i < ACK_BITS; i++)\n" +
+                "                if ((ackBitfield & (1L << i)) != 0)\n" +
+                "                    onAcked(ack - 1 - i, now);\n" +
+                "\n" +
+                "            detectLosses(ack);\n" +
+                "\n" +
+                "            return true;\n" +
+                "        }\n" +
+                "\n" +
+                "        // Сглаженное время от отправки пакета до получения его подтверждения (-1, пока нет ни одного).\n" +
+                "        public double getRoundTripTimeMillis() {\n" +
+                "            return Double.longBitsToDouble(roundTripTimeBits.get());\n" +
+                "        }\n" +
+                "\n" +
+                "        // Сглаженная доля потерянных пакетов среди подтверждённых и потерянных (от 0 до 1).\n" +
+                "        public double getPacketLoss() {\n" +
+                "            return Double.longBitsToDouble(packetLossBits.get());\n" +
+                "        }\n" +
+                "\n" +
+                "        public long getSentPackets() {\n" +
+                "            return sentPackets.get();\n" +
+                "        }\n" +
+                "\n" +
+                "        public long getAckedPackets() {\n" +
+                "            return ackedPackets.get();\n" +
+                "        }\n" +
+                "\n" +
+                "        public long getLostPackets() {\n" +
+                "            return lostPackets.get();\n" +
+                "        }\n" +
+                "\n" +
+                "        private void onAcked(int sequence, long now) {\n" +
+                "            int slot = sequence & (RING_SIZE - 1);\n" +
+                "\n" +
+                "            if (!sentEntries.compareAndSet(slot, sentEntry(sequence, SENT), sentEntry(sequence, ACKED)))\n" +
+                "                return;\n" +
+                "\n" +
+                "            long sentTime = sentTimes.get(slot);\n" +
+                "            ackedPackets.incrementAndGet();\n" +
+                "            updateAverage(packetLossBits, 0.0);\n" +
+                "\n" +
+                "            // Если ячейку уже занял более новый пакет, время отправки могло быть перезаписано.\n" +
+                "            if (sentEntries.get(slot) == sentEntry(sequence, ACKED))\n" +
+                "                updateAverage(roundTripTimeBits, (now - sentTime) / 1000000.0);\n" +
+                "        }\n" +
+                "\n" +
+                "        // Пакеты старше ack более чем на ACK_BITS уже не могут быть подтверждены - неподтверждённые потеряны.\n" +
+                "        private void detectLosses(int ack) {\n" +
+                "            int lastLost = ack - ACK_BITS - 1;\n" +
+                "            long checked;\n" +
+                "\n" +
+                "            while (isNewer(lastLost, (int) (checked = lossCheckedSequence.get()))) {\n" +
+                "                if (lossCheckedSequence.compareAndSet(checked, lastLost & SEQUENCE_MASK)) {\n" +
+                "                    int first = lastLost - (int) checked > RING_SIZE ? lastLost - RING_SIZE + 1 : (int) checked + 1;\n" +
+                "\n" +
+                "                    for (int sequence = first; !isNewer(sequence, lastLost); sequence++)\n" +
+                "                        if (sentEntries.compareAndSet(sequence & (RING_SIZE - 1),\n" +
+                "                                sentEntry(sequence, SENT), sentEntry(sequence, LOST)))\n" +
+                "                            onLost();\n" +
+                "\n" +
+                "                    return;\n" +
+                "                }\n" +
+                "            }\n" +
+                "        }\n" +
+                "\n" +
+                "        private void onLost() {\n" +
+                "            lostPackets.incrementAndGet();\n" +
+                "            updateAverage(packetLossBits, 1.0);\n" +
+                "        }\n" +
+                "\n" +
+                "        private static void updateAverage(java.util.concurrent.atomic.AtomicLong averageBits, double sample) {\n" +
+                "            long oldBits, newBits;\n" +
+                "\n" +
+                "            do {\n" +
+                "                oldBits = averageBits.get();\n" +
+                "                double average = Double.longBitsToDouble(oldBits);\n" +
+                "                newBits = Double.doubleToRawLongBits(average < 0 ? sample : average + (sample - average) * SMOOTHING);\n" +
+                "            } while (!averageBits.compareAndSet(oldBits, newBits));\n" +
+                "        }\n" +
+                "\n" +
+                "        // Сравнение с учётом переполнения sequence (как в TCP).\n" +
+                "        private static boolean isNewer(int sequence, int than) {\n" +
+                "            return sequence - than > 0;\n" +
+                "        }\n" +
+                "\n" +
+                "        private static long sentEntry(int sequence, long state) {\n" +
+                "            return (sequence & SEQUENCE_MASK) << 2 | state;\n" +
+                "        }\n" +
+                "\n" +
+                "        private static long receivedEntry(int sequence) {\n" +
+                "            return (sequence & SEQUENCE_MASK) << 1 | 1;\n" +
+                "        }\n");
+    }
+
 }
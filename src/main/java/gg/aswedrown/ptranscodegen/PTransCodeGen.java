@@ -2,10 +2,17 @@ package gg.aswedrown.ptranscodegen;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class PTransCodeGen {
 
@@ -18,118 +25,348 @@ public class PTransCodeGen {
     private static final String PROTO_ARG = "--proto=";
     private static final String JAVA_SRC_ARG = "--java_src=";
     private static final String CPP_SRC_ARG = "--cpp_src=";
-
-    private static final String ALL_PACKETS_LIST_SPEC_START_IDENTIFIER = "oneof packet {";
-    private static final String PACKET_WRAPPER_CLASS_NAME = "PacketWrapper";
+    private static final String INSTRUMENT_ARG = "--instrument";
+    private static final String REUSE_BUILDERS_ARG = "--reuse_builders";
+    private static final String CACHE_ARG = "--cache=";
+    private static final String CONFIG_ARG = "--config=";
+    private static final String THREADS_ARG = "--threads=";
+    private static final String WATCH_ARG = "--watch";
 
     public static void main(String[] args) {
         System.out.println(GREETING);
 
-        if (args.length != 3) {
-            wrongUsage();
-            return;
-        }
+        List<CodeGenConfig> configs;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean watch = false;
 
-        String protoPath = null, javaSrcPath = null, cppSrcPath = null;
+        // --watch относится ко всему процессу, а не к отдельному запуску - убираем его заранее.
+        List<String> argsList = new ArrayList<>();
 
         for (String arg : args) {
-            if (arg.toLowerCase().startsWith(PROTO_ARG))
-                protoPath = arg.substring(PROTO_ARG.length());
-            else if (arg.toLowerCase().startsWith(JAVA_SRC_ARG))
-                javaSrcPath = arg.substring(JAVA_SRC_ARG.length());
-            else if (arg.toLowerCase().startsWith(CPP_SRC_ARG))
-                cppSrcPath = arg.substring(CPP_SRC_ARG.length());
+            if (arg.equalsIgnoreCase(WATCH_ARG))
+                watch = true;
+            else
+                argsList.add(arg);
         }
 
-        if (protoPath == null || javaSrcPath == null || cppSrcPath == null) {
-            wrongUsage();
-            return;
+        args = argsList.toArray(new String[0]);
+
+        if (args.length > 0 && args[0].toLowerCase().startsWith(CONFIG_ARG)) {
+            File configFile = new File(args[0].substring(CONFIG_ARG.length()));
+
+            for (int i = 1; i < args.length; i++) {
+                if (!args[i].toLowerCase().startsWith(THREADS_ARG)) {
+                    wrongUsage();
+                    return;
+                }
+
+                try {
+                    threads = Integer.parseInt(args[i].substring(THREADS_ARG.length()));
+                } catch (NumberFormatException ex) {
+                    threads = 0;
+                }
+
+                if (threads < 1) {
+                    wrongUsage();
+                    return;
+                }
+            }
+
+            try {
+                configs = loadConfig(configFile);
+            } catch (CodeGenException ex) {
+                System.err.println(ex.getMessage());
+                System.exit(1);
+
+                return;
+            }
+        } else {
+            CodeGenConfig config = parseArgs(args, null);
+
+            if (config == null || config.getJavaSources().size() != 1 || config.getCppSources().size() != 1) {
+                wrongUsage();
+                return;
+            }
+
+            configs = Collections.singletonList(config);
         }
 
-        File packetsProto = new File(protoPath);
+        try {
+            if (watch)
+                new SourceWatcher(configs, threads).watch();
+            else
+                runAll(configs, threads);
+        } catch (CodeGenException ex) {
+            System.err.println(ex.getMessage());
+
+            if (ex.getCause() != null)
+                ex.getCause().printStackTrace();
 
-        if (!packetsProto.isFile()) {
-            System.err.println("The specified proto file does not exist or is a directory:");
-            System.err.println(packetsProto.getAbsolutePath());
             System.exit(1);
+        }
+    }
 
-            return;
+    // Разбирает аргументы одного запуска (в командной строке или в строке файла конфигурации).
+    // Возвращает null, если аргументы заданы неверно. Относительные пути - от baseDir (если не null).
+    private static CodeGenConfig parseArgs(String[] args, File baseDir) {
+        File proto = null, cacheFile = null;
+        List<File> javaSources = new ArrayList<>(), cppSources = new ArrayList<>();
+        boolean instrumented = false, reuseBuilders = false;
+
+        for (String arg : args) {
+            if (arg.toLowerCase().startsWith(PROTO_ARG) && proto == null)
+                proto = resolve(baseDir, arg.substring(PROTO_ARG.length()));
+            else if (arg.toLowerCase().startsWith(JAVA_SRC_ARG))
+                javaSources.add(resolve(baseDir, arg.substring(JAVA_SRC_ARG.length())));
+            else if (arg.toLowerCase().startsWith(CPP_SRC_ARG))
+                cppSources.add(resolve(baseDir, arg.substring(CPP_SRC_ARG.length())));
+            else if (arg.equalsIgnoreCase(INSTRUMENT_ARG))
+                instrumented = true;
+            else if (arg.equalsIgnoreCase(REUSE_BUILDERS_ARG))
+                reuseBuilders = true;
+            else if (arg.toLowerCase().startsWith(CACHE_ARG) && cacheFile == null)
+                cacheFile = resolve(baseDir, arg.substring(CACHE_ARG.length()));
+            else
+                return null;
         }
 
-        System.out.println("Analysing packets.proto");
+        if (proto == null || javaSources.isEmpty() && cppSources.isEmpty())
+            return null;
 
-        List<String> detectedPacketClasses = new ArrayList<>();
-        List<String> allPackets = new ArrayList<>();
+        return new CodeGenConfig(proto, javaSources, cppSources, instrumented, reuseBuilders, cacheFile);
+    }
 
-        try (BufferedReader protoReader = new BufferedReader(new InputStreamReader(
-                                          new FileInputStream(packetsProto), StandardCharsets.UTF_8))) {
-            boolean allPacketsListStarted = false;
+    private static File resolve(File baseDir, String path) {
+        File file = new File(path);
+
+        return baseDir == null || file.isAbsolute() ? file : new File(baseDir, path);
+    }
+
+    // Каждая непустая строка файла конфигурации (кроме комментариев, начинающихся с '#') - это
+    // аргументы одного запуска, как в командной строке, но --java_src и --cpp_src можно указывать
+    // сколько угодно раз (в т.ч. ни разу). Относительные пути отсчитываются от папки этого файла.
+    public static List<CodeGenConfig> loadConfig(File configFile) throws CodeGenException {
+        List<CodeGenConfig> configs = new ArrayList<>();
+        File baseDir = configFile.getAbsoluteFile().getParentFile();
+
+        try (BufferedReader configReader = new BufferedReader(new InputStreamReader(
+                                           new FileInputStream(configFile), StandardCharsets.UTF_8))) {
             String line;
+            int lineNumber = 0;
 
-            while ((line = protoReader.readLine()) != null) {
+            while ((line = configReader.readLine()) != null) {
+                lineNumber++;
                 line = line.trim();
 
-                if (line.startsWith("message ")) {
-                    String packetClass = line.split(" ")[1].replace("{", "");
-
-                    if (!packetClass.equals(PACKET_WRAPPER_CLASS_NAME))
-                        detectedPacketClasses.add(packetClass);
-                } else if (line.startsWith(ALL_PACKETS_LIST_SPEC_START_IDENTIFIER))
-                    allPacketsListStarted = true;
-                else if (allPacketsListStarted && !line.isEmpty()) {
-                    if (line.contains("/*") || line.contains("*/")) {
-                        System.err.println("Comments of /* this type */ are " +
-                                "forbidden inside 'oneof packet {...}' packet types specification");
-                        System.exit(1);
-
-                        return;
-                    } else if (!line.startsWith("//") && line.contains("=") && line.contains(";")) {
-                        String packetType = line.split(" ")[1];
-                        System.out.println("Detected packet specification: " + packetType
-                                + " (message/class " + Convert.snakeToCamel(packetType) + ")");
-
-                        if (!detectedPacketClasses.contains(Convert.snakeToCamel(packetType))) {
-                            System.err.println("Packet " + packetType + " is listed inside 'oneof packet {...}' " +
-                                    "packet types specification, but its class ('message " + packetType + " {...}' " +
-                                    "declaration) is missing above in the proto file");
-                            System.exit(1);
-
-                            return;
-                        }
-
-                        allPackets.add(packetType);
-                    }
-                }
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                CodeGenConfig config = parseArgs(line.split("\\s+"), baseDir);
+
+                if (config == null)
+                    throw new CodeGenException("Invalid arguments at line " + lineNumber
+                            + " of the config file " + configFile.getAbsolutePath() + ":\n" + line);
+
+                configs.add(config);
             }
         } catch (IOException ex) {
-            System.err.println("Failed to read the specified packets.proto specification file:");
-            ex.printStackTrace();
-            System.exit(1);
+            throw new CodeGenException("Failed to read the specified config file:\n"
+                    + configFile.getAbsolutePath() + "\n" + ex);
+        }
+
+        if (configs.isEmpty())
+            throw new CodeGenException("The specified config file is empty:\n" + configFile.getAbsolutePath());
+
+        return configs;
+    }
+
+    // Генерирует код в обоих исходниках (Java и C++) так же, как и запуск из командной строки,
+    // но вместо завершения процесса при ошибке бросает CodeGenException.
+    // Возвращает список исходников, в которые действительно был вставлен новый код.
+    public static List<File> run(File packetsProto, File javaSrc, File cppSrc,
+                                 boolean instrumented, boolean reuseBuilders, File cacheFile) throws CodeGenException {
+        return runAll(Collections.singletonList(new CodeGenConfig(packetsProto,
+                Collections.singletonList(javaSrc), Collections.singletonList(cppSrc),
+                instrumented, reuseBuilders, cacheFile)), 1);
+    }
+
+    // Каждый proto-файл разбирается один раз, а код во все исходники генерируется параллельно
+    // (в threads потоков). Вывод по каждому исходнику - целиком и в том же порядке, что и в configs.
+    public static List<File> runAll(List<CodeGenConfig> configs, int threads) throws CodeGenException {
+        Map<File, ProtoSchema> schemas = new HashMap<>();
+        List<CodeGenConfig> generatedConfigs = new ArrayList<>();
+        List<GenerationTarget> targets = new ArrayList<>();
+        CodeGenLog log = CodeGenLog.STDOUT;
+
+        checkDistinctSources(configs);
+
+        for (CodeGenConfig config : configs) {
+            if (config.getCacheFile() != null && isUpToDate(config)) {
+                log.info("No code generation needed (nothing has changed since the last run):");
+
+                for (File file : config.getAllFiles())
+                    log.info(file.getAbsolutePath());
+
+                continue;
+            }
+
+            ProtoSchema schema = schemas.get(canonical(config.getProto()));
+
+            if (schema == null) {
+                schema = parseProto(config.getProto(), log);
+                schemas.put(canonical(config.getProto()), schema);
+            }
+
+            for (File sourceFile : config.getSourceFiles())
+                targets.add(newTarget(config, sourceFile, schema));
+
+            generatedConfigs.add(config);
+        }
 
+        List<File> modifiedSources = new ArrayList<>();
+        Set<CodeGenConfig> failedConfigs = Collections.emptySet();
+
+        if (!targets.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, targets.size()));
+
+            try {
+                failedConfigs = runTargets(targets, executor, modifiedSources);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        for (CodeGenConfig config : generatedConfigs)
+            if (!failedConfigs.contains(config))
+                updateCache(config);
+
+        if (!failedConfigs.isEmpty())
+            throw new CodeGenException("Failed to generate code in some of the source files (see above)");
+
+        log.info(HORIZONTAL_RULE);
+        log.info("Complete");
+        log.info(HORIZONTAL_RULE);
+
+        return modifiedSources;
+    }
+
+    // Иначе параллельная генерация в один и тот же файл затёрла бы результаты друг друга.
+    static void checkDistinctSources(List<CodeGenConfig> configs) throws CodeGenException {
+        Set<File> allSources = new HashSet<>();
+
+        for (CodeGenConfig config : configs)
+            for (File file : config.getSourceFiles())
+                if (!allSources.add(canonical(file)))
+                    throw new CodeGenException("The same source file is specified more than once:\n"
+                            + file.getAbsolutePath());
+    }
+
+    static void updateCache(CodeGenConfig config) {
+        if (config.getCacheFile() == null)
             return;
+
+        CodeGenLog log = CodeGenLog.STDOUT;
+
+        try {
+            GenerationCache.load(config.getCacheFile(), log).update(cacheSettings(config), config.getAllFiles());
+        } catch (IOException ex) {
+            // Не критично - в следующий раз просто не получится пропустить генерацию.
+            log.error("Failed to update the cache file:");
+            log.error(ex);
         }
+    }
 
-        for (String detectedPacketClass : detectedPacketClasses) {
-            boolean listedInOneOf = allPackets.stream().anyMatch(packetType ->
-                    detectedPacketClass.equals(Convert.snakeToCamel(packetType)));
+    static GenerationTarget newTarget(CodeGenConfig config, File sourceFile, ProtoSchema schema) {
+        CodeGenerator codeGen = config.getJavaSources().contains(sourceFile)
+                ? new JavaCodeGenerator(config.isInstrumented(), config.isReuseBuilders())
+                : new CppCodeGenerator(config.isInstrumented());
 
-            if (!listedInOneOf) {
-                System.err.println("Packet " + detectedPacketClass + " class specificatin " +
-                        "('message " + detectedPacketClass + " {...}' declaration) was detected " +
-                        "above in the proto file, but the packet itself is not listed inside 'oneof " +
-                        "packet {...}' packet types specification");
-                System.exit(1);
+        return new GenerationTarget(config, sourceFile, schema.getPackets(), codeGen);
+    }
 
-                return;
+    // Генерирует код в targets на потоках executor'а и выводит логи в порядке targets.
+    // Возвращает запуски, в исходниках которых генерация не удалась.
+    static Set<CodeGenConfig> runTargets(List<GenerationTarget> targets, ExecutorService executor,
+                                         List<File> modifiedSources) throws CodeGenException {
+        Set<CodeGenConfig> failedConfigs = new HashSet<>();
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (GenerationTarget target : targets)
+            futures.add(executor.submit(target::generate));
+
+        for (int i = 0; i < targets.size(); i++) {
+            GenerationTarget target = targets.get(i);
+
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CodeGenException("Interrupted while generating code", ex);
+            } catch (ExecutionException ex) {
+                target.log.error("Unexpected error while generating code:");
+                target.log.error(ex.getCause());
+                target.failed = true;
             }
+
+            target.log.flush();
+
+            if (target.failed)
+                failedConfigs.add(target.config);
+            else if (target.modified)
+                modifiedSources.add(target.sourceFile);
+        }
+
+        return failedConfigs;
+    }
+
+    static File canonical(File file) throws CodeGenException {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException ex) {
+            throw new CodeGenException("Failed to resolve path " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    private static String cacheSettings(CodeGenConfig config) {
+        return INSTRUMENT_ARG + "=" + config.isInstrumented() + " " + REUSE_BUILDERS_ARG + "=" + config.isReuseBuilders();
+    }
+
+    public static ProtoSchema parseProto(File packetsProto) throws CodeGenException {
+        return parseProto(packetsProto, CodeGenLog.STDOUT);
+    }
+
+    public static ProtoSchema parseProto(File packetsProto, CodeGenLog log) throws CodeGenException {
+        if (!packetsProto.isFile())
+            throw new CodeGenException("The specified proto file does not exist or is a directory:\n"
+                    + packetsProto.getAbsolutePath());
+
+        log.info(HORIZONTAL_RULE);
+        log.info("Analysing " + packetsProto.getName());
+        ProtoSchema schema;
+
+        try (BufferedReader protoReader = new BufferedReader(new InputStreamReader(
+                                          new FileInputStream(packetsProto), StandardCharsets.UTF_8))) {
+            schema = ProtoSchema.parse(protoReader);
+        } catch (IOException ex) {
+            throw new CodeGenException("Failed to read the specified packets.proto specification file:", ex);
+        } catch (ProtoSyntaxException ex) {
+            throw new CodeGenException("Invalid packets.proto specification file: " + ex.getMessage());
         }
 
-        generate(new JavaCodeGenerator(), javaSrcPath, allPackets);
-        generate(new CppCodeGenerator(), cppSrcPath, allPackets);
+        for (PacketSpec packet : schema.getPackets())
+            log.info("Detected packet specification: " + packet.getName()
+                    + " (message/class " + packet.getCamelName() + ")");
+
+        return schema;
+    }
 
-        System.out.println(HORIZONTAL_RULE);
-        System.out.println("Complete");
-        System.out.println(HORIZONTAL_RULE);
+    private static boolean isUpToDate(CodeGenConfig config) {
+        try {
+            return GenerationCache.load(config.getCacheFile(), CodeGenLog.STDOUT).isUpToDate(cacheSettings(config), config.getAllFiles());
+        } catch (IOException ex) {
+            // Например, если какого-то из файлов нет - ошибка будет выведена при обычной генерации.
+            return false;
+        }
     }
 
     private static void wrongUsage() {
@@ -137,81 +374,190 @@ public class PTransCodeGen {
         System.err.println("    --proto=PATH           Path to the 'packets.proto' packet specification file.");
         System.err.println("    --java_src=PATH        Path to the original Java source code file.");
         System.err.println("    --cpp_src=PATH         Path to the original C++ source code file.");
+        System.err.println("Optional arguments:");
+        System.err.println("    --instrument           Generate per-packet-type traffic and latency counters.");
+        System.err.println("    --reuse_builders       Reuse a thread-local PacketWrapper.Builder in Java wrap.");
+        System.err.println("    --cache=PATH           Skip generation if nothing has changed since the last run.");
+        System.err.println("Or, to generate code for many proto and source files at once:");
+        System.err.println("    --config=PATH          Path to a file with the arguments above, one run per line.");
+        System.err.println("    --threads=N            Number of source files to generate code in at the same time.");
+        System.err.println("In both cases:");
+        System.err.println("    --watch                Keep running and regenerate code whenever any of the files changes.");
 
         System.exit(1);
     }
 
-    private static void generate(CodeGenerator codeGen, String srcFilePath, List<String> allPackets) {
-        System.out.println(HORIZONTAL_RULE);
-        File sourceFile = new File(srcFilePath);
+    public static boolean generate(CodeGenerator codeGen, File sourceFile,
+                                   List<PacketSpec> allPackets) throws CodeGenException {
+        return generate(codeGen, sourceFile, defaultBackupFile(sourceFile), allPackets, CodeGenLog.STDOUT);
+    }
 
-        if (!sourceFile.isFile()) {
-            System.err.println("The specified source code file does not exist or is a directory:");
-            System.err.println(sourceFile.getAbsolutePath());
-            System.exit(1);
+    public static boolean generate(CodeGenerator codeGen, File sourceFile, File backupSrc,
+                                   List<PacketSpec> allPackets) throws CodeGenException {
+        return generate(codeGen, sourceFile, backupSrc, allPackets, CodeGenLog.STDOUT);
+    }
 
-            return;
-        }
+    private static File defaultBackupFile(File sourceFile) {
+        return new File(sourceFile.getAbsolutePath()
+                .replace(".java", "_BACKUP.java")
+                .replace(".cpp", "_BACKUP.cpp")
+        );
+    }
 
-        System.out.println("Generating code for " + allPackets.size() + " packets in:");
-        System.out.println(sourceFile.getAbsolutePath());
-        SourceSets sourceSets;
+    // Возвращает true, если в исходник был вставлен новый код, и false, если он уже был актуален.
+    public static boolean generate(CodeGenerator codeGen, File sourceFile, File backupSrc,
+                                   List<PacketSpec> allPackets, CodeGenLog log) throws CodeGenException {
+        log.info(HORIZONTAL_RULE);
 
-        try (BufferedReader srcReader = new BufferedReader(new InputStreamReader(
-                new FileInputStream(sourceFile), StandardCharsets.UTF_8))) {
-            sourceSets = codeGen.insertInExistingSources(srcReader, allPackets);
-        } catch (Exception ex) {
-            System.err.println("Failed to read the specified source file or to generate the code:");
-            ex.printStackTrace();
-            System.exit(1);
+        if (!sourceFile.isFile())
+            throw new CodeGenException("The specified source code file does not exist or is a directory:\n"
+                    + sourceFile.getAbsolutePath());
 
-            return;
-        }
+        log.info("Generating code for " + allPackets.size() + " packets in:");
+        log.info(sourceFile.getAbsolutePath());
 
-        if (sourceSets == null) {
-            System.err.println("Aborting due to a critical error in file (no SourceSets produced):");
-            System.err.println(sourceFile.getAbsolutePath());
-            System.exit(1);
+        Path sourcePath = sourceFile.toPath().toAbsolutePath();
+        Path tempPath = null;
 
-            return;
-        }
+        try {
+            // Новый код пишется во временный файл рядом с исходником (в той же файловой системе),
+            // которым исходник затем атомарно заменяется - так исходник ни в какой момент не пропадает
+            // и не бывает записан наполовину (например, для параллельно идущей сборки).
+            try {
+                tempPath = Files.createTempFile(sourcePath.getParent(), "." + sourceFile.getName() + ".", ".tmp");
+            } catch (IOException ex) {
+                throw new CodeGenException("Failed to create temporary file for the source file:", ex);
+            }
 
-        //noinspection IfStatementWithIdenticalBranches
-        if (sourceSets.areProgrammaticallyEqual()) {
-            System.out.println("No code generation needed for file (already packets.proto-compatible):");
-            System.out.println(sourceFile.getAbsolutePath());
-        } else {
-            File backupSrc = new File(sourceFile.getAbsolutePath()
-                    .replace(".java", "_BACKUP.java")
-                    .replace(".cpp", "_BACKUP.cpp")
-            );
+            boolean generated;
+            SourceScan scan;
+            SourceRewrite rewrite;
+
+            try (BufferedReader srcReader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(sourceFile), StandardCharsets.UTF_8))) {
+                scan = codeGen.scanExistingSources(srcReader);
+            } catch (Exception ex) {
+                throw new CodeGenException("Failed to read the specified source file or to generate the code:", ex);
+            }
+
+            try (BufferedReader srcReader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(sourceFile), StandardCharsets.UTF_8));
+                 BufferedWriter tempWriter = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                rewrite = new SourceRewrite(tempWriter);
+                generated = codeGen.insertInExistingSources(srcReader, scan, rewrite, allPackets, log);
+            } catch (Exception ex) {
+                throw new CodeGenException("Failed to read the specified source file or to generate the code:", ex);
+            }
+
+            if (!generated)
+                throw new CodeGenException("Aborting due to a critical error in file (no code generated):\n"
+                        + sourceFile.getAbsolutePath());
 
-            System.out.println("Saving source file backup as '" + backupSrc.getName() + "'");
+            if (rewrite.areProgrammaticallyEqual()) {
+                log.info("No code generation needed for file (already packets.proto-compatible):");
+                log.info(sourceFile.getAbsolutePath());
+
+                return false;
+            }
+
+            log.info("Saving source file backup as '" + backupSrc.getName() + "'");
 
             try {
-                Files.move(sourceFile.toPath(), backupSrc.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.copy(sourcePath, backupSrc.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                                           StandardCopyOption.COPY_ATTRIBUTES);
             } catch (IOException ex) {
-                System.err.println("Failed to backup (move/rename) source file:");
-                ex.printStackTrace();
-                System.exit(1);
-
-                return;
+                throw new CodeGenException("Failed to backup (copy) source file:", ex);
             }
 
-            System.out.println("Inserting generated code in the original source file");
+            log.info("Inserting generated code in the original source file");
 
-            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(sourceFile), StandardCharsets.UTF_8))) {
-                writer.write(sourceSets.getModifiedSrc());
+            try {
+                replace(tempPath, sourcePath, log);
             } catch (IOException ex) {
-                System.err.println("Failed to create replacement for the original source file:");
-                ex.printStackTrace();
-                System.exit(1);
+                throw new CodeGenException("Failed to replace the original source file:", ex);
+            }
+        } finally {
+            if (tempPath != null) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (IOException ex) {
+                    log.error("Failed to delete temporary file " + tempPath + ": " + ex);
+                }
             }
+        }
+
+        log.info("Finished code generation in file:");
+        log.info(sourceFile.getAbsolutePath());
+
+        return true;
+    }
+
+    // Права файла или null, если их нет (файла ещё нет или файловая система не POSIX).
+    private static Set<PosixFilePermission> posixPermissions(Path path) throws IOException {
+        if (!Files.exists(path) || !Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class))
+            return null;
 
-            System.out.println("Finished code generation in file:");
-            System.out.println(sourceFile.getAbsolutePath());
+        return Files.getPosixFilePermissions(path);
+    }
+
+    // Заменяет targetPath файлом tempPath, по возможности атомарно (см. generate и GenerationCache.update).
+    // Временные файлы создаются с правами только для владельца - у заменённого файла остаются прежние права.
+    static void replace(Path tempPath, Path targetPath, CodeGenLog log) throws IOException {
+        Set<PosixFilePermission> permissions = posixPermissions(targetPath);
+
+        if (permissions != null)
+            Files.setPosixFilePermissions(tempPath, permissions);
+
+        try {
+            Files.move(tempPath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            log.info("Atomic replacement is not supported here, replacing the file non-atomically");
+            replaceNonAtomically(tempPath, targetPath);
+        }
+    }
+
+    // Запасной вариант replace. Move здесь может оказаться копированием (например, между файловыми
+    // системами), поэтому права заменённого файла восстанавливаются уже после него.
+    static void replaceNonAtomically(Path tempPath, Path targetPath) throws IOException {
+        Set<PosixFilePermission> permissions = posixPermissions(targetPath);
+        Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+
+        if (permissions != null)
+            Files.setPosixFilePermissions(targetPath, permissions);
+    }
+
+    static final class GenerationTarget {
+
+        private final CodeGenConfig config;
+        private final File sourceFile;
+        private final List<PacketSpec> allPackets;
+        private final CodeGenerator codeGen;
+        private final CodeGenLog log = CodeGenLog.buffered();
+
+        // Записываются в потоке генерации, читаются после Future.get().
+        private boolean modified, failed;
+
+        private GenerationTarget(CodeGenConfig config, File sourceFile,
+                                 List<PacketSpec> allPackets, CodeGenerator codeGen) {
+            this.config = config;
+            this.sourceFile = sourceFile;
+            this.allPackets = allPackets;
+            this.codeGen = codeGen;
+        }
+
+        private void generate() {
+            try {
+                modified = PTransCodeGen.generate(codeGen, sourceFile, defaultBackupFile(sourceFile), allPackets, log);
+            } catch (CodeGenException ex) {
+                log.error(ex.getMessage());
+
+                if (ex.getCause() != null)
+                    log.error(ex.getCause());
+
+                failed = true;
+            }
         }
+
     }
 
 }
@@ -0,0 +1,49 @@
+package gg.aswedrown.ptranscodegen;
+
+import java.util.List;
+
+// Один пакет из "oneof packet" в PacketWrapper. Все производные имена вычисляются
+// один раз здесь, а не заново в каждом генераторе для каждой строки кода.
+public class PacketSpec {
+
+    private final String name, camelName, upperName;
+
+    private final int fieldNumber;
+
+    public PacketSpec(String name, int fieldNumber) {
+        this.name = name;
+        this.camelName = Convert.snakeToCamel(name);
+        this.upperName = name.toUpperCase();
+        this.fieldNumber = fieldNumber;
+    }
+
+    // Имя поля в proto (snake_case), например, join_lobby_request.
+    public String getName() {
+        return name;
+    }
+
+    // Имя класса пакета и часть имён аксессоров (CamelCase), например, JoinLobbyRequest.
+    public String getCamelName() {
+        return camelName;
+    }
+
+    // Имя значения PacketWrapper.PacketCase в Java (UPPER_CASE), например, JOIN_LOBBY_REQUEST.
+    public String getUpperName() {
+        return upperName;
+    }
+
+    // Номер поля в "oneof packet" (он же значение PacketWrapper.PacketCase).
+    public int getFieldNumber() {
+        return fieldNumber;
+    }
+
+    public static int maxFieldNumber(List<PacketSpec> packets) {
+        int maxFieldNumber = 0;
+
+        for (PacketSpec packet : packets)
+            maxFieldNumber = Math.max(maxFieldNumber, packet.getFieldNumber());
+
+        return maxFieldNumber;
+    }
+
+}
@@ -0,0 +1,271 @@
+package gg.aswedrown.ptranscodegen;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+public class ProtoSchema {
+
+    private static final String PACKET_WRAPPER_CLASS_NAME = "PacketWrapper";
+    private static final String ALL_PACKETS_ONEOF_NAME = "packet";
+
+    private final List<PacketSpec> packets;
+
+    private ProtoSchema(List<PacketSpec> packets) {
+        this.packets = Collections.unmodifiableList(packets);
+    }
+
+    // Пакеты в порядке их объявления в "oneof packet".
+    public List<PacketSpec> getPackets() {
+        return packets;
+    }
+
+    public static ProtoSchema parse(Reader protoReader) throws IOException, ProtoSyntaxException {
+        return new Parser(new ProtoTokenizer(protoReader)).parse();
+    }
+
+    private static final class Parser {
+
+        private final ProtoTokenizer tokenizer;
+
+        // Сообщения верхнего уровня (кроме PacketWrapper) - классы пакетов.
+        private final Set<String> packetClasses = new LinkedHashSet<>();
+
+        // Поля "oneof packet" в PacketWrapper: имя поля -> тип поля.
+        private final Map<String, String> packetTypes = new LinkedHashMap<>();
+        private final List<PacketSpec> packets = new ArrayList<>();
+
+        private boolean allPacketsListFound;
+
+        private Parser(ProtoTokenizer tokenizer) {
+            this.tokenizer = tokenizer;
+        }
+
+        private ProtoSchema parse() throws IOException, ProtoSyntaxException {
+            String token;
+
+            while ((token = tokenizer.next()) != null) {
+                switch (token) {
+                    case "message":
+                        String messageName = tokenizer.expectIdentifier();
+
+                        if (messageName.equals(PACKET_WRAPPER_CLASS_NAME))
+                            parseMessageBody(true);
+                        else {
+                            if (!packetClasses.add(messageName))
+                                throw new ProtoSyntaxException(tokenizer.getLine(),
+                                        "duplicate declaration of message " + messageName);
+
+                            parseMessageBody(false);
+                        }
+
+                        break;
+
+                    case "enum":
+                    case "service":
+                    case "extend":
+                        skipBlock();
+                        break;
+
+                    case ";":
+                        break;
+
+                    default:
+                        // syntax, package, import, option и т.п. - для генерации кода не важны.
+                        skipStatement();
+                        break;
+                }
+            }
+
+            validate();
+
+            return new ProtoSchema(packets);
+        }
+
+        private void parseMessageBody(boolean packetWrapper) throws IOException, ProtoSyntaxException {
+            // Номера всех полей сообщения, включая поля из его oneof.
+            Set<Integer> fieldNumbers = new HashSet<>();
+
+            tokenizer.expect("{");
+            String token;
+
+            while (!"}".equals(token = tokenizer.next())) {
+                if (token == null)
+                    throw new ProtoSyntaxException(tokenizer.getLine(), "unexpected end of file inside message");
+
+                switch (token) {
+                    case "message":
+                        // Вложенные сообщения - это не пакеты (даже внутри PacketWrapper).
+                        tokenizer.expectIdentifier();
+                        parseMessageBody(false);
+                        break;
+
+                    case "enum":
+                    case "extend":
+                        skipBlock();
+                        break;
+
+                    case "oneof":
+                        String oneofName = tokenizer.expectIdentifier();
+                        parseOneofBody(packetWrapper && oneofName.equals(ALL_PACKETS_ONEOF_NAME), fieldNumbers);
+                        break;
+
+                    case "option":
+                    case "reserved":
+                    case "extensions":
+                        skipStatement();
+                        break;
+
+                    case ";":
+                        break;
+
+                    default:
+                        addFieldNumber(fieldNumbers, parseField(token));
+                        break;
+                }
+            }
+        }
+
+        private void parseOneofBody(boolean allPacketsList, Set<Integer> fieldNumbers)
+                throws IOException, ProtoSyntaxException {
+            if (allPacketsList) {
+                if (allPacketsListFound)
+                    throw new ProtoSyntaxException(tokenizer.getLine(),
+                            "duplicate 'oneof packet {...}' packet types specification");
+
+                allPacketsListFound = true;
+            }
+
+            tokenizer.expect("{");
+            String token;
+
+            while (!"}".equals(token = tokenizer.next())) {
+                if (token == null)
+                    throw new ProtoSyntaxException(tokenizer.getLine(), "unexpected end of file inside oneof");
+
+                if (token.equals("option"))
+                    skipStatement();
+                else if (!token.equals(";")) {
+                    String fieldName = tokenizer.expectIdentifier();
+                    int fieldNumber = parseFieldNumber();
+                    addFieldNumber(fieldNumbers, fieldNumber);
+
+                    if (allPacketsList) {
+                        if (packetTypes.put(fieldName, token) != null)
+                            throw new ProtoSyntaxException(tokenizer.getLine(),
+                                    "duplicate packet " + fieldName + " in 'oneof packet {...}'");
+
+                        packets.add(new PacketSpec(fieldName, fieldNumber));
+                    }
+                }
+            }
+        }
+
+        private int parseField(String firstToken) throws IOException, ProtoSyntaxException {
+            String type = firstToken;
+
+            if (type.equals("repeated") || type.equals("optional") || type.equals("required"))
+                type = tokenizer.next();
+
+            if ("map".equals(type) && "<".equals(tokenizer.peek()))
+                while (!">".equals(type = tokenizer.next()))
+                    if (type == null)
+                        throw new ProtoSyntaxException(tokenizer.getLine(), "unexpected end of file inside map<...>");
+
+            tokenizer.expectIdentifier();
+
+            return parseFieldNumber();
+        }
+
+        private void addFieldNumber(Set<Integer> fieldNumbers, int fieldNumber) throws ProtoSyntaxException {
+            if (!fieldNumbers.add(fieldNumber))
+                throw new ProtoSyntaxException(tokenizer.getLine(), "duplicate field number " + fieldNumber);
+        }
+
+        private int parseFieldNumber() throws IOException, ProtoSyntaxException {
+            tokenizer.expect("=");
+            String token = tokenizer.next();
+            int fieldNumber;
+
+            try {
+                fieldNumber = Integer.decode(String.valueOf(token));
+            } catch (NumberFormatException ex) {
+                throw new ProtoSyntaxException(tokenizer.getLine(), "invalid field number '" + token + "'");
+            }
+
+            // Опции поля вида [deprecated = true] - до конца объявления.
+            skipStatement();
+
+            return fieldNumber;
+        }
+
+        // Пропускает всё до ';' (включительно) с учётом вложенных {...}.
+        private void skipStatement() throws IOException, ProtoSyntaxException {
+            int depth = 0;
+            String token;
+
+            while ((token = tokenizer.next()) != null) {
+                if (token.equals("{"))
+                    depth++;
+                else if (token.equals("}"))
+                    depth--;
+                else if (token.equals(";") && depth == 0)
+                    return;
+            }
+
+            throw new ProtoSyntaxException(tokenizer.getLine(), "unexpected end of file, missing ';'");
+        }
+
+        // Пропускает заголовок и тело блока {...} целиком.
+        private void skipBlock() throws IOException, ProtoSyntaxException {
+            String token;
+
+            while (!"{".equals(token = tokenizer.next()))
+                if (token == null)
+                    throw new ProtoSyntaxException(tokenizer.getLine(), "unexpected end of file, missing '{'");
+
+            int depth = 1;
+
+            while (depth > 0) {
+                if ((token = tokenizer.next()) == null)
+                    throw new ProtoSyntaxException(tokenizer.getLine(), "unexpected end of file, missing '}'");
+
+                if (token.equals("{"))
+                    depth++;
+                else if (token.equals("}"))
+                    depth--;
+            }
+        }
+
+        private void validate() throws ProtoSyntaxException {
+            if (!allPacketsListFound)
+                throw new ProtoSyntaxException("'oneof packet {...}' packet types specification " +
+                        "is missing in 'message " + PACKET_WRAPPER_CLASS_NAME + " {...}'");
+
+            for (PacketSpec packet : packets) {
+                String packetClass = packetTypes.get(packet.getName());
+
+                if (!packetClasses.contains(packetClass))
+                    throw new ProtoSyntaxException("Packet " + packet.getName() + " is listed inside 'oneof packet {...}' " +
+                            "packet types specification, but its class ('message " + packetClass + " {...}' " +
+                            "declaration) is missing in the proto file");
+
+                if (!packetClass.equals(packet.getCamelName()))
+                    throw new ProtoSyntaxException("Packet " + packet.getName() + " must be of type " +
+                            packet.getCamelName() + " (its name in CamelCase), but it is of type " + packetClass);
+            }
+
+            Set<String> listedPacketClasses = new HashSet<>(packetTypes.values());
+
+            for (String packetClass : packetClasses) {
+                if (!listedPacketClasses.contains(packetClass))
+                    throw new ProtoSyntaxException("Packet " + packetClass + " class specificatin " +
+                            "('message " + packetClass + " {...}' declaration) was detected " +
+                            "in the proto file, but the packet itself is not listed inside 'oneof " +
+                            "packet {...}' packet types specification");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,15 @@
+package gg.aswedrown.ptranscodegen;
+
+public class ProtoSyntaxException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public ProtoSyntaxException(String message) {
+        super(message);
+    }
+
+    public ProtoSyntaxException(int line, String message) {
+        super("line " + line + ": " + message);
+    }
+
+}
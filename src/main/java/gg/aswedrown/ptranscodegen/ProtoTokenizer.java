@@ -0,0 +1,146 @@
+package gg.aswedrown.ptranscodegen;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// Потоковый лексер proto-файлов: идентификаторы (в т.ч. составные - через точку), числа,
+// строки (вместе с кавычками) и односимвольные знаки. Комментарии обоих видов пропускаются.
+public class ProtoTokenizer {
+
+    private static final int NO_CHAR = -2;
+
+    private final Reader reader;
+
+    private int nextChar = NO_CHAR;
+    private int line = 1, tokenLine = 1;
+    private String peekedToken;
+
+    public ProtoTokenizer(Reader reader) {
+        this.reader = reader;
+    }
+
+    // Возвращает следующий токен (не забирая его) или null, если файл закончился.
+    public String peek() throws IOException, ProtoSyntaxException {
+        if (peekedToken == null)
+            peekedToken = readToken();
+
+        return peekedToken;
+    }
+
+    // Возвращает следующий токен или null, если файл закончился.
+    public String next() throws IOException, ProtoSyntaxException {
+        String token = peek();
+        peekedToken = null;
+
+        return token;
+    }
+
+    public void expect(String expected) throws IOException, ProtoSyntaxException {
+        String token = next();
+
+        if (!expected.equals(token))
+            throw new ProtoSyntaxException(tokenLine, "expected '" + expected + "', but got " + describe(token));
+    }
+
+    public String expectIdentifier() throws IOException, ProtoSyntaxException {
+        String token = next();
+
+        if (token == null || !Character.isJavaIdentifierStart(token.charAt(0)))
+            throw new ProtoSyntaxException(tokenLine, "expected identifier, but got " + describe(token));
+
+        return token;
+    }
+
+    // Возвращает номер строки, на которой начинается последний прочитанный токен.
+    public int getLine() {
+        return tokenLine;
+    }
+
+    private static String describe(String token) {
+        return token == null ? "end of file" : "'" + token + "'";
+    }
+
+    private String readToken() throws IOException, ProtoSyntaxException {
+        int ch;
+
+        while ((ch = read()) != -1) {
+            if (Character.isWhitespace(ch))
+                continue;
+
+            if (ch == '/') {
+                skipComment();
+                continue;
+            }
+
+            tokenLine = line;
+            StringBuilder token = new StringBuilder().append((char) ch);
+
+            if (ch == '"' || ch == '\'')
+                readString(token, ch);
+            else if (isWordChar(ch))
+                while (isWordChar(peekChar()))
+                    token.append((char) read());
+
+            return token.toString();
+        }
+
+        return null;
+    }
+
+    private void skipComment() throws IOException, ProtoSyntaxException {
+        int ch = read();
+
+        if (ch == '/') {
+            while ((ch = read()) != -1 && ch != '\n')
+                ;
+        } else if (ch == '*') {
+            int commentLine = line, prev = 0;
+
+            while ((ch = read()) != '/' || prev != '*') {
+                if (ch == -1)
+                    throw new ProtoSyntaxException(commentLine, "unterminated /* comment */");
+
+                prev = ch;
+            }
+        } else
+            throw new ProtoSyntaxException(line, "unexpected character '/'");
+    }
+
+    private void readString(StringBuilder token, int quote) throws IOException, ProtoSyntaxException {
+        int ch;
+
+        while ((ch = read()) != quote) {
+            if (ch == -1 || ch == '\n')
+                throw new ProtoSyntaxException(tokenLine, "unterminated string literal");
+
+            token.append((char) ch);
+
+            if (ch == '\\' && (ch = read()) != -1)
+                token.append((char) ch);
+        }
+
+        token.append((char) quote);
+    }
+
+    private static boolean isWordChar(int ch) {
+        return ch == '_' || ch == '.' || (ch >= 0 && Character.isLetterOrDigit(ch));
+    }
+
+    private int peekChar() throws IOException {
+        if (nextChar == NO_CHAR)
+            nextChar = reader.read();
+
+        return nextChar;
+    }
+
+    private int read() throws IOException {
+        int ch = peekChar();
+        nextChar = NO_CHAR;
+
+        if (ch == '\n')
+            line++;
+
+        return ch;
+    }
+
+}
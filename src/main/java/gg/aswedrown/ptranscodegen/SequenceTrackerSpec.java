@@ -0,0 +1,15 @@
+package gg.aswedrown.ptranscodegen;
+
+// Параметры PacketSequenceTracker, общие для генераторов Java и C++ - обе стороны должны
+// одинаково считать ack/ackBitfield, RTT и потери.
+final class SequenceTrackerSpec {
+
+    private SequenceTrackerSpec() {}
+
+    // Размер кольцевых буферов отправленных и полученных пакетов (степень двойки).
+    static final int RING_SIZE = 1024;
+
+    // Число бит в ackBitfield - не больше 32, т.к. в C++ ackBitfield передаётся в wrap как uint32_t.
+    static final int ACK_BITS = 32;
+
+}
@@ -0,0 +1,59 @@
+package gg.aswedrown.ptranscodegen;
+
+import java.io.IOException;
+import java.io.Writer;
+
+// Потоковая перезапись исходника: изменённый код сразу пишется в modifiedWriter, а попутно
+// сравнивается с исходным без учёта пробельных символов. В памяти держится только "забежавшая
+// вперёд" часть одной из сторон (не больше одного генерируемого тела метода/класса), а после
+// первого же отличия сравнение прекращается.
+public class SourceRewrite {
+
+    private final Writer modifiedWriter;
+
+    private final StringBuilder pending = new StringBuilder();
+    private int pendingStart;
+    private boolean pendingFromOriginal, different;
+
+    public SourceRewrite(Writer modifiedWriter) {
+        this.modifiedWriter = modifiedWriter;
+    }
+
+    public void appendOriginal(CharSequence originalSrc) {
+        compare(originalSrc, true);
+    }
+
+    public void appendModified(CharSequence modifiedSrc) throws IOException {
+        modifiedWriter.append(modifiedSrc);
+        compare(modifiedSrc, false);
+    }
+
+    public boolean areProgrammaticallyEqual() {
+        return !different && pendingStart == pending.length();
+    }
+
+    private void compare(CharSequence src, boolean original) {
+        for (int i = 0; i < src.length() && !different; i++) {
+            char ch = src.charAt(i);
+
+            if (Character.isWhitespace(ch))
+                continue;
+
+            if (pendingStart == pending.length()) {
+                // Обе стороны сравнены полностью - теперь вперёд забегает эта.
+                pending.setLength(0);
+                pendingStart = 0;
+                pendingFromOriginal = original;
+            }
+
+            if (pendingFromOriginal == original)
+                pending.append(ch);
+            else if (pending.charAt(pendingStart++) != ch) {
+                different = true;
+                pending.setLength(0);
+                pendingStart = 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+package gg.aswedrown.ptranscodegen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+// Результат первого прохода по исходнику (см. CodeGenerator.scanExistingSources): какие из известных
+// генератору пустых объявлений в нём есть. Передаётся в insertInExistingSources явно, так что генератор
+// не хранит ничего о конкретном исходнике и может использоваться для многих исходников.
+public final class SourceScan {
+
+    private final Set<String> declarations;
+
+    private SourceScan(Set<String> declarations) {
+        this.declarations = Collections.unmodifiableSet(declarations);
+    }
+
+    // findDecl - как в генераторах: объявление, с которого начинается строка (без отступа), или null.
+    static SourceScan scan(BufferedReader srcReader, Function<String, String> findDecl) throws IOException {
+        Set<String> declarations = new HashSet<>();
+        String line;
+
+        while ((line = srcReader.readLine()) != null) {
+            String decl = findDecl.apply(line.trim());
+
+            if (decl != null)
+                declarations.add(decl);
+        }
+
+        return new SourceScan(declarations);
+    }
+
+    public boolean isDeclared(String decl) {
+        return declarations.contains(decl);
+    }
+
+}
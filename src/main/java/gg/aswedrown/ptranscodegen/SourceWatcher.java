@@ -0,0 +1,206 @@
+package gg.aswedrown.ptranscodegen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Режим --watch: генератор остаётся запущенным и перегенерирует код сразу после сохранения proto-файла
+// или исходника. Разобранные proto-файлы и потоки генерации переиспользуются между перегенерациями,
+// а затрагиваются только те исходники, которые действительно могли измениться.
+public class SourceWatcher {
+
+    // Редакторы сохраняют файл в несколько приёмов (усечение, запись, переименование) - ждём,
+    // пока события не перестанут приходить хотя бы столько миллисекунд, и только потом генерируем.
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    private final List<CodeGenConfig> configs;
+    private final int threads;
+
+    // Канонические пути всех отслеживаемых файлов.
+    private final Map<CodeGenConfig, Path> protoPaths = new HashMap<>();
+    private final Map<File, Path> sourcePaths = new HashMap<>();
+    private final Set<Path> watchedFiles = new HashSet<>();
+
+    // Разобранные proto-файлы (кроме тех, последний разбор которых не удался).
+    private final Map<Path, ProtoSchema> schemas = new HashMap<>();
+
+    // Отпечатки (размер и хэш) файлов на момент последней генерации. Событие о файле, содержимое которого
+    // совпадает с отпечатком, игнорируется - так мы не реагируем на собственную запись исходников
+    // (а заодно и на сохранение файла без изменений).
+    private final Map<Path, String> fingerprints = new HashMap<>();
+
+    public SourceWatcher(List<CodeGenConfig> configs, int threads) throws CodeGenException {
+        PTransCodeGen.checkDistinctSources(configs);
+
+        this.configs = configs;
+        this.threads = threads;
+
+        for (CodeGenConfig config : configs) {
+            Path protoPath = PTransCodeGen.canonical(config.getProto()).toPath();
+            protoPaths.put(config, protoPath);
+            watchedFiles.add(protoPath);
+
+            for (File sourceFile : config.getSourceFiles()) {
+                Path sourcePath = PTransCodeGen.canonical(sourceFile).toPath();
+                sourcePaths.put(sourceFile, sourcePath);
+                watchedFiles.add(sourcePath);
+            }
+        }
+    }
+
+    // Генерирует код во всех исходниках, а затем отслеживает изменения до прерывания потока (или процесса).
+    public void watch() throws CodeGenException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            // Отслеживать можно только папки - регистрируем каждую папку с нужными файлами один раз.
+            Set<Path> watchedDirs = new HashSet<>();
+
+            for (Path file : watchedFiles)
+                if (watchedDirs.add(file.getParent()))
+                    file.getParent().register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            regenerate(new HashSet<>(protoPaths.values()), Collections.emptySet(), executor);
+
+            while (true) {
+                System.out.println("Watching " + watchedFiles.size() + " files for changes (press Ctrl+C to stop)...");
+                Set<Path> changedFiles = awaitChanges(watchService);
+
+                long startTime = System.nanoTime();
+                Set<Path> changedProtos = new HashSet<>(), changedSources = new HashSet<>();
+
+                for (Path file : changedFiles) {
+                    if (protoPaths.containsValue(file))
+                        changedProtos.add(file);
+                    else
+                        changedSources.add(file);
+                }
+
+                regenerate(changedProtos, changedSources, executor);
+
+                System.out.println("Regenerated in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+            }
+        } catch (IOException ex) {
+            throw new CodeGenException("Failed to watch the proto and source files for changes:", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Ждёт первого события, затем "тишины" в течение DEBOUNCE_MILLIS, и возвращает отслеживаемые файлы,
+    // содержимое которых действительно изменилось. Остальные файлы в тех же папках (резервные копии
+    // исходников, временные файлы генератора и редакторов и т.п.) не учитываются.
+    private Set<Path> awaitChanges(WatchService watchService) throws InterruptedException {
+        while (true) {
+            Set<Path> touchedFiles = new HashSet<>();
+            WatchKey key = watchService.take();
+
+            do {
+                Path dir = (Path) key.watchable();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        // Часть событий потеряна - проверим все файлы.
+                        touchedFiles.addAll(watchedFiles);
+                    else {
+                        Path file = dir.resolve((Path) event.context());
+
+                        if (watchedFiles.contains(file))
+                            touchedFiles.add(file);
+                    }
+                }
+
+                key.reset();
+            } while ((key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+
+            Set<Path> changedFiles = new HashSet<>();
+
+            for (Path file : touchedFiles) {
+                String fingerprint = fingerprint(file);
+
+                // Файл мог быть удалён (например, редактор сохраняет через удаление и создание) -
+                // тогда дождёмся события о его создании.
+                if (fingerprint != null && !fingerprint.equals(fingerprints.get(file))) {
+                    fingerprints.put(file, fingerprint);
+                    changedFiles.add(file);
+                }
+            }
+
+            if (!changedFiles.isEmpty())
+                return changedFiles;
+        }
+    }
+
+    // Перегенерирует код во всех исходниках изменившихся proto-файлов и в изменившихся исходниках.
+    private void regenerate(Set<Path> changedProtos, Set<Path> changedSources,
+                            ExecutorService executor) throws CodeGenException {
+        for (Path protoPath : changedProtos) {
+            fingerprints.put(protoPath, fingerprint(protoPath));
+
+            try {
+                schemas.put(protoPath, PTransCodeGen.parseProto(protoPath.toFile()));
+            } catch (CodeGenException ex) {
+                // Ждём, пока proto-файл исправят - до тех пор его исходники не трогаем.
+                System.err.println(ex.getMessage());
+                schemas.remove(protoPath);
+            }
+        }
+
+        List<PTransCodeGen.GenerationTarget> targets = new ArrayList<>();
+        List<Path> targetPaths = new ArrayList<>();
+        Set<CodeGenConfig> generatedConfigs = new LinkedHashSet<>();
+
+        for (CodeGenConfig config : configs) {
+            Path protoPath = protoPaths.get(config);
+            ProtoSchema schema = schemas.get(protoPath);
+
+            if (schema == null)
+                continue;
+
+            for (File sourceFile : config.getSourceFiles()) {
+                Path sourcePath = sourcePaths.get(sourceFile);
+
+                if (changedProtos.contains(protoPath) || changedSources.contains(sourcePath)) {
+                    targets.add(PTransCodeGen.newTarget(config, sourceFile, schema));
+                    targetPaths.add(sourcePath);
+                    generatedConfigs.add(config);
+                }
+            }
+        }
+
+        if (targets.isEmpty())
+            return;
+
+        Set<CodeGenConfig> failedConfigs = PTransCodeGen.runTargets(targets, executor, new ArrayList<>());
+
+        // Запоминаем содержимое исходников после генерации, чтобы не реагировать на собственную запись.
+        for (Path sourcePath : targetPaths)
+            fingerprints.put(sourcePath, fingerprint(sourcePath));
+
+        // Кэш описывает все исходники запуска сразу, поэтому обновляем его, только если все они
+        // были перегенерированы без ошибок (т.е. после изменения proto-файла).
+        for (CodeGenConfig config : generatedConfigs)
+            if (changedProtos.contains(protoPaths.get(config)) && !failedConfigs.contains(config))
+                PTransCodeGen.updateCache(config);
+
+        if (!failedConfigs.isEmpty())
+            System.err.println("Failed to generate code in some of the source files (see above)");
+    }
+
+    private static String fingerprint(Path file) {
+        try {
+            return GenerationCache.fileFingerprint(file.toFile());
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package gg.aswedrown.ptranscodegen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class GenerationCacheTest {
+
+    private Path dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("cache-test");
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        List<Path> paths = new ArrayList<>();
+
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.forEach(paths::add);
+        }
+
+        Collections.reverse(paths);
+
+        for (Path path : paths)
+            Files.deleteIfExists(path);
+    }
+
+    private File file(String name, String content) throws IOException {
+        Path path = dir.resolve(name);
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+
+        return path.toFile();
+    }
+
+    @Test
+    public void detectsChangedFilesAndSettings() throws Exception {
+        File cacheFile = dir.resolve("cache.properties").toFile();
+        File proto = file("packets.proto", "message Ping {}");
+        File source = file("Transformer.java", "class Transformer {}");
+
+        assertFalse(GenerationCache.load(cacheFile).isUpToDate("a", proto, source));
+
+        GenerationCache.load(cacheFile).update("a", proto, source);
+        assertTrue(GenerationCache.load(cacheFile).isUpToDate("a", proto, source));
+        assertFalse(GenerationCache.load(cacheFile).isUpToDate("b", proto, source));
+
+        file("Transformer.java", "class Transformer { }");
+        assertFalse(GenerationCache.load(cacheFile).isUpToDate("a", proto, source));
+    }
+
+    @Test
+    public void runsSharingCacheFileKeepEachOthersEntries() throws Exception {
+        File cacheFile = dir.resolve("cache.properties").toFile();
+        File proto = file("packets.proto", "message Ping {}");
+        File javaSource = file("Transformer.java", "class Transformer {}");
+        File cppSource = file("Transformer.hpp", "class Transformer {};");
+
+        // Два запуска с общим proto-файлом, но разными исходниками и настройками.
+        GenerationCache.load(cacheFile).update("--instrument=true", proto, javaSource);
+        GenerationCache.load(cacheFile).update("--instrument=false", proto, cppSource);
+
+        assertTrue(GenerationCache.load(cacheFile).isUpToDate("--instrument=true", proto, javaSource));
+        assertTrue(GenerationCache.load(cacheFile).isUpToDate("--instrument=false", proto, cppSource));
+        assertFalse(GenerationCache.load(cacheFile).isUpToDate("--instrument=true", proto, cppSource));
+    }
+
+    @Test
+    public void updateLeavesNoTemporaryFiles() throws Exception {
+        File cacheFile = dir.resolve("cache.properties").toFile();
+        File proto = file("packets.proto", "message Ping {}");
+
+        GenerationCache.load(cacheFile).update("a", proto);
+        GenerationCache.load(cacheFile).update("a", proto);
+
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void unreadableCacheIsIgnored() throws Exception {
+        File cacheFile = file("cache.properties", "broken\\u12");
+        File proto = file("packets.proto", "message Ping {}");
+
+        assertFalse(GenerationCache.load(cacheFile, CodeGenLog.buffered()).isUpToDate("a", proto));
+
+        GenerationCache.load(cacheFile, CodeGenLog.buffered()).update("a", proto);
+        assertTrue(GenerationCache.load(cacheFile).isUpToDate("a", proto));
+    }
+
+}
@@ -0,0 +1,638 @@
+package gg.aswedrown.ptranscodegen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+// Проверяет сгенерированный Java-код на границах, где меняется его структура: switch в wrap/unwrap -> дерево
+// методов по диапазонам номеров полей, один статический инициализатор -> несколько putPacketCasesN().
+// Код генерируется в исходник-заготовку и компилируется вместе с заглушками protobuf и классов пакетов,
+// а затем каждый пакет проходит через wrap и unwrap (а пачки пакетов - через wrapBatch и unwrapBatch).
+public class GeneratorOutputTest {
+
+    // Наибольший номер поля в protobuf (2^29 - 1).
+    private static final int MAX_FIELD_NUMBER = 536870911;
+
+    private static final String SKELETON = "import com.google.protobuf.*;\n" +
+            "import java.io.IOException;\n" +
+            "import java.util.List;\n" +
+            "\n" +
+            "public final class Transformer {\n" +
+            "\n" +
+            "    private static final class InternalGeneratedStatics {\n" +
+            "    }\n" +
+            "\n" +
+            "    private static byte[] internalGeneratedWrap(Message packet, int sequence, int ack, long ackBitfield) {\n" +
+            "    }\n" +
+            "\n" +
+            "    private static UnwrappedPacketData internalGeneratedUnwrap(byte[] data) throws InvalidProtocolBufferException {\n" +
+            "    }\n" +
+            "\n" +
+            "    private static byte[] internalGeneratedWrapBatch(List<Message> packets, int sequence, int ack, long ackBitfield) throws IOException {\n" +
+            "    }\n" +
+            "\n" +
+            "    private static List<UnwrappedPacketData> internalGeneratedUnwrapBatch(byte[] data, int offset, int length) throws IOException {\n" +
+            "    }\n" +
+            "\n" +
+            "}\n";
+
+    // Вместо сериализации сообщения складываются в общий список, а "байты" - это их индексы в нём.
+    private static final String STUB_WIRE = "package com.google.protobuf;\n" +
+            "\n" +
+            "public final class StubWire {\n" +
+            "\n" +
+            "    private static final java.util.List<Object> MESSAGES = new java.util.ArrayList<>();\n" +
+            "\n" +
+            "    public static synchronized int register(Object message) {\n" +
+            "        MESSAGES.add(message);\n" +
+            "        return MESSAGES.size() - 1;\n" +
+            "    }\n" +
+            "\n" +
+            "    public static synchronized Object get(int index) {\n" +
+            "        return MESSAGES.get(index);\n" +
+            "    }\n" +
+            "\n" +
+            "    public static byte[] write(Object message) {\n" +
+            "        return java.nio.ByteBuffer.allocate(4).putInt(register(message)).array();\n" +
+            "    }\n" +
+            "\n" +
+            "    public static Object read(byte[] data) {\n" +
+            "        return get(java.nio.ByteBuffer.wrap(data).getInt());\n" +
+            "    }\n" +
+            "\n" +
+            "    // Поле \"oneof packet\", записанное через writeMessage(номер поля, пакет).\n" +
+            "    public static final class Field {\n" +
+            "\n" +
+            "        public final int fieldNumber;\n" +
+            "        public final Object message;\n" +
+            "\n" +
+            "        Field(int fieldNumber, Object message) {\n" +
+            "            this.fieldNumber = fieldNumber;\n" +
+            "            this.message = message;\n" +
+            "        }\n" +
+            "    }\n" +
+            "\n" +
+            "}\n";
+
+    // Сообщение без тега - это [длина][индекс в StubWire], поле-сообщение целиком (тег, длина и само сообщение) -
+    // [индекс в StubWire], uint32 - 4 байта. Размеры compute* соответствуют тому, что на самом деле записывается,
+    // поэтому пропущенная или лишняя длина в пачке ломает и checkNoSpaceLeft, и чтение.
+    private static final String CODED_OUTPUT_STREAM = "package com.google.protobuf;\n" +
+            "\n" +
+            "public final class CodedOutputStream {\n" +
+            "\n" +
+            "    private final byte[] buffer;\n" +
+            "    private int position;\n" +
+            "\n" +
+            "    private CodedOutputStream(byte[] buffer) {\n" +
+            "        this.buffer = buffer;\n" +
+            "    }\n" +
+            "\n" +
+            "    public static CodedOutputStream newInstance(byte[] buffer) {\n" +
+            "        return new CodedOutputStream(buffer);\n" +
+            "    }\n" +
+            "\n" +
+            "    public static int computeMessageSizeNoTag(Message message) { return 8; }\n" +
+            "    public static int computeMessageSize(int fieldNumber, Message message) { return 4; }\n" +
+            "    public static int computeUInt32SizeNoTag(int value) { return 4; }\n" +
+            "\n" +
+            "    public void writeMessageNoTag(Message message) {\n" +
+            "        writeInt(4);\n" +
+            "        writeInt(StubWire.register(message));\n" +
+            "    }\n" +
+            "\n" +
+            "    public void writeMessage(int fieldNumber, Message message) {\n" +
+            "        writeInt(StubWire.register(new StubWire.Field(fieldNumber, message)));\n" +
+            "    }\n" +
+            "\n" +
+            "    public void writeUInt32NoTag(int value) {\n" +
+            "        writeInt(value);\n" +
+            "    }\n" +
+            "\n" +
+            "    public void checkNoSpaceLeft() {\n" +
+            "        if (position != buffer.length)\n" +
+            "            throw new IllegalStateException(\"did not write entire array\");\n" +
+            "    }\n" +
+            "\n" +
+            "    private void writeInt(int value) {\n" +
+            "        java.nio.ByteBuffer.wrap(buffer, position, 4).putInt(value);\n" +
+            "        position += 4;\n" +
+            "    }\n" +
+            "\n" +
+            "}\n";
+
+    private static final String CODED_INPUT_STREAM = "package com.google.protobuf;\n" +
+            "\n" +
+            "public final class CodedInputStream {\n" +
+            "\n" +
+            "    private final byte[] data;\n" +
+            "    private final int offset, limit;\n" +
+            "    private int position;\n" +
+            "\n" +
+            "    private CodedInputStream(byte[] data, int offset, int length) {\n" +
+            "        this.data = data;\n" +
+            "        this.offset = offset;\n" +
+            "        this.limit = offset + length;\n" +
+            "        this.position = offset;\n" +
+            "    }\n" +
+            "\n" +
+            "    public static CodedInputStream newInstance(byte[] data, int offset, int length) {\n" +
+            "        return new CodedInputStream(data, offset, length);\n" +
+            "    }\n" +
+            "\n" +
+            "    public boolean isAtEnd() { return position == limit; }\n" +
+            "    public int getTotalBytesRead() { return position - offset; }\n" +
+            "\n" +
+            "    public <T> T readMessage(Parser<T> parser, ExtensionRegistryLite extensionRegistry)\n" +
+            "            throws InvalidProtocolBufferException {\n" +
+            "        if (readInt() != 4)\n" +
+            "            throw new InvalidProtocolBufferException();\n" +
+            "\n" +
+            "        return parser.parseStub(StubWire.get(readInt()));\n" +
+            "    }\n" +
+            "\n" +
+            "    private int readInt() throws InvalidProtocolBufferException {\n" +
+            "        if (position + 4 > limit)\n" +
+            "            throw new InvalidProtocolBufferException();\n" +
+            "\n" +
+            "        int value = java.nio.ByteBuffer.wrap(data, position, 4).getInt();\n" +
+            "        position += 4;\n" +
+            "\n" +
+            "        return value;\n" +
+            "    }\n" +
+            "\n" +
+            "}\n";
+
+    private static final String UNWRAPPED_PACKET_DATA = "import com.google.protobuf.Message;\n" +
+            "\n" +
+            "public final class UnwrappedPacketData {\n" +
+            "\n" +
+            "    private final int sequence, ack;\n" +
+            "    private final long ackBitfield;\n" +
+            "    private final PacketWrapper.PacketCase packetType;\n" +
+            "    private final Message packet;\n" +
+            "\n" +
+            "    UnwrappedPacketData(int sequence, int ack, long ackBitfield,\n" +
+            "                        PacketWrapper.PacketCase packetType, Message packet) {\n" +
+            "        this.sequence = sequence;\n" +
+            "        this.ack = ack;\n" +
+            "        this.ackBitfield = ackBitfield;\n" +
+            "        this.packetType = packetType;\n" +
+            "        this.packet = packet;\n" +
+            "    }\n" +
+            "\n" +
+            "    public int getSequence() { return sequence; }\n" +
+            "    public int getAck() { return ack; }\n" +
+            "    public long getAckBitfield() { return ackBitfield; }\n" +
+            "    public PacketWrapper.PacketCase getPacketType() { return packetType; }\n" +
+            "    public Message getPacket() { return packet; }\n" +
+            "\n" +
+            "}\n";
+
+    private Path dir;
+    private final List<URLClassLoader> classLoaders = new ArrayList<>();
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("generator-output-test");
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        for (URLClassLoader classLoader : classLoaders)
+            classLoader.close();
+
+        List<Path> paths = new ArrayList<>();
+
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.forEach(paths::add);
+        }
+
+        Collections.reverse(paths);
+
+        for (Path path : paths)
+            Files.deleteIfExists(path);
+    }
+
+    private static List<PacketSpec> packets(int count, IntUnaryOperator fieldNumber) {
+        List<PacketSpec> packets = new ArrayList<>();
+
+        for (int i = 0; i < count; i++)
+            packets.add(new PacketSpec("packet_" + i, fieldNumber.applyAsInt(i)));
+
+        return packets;
+    }
+
+    private static List<PacketSpec> densePackets(int count) {
+        return packets(count, i -> i + 4);
+    }
+
+    // Номера полей вразнобой (не по порядку в "oneof packet") и с большими промежутками, последний - наибольший возможный.
+    private static List<PacketSpec> sparsePackets(int count) {
+        return packets(count, i -> i == count - 1 ? MAX_FIELD_NUMBER : 4 + (int) ((i * 7919L) % count) * 1009);
+    }
+
+    @Test
+    public void wrapAndUnwrapSwitchToRangeMethods() throws Exception {
+        // Больше 152 пакетов - wrap превысил бы HUGE_METHOD_LIMIT (см. JavaCodeGenerator.needsChunking).
+        Generated switched = generate(densePackets(152), false);
+        assertFalse(switched.source.contains("wrapFields"));
+        switched.checkRoundTrips();
+
+        Generated chunked = generate(densePackets(153), false);
+        assertTrue(chunked.source.contains("InternalGeneratedStatics.wrapFields4To"));
+        assertTrue(chunked.source.contains("InternalGeneratedStatics.unwrapFields4To"));
+        chunked.checkRoundTrips();
+    }
+
+    @Test
+    public void packetCasesSplitAfterThousandPackets() throws Exception {
+        for (int count : new int[] {999, 1000, 1001}) {
+            Generated generated = generate(densePackets(count), true);
+
+            assertEquals(count > 1000, generated.source.contains("putPacketCases0();"));
+            assertEquals(count > 1000, generated.source.contains("putPacketCases1();"));
+            assertFalse(generated.source.contains("putPacketCases2();"));
+
+            generated.checkRoundTrips();
+            generated.checkTrafficCounters();
+        }
+    }
+
+    @Test
+    public void sparseFieldNumbersUpToMaximum() throws Exception {
+        for (int count : new int[] {153, 1001}) {
+            Generated generated = generate(sparsePackets(count), true);
+
+            generated.checkRoundTrips();
+            generated.checkTrafficCounters();
+        }
+    }
+
+    @Test
+    public void batchRoundTrips() throws Exception {
+        generate(densePackets(3), true).checkBatchRoundTrips();
+        generate(sparsePackets(153), true).checkBatchRoundTrips();
+    }
+
+    // Тот же формат пачки, что и в Java: [длина][PacketWrapper с заголовком], а затем для каждого пакета
+    // [длина][тег поля][длина][пакет] - т.е. PacketWrapper с единственным полем из "oneof packet".
+    @Test
+    public void cppBatchUsesSameFraming() {
+        CppCodeGenerator codeGen = new CppCodeGenerator(false);
+
+        StringBuilder wrapBatch = new StringBuilder();
+        codeGen.appendGeneratedSourcesWrapBatch(wrapBatch, densePackets(3));
+
+        assertInOrder(wrapBatch.toString(),
+                "WriteVarint32ToArray(headerLen, target)",
+                "header.SerializeWithCachedSizesToArray(target)",
+                "WriteVarint32ToArray(wrapperLen, target)",
+                "WriteVarint32ToArray(tags[i], target)",
+                "WriteVarint32ToArray(packetLens[i], target)",
+                "packets[i]->SerializeWithCachedSizesToArray(target)");
+        assertTrue(wrapBatch.toString().contains("WireFormatLite::WIRETYPE_LENGTH_DELIMITED"));
+
+        StringBuilder unwrapBatch = new StringBuilder();
+        codeGen.appendGeneratedSourcesUnwrapBatch(unwrapBatch, densePackets(3));
+
+        assertInOrder(unwrapBatch.toString(),
+                "input.ReadVarint32(&wrapperLen)",
+                "input.PushLimit(static_cast<int>(wrapperLen))",
+                "wrapper.ParseFromCodedStream(&input)",
+                "readWrapper(header)",
+                "readWrapper(wrapper)");
+    }
+
+    private static void assertInOrder(String source, String... parts) {
+        int from = 0;
+
+        for (String part : parts) {
+            int index = source.indexOf(part, from);
+            assertTrue("missing or out of order: " + part, index >= 0);
+            from = index + part.length();
+        }
+    }
+
+    private Generated generate(List<PacketSpec> packets, boolean instrumented) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assumeTrue("no Java compiler available (tests are running on a JRE)", compiler != null);
+
+        Path workDir = Files.createTempDirectory(dir, "generated");
+        Path classesDir = Files.createDirectory(workDir.resolve("classes"));
+        Path backupDir = Files.createDirectory(workDir.resolve("backup"));
+        Path protobufDir = Files.createDirectories(workDir.resolve("com/google/protobuf"));
+
+        Path transformer = write(workDir.resolve("Transformer.java"), SKELETON);
+        CodeGenLog log = CodeGenLog.buffered();
+
+        assertTrue(PTransCodeGen.generate(new JavaCodeGenerator(instrumented, false), transformer.toFile(),
+                backupDir.resolve("Transformer.java").toFile(), packets, log));
+
+        List<String> sources = new ArrayList<>();
+        sources.add(transformer.toString());
+        sources.add(write(protobufDir.resolve("Message.java"),
+                "package com.google.protobuf;\n\npublic interface Message {\n}\n").toString());
+        sources.add(write(protobufDir.resolve("InvalidProtocolBufferException.java"),
+                "package com.google.protobuf;\n\n" +
+                "public class InvalidProtocolBufferException extends java.io.IOException {\n" +
+                "}\n").toString());
+        sources.add(write(protobufDir.resolve("StubWire.java"), STUB_WIRE).toString());
+        sources.add(write(protobufDir.resolve("CodedOutputStream.java"), CODED_OUTPUT_STREAM).toString());
+        sources.add(write(protobufDir.resolve("CodedInputStream.java"), CODED_INPUT_STREAM).toString());
+        sources.add(write(protobufDir.resolve("Parser.java"), "package com.google.protobuf;\n\n" +
+                "public interface Parser<T> {\n" +
+                "    T parseStub(Object message) throws InvalidProtocolBufferException;\n" +
+                "}\n").toString());
+        sources.add(write(protobufDir.resolve("ExtensionRegistryLite.java"), "package com.google.protobuf;\n\n" +
+                "public final class ExtensionRegistryLite {\n" +
+                "    public static ExtensionRegistryLite getEmptyRegistry() { return null; }\n" +
+                "}\n").toString());
+        sources.add(write(workDir.resolve("UnwrappedPacketData.java"), UNWRAPPED_PACKET_DATA).toString());
+        sources.add(write(workDir.resolve("PacketWrapper.java"), packetWrapperStub(packets)).toString());
+        sources.add(write(workDir.resolve("Packets.java"), packetClassesStub(packets)).toString());
+
+        List<String> args = new ArrayList<>();
+        Collections.addAll(args, "-encoding", "UTF-8", "-nowarn", "-d", classesDir.toString());
+        args.addAll(sources);
+
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        int result = compiler.run(null, errors, errors, args.toArray(new String[0]));
+        assertEquals("generated code for " + packets.size() + " packets does not compile:\n" + errors, 0, result);
+
+        String source = new String(Files.readAllBytes(transformer), StandardCharsets.UTF_8);
+
+        URLClassLoader classLoader = new URLClassLoader(new URL[] { classesDir.toUri().toURL() },
+                GeneratorOutputTest.class.getClassLoader());
+        classLoaders.add(classLoader);
+
+        return new Generated(packets, source, classLoader);
+    }
+
+    private static Path write(Path file, String content) throws IOException {
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String packetClassesStub(List<PacketSpec> packets) {
+        StringBuilder src = new StringBuilder("import com.google.protobuf.Message;\n");
+
+        for (PacketSpec packet : packets)
+            src.append("\nfinal class ").append(packet.getCamelName()).append(" implements Message {\n}\n");
+
+        return src.toString();
+    }
+
+    // То из PacketWrapper, что использует сгенерированный код, плюс сравнение сообщений по ссылке.
+    private static String packetWrapperStub(List<PacketSpec> packets) {
+        StringBuilder src = new StringBuilder("import com.google.protobuf.*;\n" +
+                "\n" +
+                "public final class PacketWrapper implements Message {\n" +
+                "\n" +
+                "    public enum PacketCase {\n");
+
+        for (PacketSpec packet : packets)
+            src.append("        ").append(packet.getUpperName()).append('(').append(packet.getFieldNumber()).append("),\n");
+
+        src.append("        PACKET_NOT_SET(0);\n" +
+                "\n" +
+                "        private final int number;\n" +
+                "\n" +
+                "        PacketCase(int number) {\n" +
+                "            this.number = number;\n" +
+                "        }\n" +
+                "\n" +
+                "        public int getNumber() {\n" +
+                "            return number;\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private int sequence, ack;\n" +
+                "    private long ackBitfield;\n" +
+                "    private PacketCase packetCase = PacketCase.PACKET_NOT_SET;\n" +
+                "    private Message packet;\n" +
+                "\n" +
+                "    public static Builder newBuilder() {\n" +
+                "        return new Builder();\n" +
+                "    }\n" +
+                "\n" +
+                "    public static PacketWrapper parseFrom(byte[] data) throws InvalidProtocolBufferException {\n" +
+                "        return (PacketWrapper) StubWire.read(data);\n" +
+                "    }\n" +
+                "\n" +
+                "    public byte[] toByteArray() {\n" +
+                "        return StubWire.write(this);\n" +
+                "    }\n" +
+                "\n" +
+                "    // Заголовок пачки записан как PacketWrapper, а каждый её пакет - как поле \"oneof packet\"\n" +
+                "    // (с неизвестным номером поля получится PACKET_NOT_SET - как и в protobuf).\n" +
+                "    public static Parser<PacketWrapper> parser() {\n" +
+                "        return message -> {\n" +
+                "            if (!(message instanceof StubWire.Field))\n" +
+                "                return (PacketWrapper) message;\n" +
+                "\n" +
+                "            StubWire.Field field = (StubWire.Field) message;\n" +
+                "            PacketWrapper wrapper = new PacketWrapper();\n" +
+                "\n" +
+                "            for (PacketCase packetCase : PacketCase.values())\n" +
+                "                if (packetCase != PacketCase.PACKET_NOT_SET && packetCase.number == field.fieldNumber) {\n" +
+                "                    wrapper.packetCase = packetCase;\n" +
+                "                    wrapper.packet = (Message) field.message;\n" +
+                "                }\n" +
+                "\n" +
+                "            return wrapper;\n" +
+                "        };\n" +
+                "    }\n" +
+                "\n" +
+                "    public int getSequence() { return sequence; }\n" +
+                "    public int getAck() { return ack; }\n" +
+                "    public long getAckBitfield() { return ackBitfield; }\n" +
+                "    public PacketCase getPacketCase() { return packetCase; }\n");
+
+        for (PacketSpec packet : packets)
+            src.append("    public ").append(packet.getCamelName()).append(" get").append(packet.getCamelName())
+                    .append("() { return packetCase == PacketCase.").append(packet.getUpperName())
+                    .append(" ? (").append(packet.getCamelName()).append(") packet : null; }\n");
+
+        src.append("\n" +
+                "    public static final class Builder {\n" +
+                "\n" +
+                "        private PacketWrapper wrapper = new PacketWrapper();\n" +
+                "\n" +
+                "        public Builder setSequence(int sequence) { wrapper.sequence = sequence; return this; }\n" +
+                "        public Builder setAck(int ack) { wrapper.ack = ack; return this; }\n" +
+                "        public Builder setAckBitfield(long ackBitfield) { wrapper.ackBitfield = ackBitfield; return this; }\n" +
+                "\n" +
+                "        public Builder clear() {\n" +
+                "            wrapper = new PacketWrapper();\n" +
+                "            return this;\n" +
+                "        }\n" +
+                "\n" +
+                "        public PacketWrapper build() {\n" +
+                "            PacketWrapper built = wrapper;\n" +
+                "            wrapper = new PacketWrapper();\n" +
+                "            return built;\n" +
+                "        }\n" +
+                "\n");
+
+        for (PacketSpec packet : packets)
+            src.append("        public Builder set").append(packet.getCamelName()).append('(')
+                    .append(packet.getCamelName()).append(" packet) { wrapper.packetCase = PacketCase.")
+                    .append(packet.getUpperName()).append("; wrapper.packet = packet; return this; }\n");
+
+        src.append("    }\n" +
+                "\n" +
+                "}\n");
+
+        return src.toString();
+    }
+
+    // Скомпилированный сгенерированный код. Методы Transformer приватные - вызываются через reflection.
+    private static final class Generated {
+
+        private final List<PacketSpec> packets;
+        private final String source;
+        private final ClassLoader classLoader;
+        private final Class<?> message;
+        private final Method wrap, unwrap, wrapBatch, unwrapBatch;
+
+        Generated(List<PacketSpec> packets, String source, ClassLoader classLoader) throws Exception {
+            this.packets = packets;
+            this.source = source;
+            this.classLoader = classLoader;
+
+            Class<?> transformer = classLoader.loadClass("Transformer");
+            message = classLoader.loadClass("com.google.protobuf.Message");
+
+            wrap = transformer.getDeclaredMethod("internalGeneratedWrap", message, int.class, int.class, long.class);
+            unwrap = transformer.getDeclaredMethod("internalGeneratedUnwrap", byte[].class);
+            wrapBatch = transformer.getDeclaredMethod("internalGeneratedWrapBatch",
+                    List.class, int.class, int.class, long.class);
+            unwrapBatch = transformer.getDeclaredMethod("internalGeneratedUnwrapBatch",
+                    byte[].class, int.class, int.class);
+
+            for (Method method : new Method[] { wrap, unwrap, wrapBatch, unwrapBatch })
+                method.setAccessible(true);
+        }
+
+        Object newPacket(PacketSpec packet) throws Exception {
+            Constructor<?> constructor = classLoader.loadClass(packet.getCamelName()).getDeclaredConstructor();
+            constructor.setAccessible(true);
+
+            return constructor.newInstance();
+        }
+
+        // Каждый пакет должен попасть в свой case и в wrap, и в unwrap (иначе вернётся другой пакет или null).
+        void checkRoundTrips() throws Exception {
+            for (int i = 0; i < packets.size(); i++) {
+                PacketSpec packet = packets.get(i);
+                Object original = newPacket(packet);
+
+                byte[] data = (byte[]) wrap.invoke(null, original, i, -i, 1L << 40 | i);
+                Object unwrapped = unwrap.invoke(null, (Object) data);
+
+                assertNotNull(packet.getName(), unwrapped);
+                assertSame(packet.getName(), original, call(unwrapped, "getPacket"));
+                assertEquals(packet.getName(), packet.getUpperName(), call(unwrapped, "getPacketType").toString());
+                assertEquals(packet.getName(), i, call(unwrapped, "getSequence"));
+                assertEquals(packet.getName(), -i, call(unwrapped, "getAck"));
+                assertEquals(packet.getName(), 1L << 40 | i, call(unwrapped, "getAckBitfield"));
+            }
+        }
+
+        // Все пакеты в обратном порядке и с повтором, та же пачка не с начала массива и пустая пачка.
+        void checkBatchRoundTrips() throws Exception {
+            List<Object> batch = new ArrayList<>();
+
+            for (int i = packets.size() - 1; i >= 0; i--)
+                batch.add(newPacket(packets.get(i)));
+
+            batch.add(batch.get(0));
+
+            checkBatchRoundTrip(batch, 0);
+            checkBatchRoundTrip(batch, 5);
+            checkBatchRoundTrip(Collections.emptyList(), 0);
+
+            Object unknown = Proxy.newProxyInstance(classLoader, new Class<?>[] { message }, (proxy, method, args) -> null);
+            InvocationTargetException ex = assertThrows(InvocationTargetException.class,
+                    () -> wrapBatch.invoke(null, Collections.singletonList(unknown), 0, 0, 0L));
+            assertTrue(ex.getCause().getMessage().startsWith("no implemented transformer for packet type"));
+        }
+
+        private void checkBatchRoundTrip(List<Object> batch, int offset) throws Exception {
+            byte[] packed = (byte[]) wrapBatch.invoke(null, batch, 7, -7, 1L << 50);
+            byte[] data = new byte[offset + packed.length + 3];
+            System.arraycopy(packed, 0, data, offset, packed.length);
+
+            List<?> unwrapped = (List<?>) unwrapBatch.invoke(null, data, offset, packed.length);
+            assertEquals(batch.size(), unwrapped.size());
+
+            for (int i = 0; i < batch.size(); i++) {
+                String className = batch.get(i).getClass().getName();
+
+                assertSame(className, batch.get(i), call(unwrapped.get(i), "getPacket"));
+                String packetType = call(unwrapped.get(i), "getPacketType").toString();
+
+                assertEquals(className, Convert.snakeToCamel(packetType.toLowerCase()));
+                assertEquals(className, 7, call(unwrapped.get(i), "getSequence"));
+                assertEquals(className, -7, call(unwrapped.get(i), "getAck"));
+                assertEquals(className, 1L << 50, call(unwrapped.get(i), "getAckBitfield"));
+            }
+        }
+
+        // После checkRoundTrips у каждого пакета ровно один wrap и один unwrap, и счётчики пакета
+        // расположены по его номеру в "oneof packet" - в том числе в каждом из putPacketCasesN().
+        void checkTrafficCounters() throws Exception {
+            Class<?> statics = classLoader.loadClass("Transformer$InternalGeneratedStatics");
+            Class<?> packetCase = classLoader.loadClass("PacketWrapper$PacketCase");
+
+            int[] trafficIndex = (int[]) staticField(statics, "TRAFFIC_INDEX");
+            Object[] traffic = (Object[]) staticField(statics, "TRAFFIC");
+            assertEquals(packets.size() * 6, traffic.length);
+
+            for (int i = 0; i < packets.size(); i++) {
+                PacketSpec packet = packets.get(i);
+                Object type = packetCase.getMethod("valueOf", String.class).invoke(null, packet.getUpperName());
+
+                assertEquals(packet.getName(), i, trafficIndex[((Enum<?>) type).ordinal()]);
+                assertEquals(packet.getName(), 1L, call(traffic[i * 6], "sum"));
+                assertEquals(packet.getName(), 1L, call(traffic[i * 6 + 3], "sum"));
+            }
+        }
+
+        private static Object staticField(Class<?> owner, String name) throws Exception {
+            Field field = owner.getDeclaredField(name);
+            field.setAccessible(true);
+
+            return field.get(null);
+        }
+
+        private static Object call(Object target, String method) throws Exception {
+            return target.getClass().getMethod(method).invoke(target);
+        }
+
+    }
+
+}
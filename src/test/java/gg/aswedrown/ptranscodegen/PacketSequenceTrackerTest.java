@@ -0,0 +1,584 @@
+package gg.aswedrown.ptranscodegen;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+// Проверяет поведение сгенерированного PacketSequenceTracker: Java-версия компилируется и загружается прямо
+// в тесте, C++-версия (если есть компилятор C++) собирается вместе с tracker_driver.cpp и должна выдавать
+// на тех же командах ровно то же, что и Java-версия. Часы в обеих версиях подменяются, чтобы RTT был предсказуем.
+public class PacketSequenceTrackerTest {
+
+    private static final int RING_SIZE = SequenceTrackerSpec.RING_SIZE;
+    private static final int ACK_BITS = SequenceTrackerSpec.ACK_BITS;
+
+    private static final long MILLIS = 1000000L;
+
+    private static final String JAVA_TRACKER_CLASS = "GeneratedPacketSequenceTracker";
+
+    private static Path workDir;
+    private static Class<?> trackerClass;
+
+    @BeforeClass
+    public static void compileJavaTracker() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assumeTrue("no Java compiler available (tests are running on a JRE)", compiler != null);
+
+        StringBuilder tracker = new StringBuilder();
+        new JavaCodeGenerator(false, false).appendGeneratedSourcesSequenceTracker(tracker);
+
+        String trackerBody = tracker.toString();
+        assertTrue(trackerBody.contains("System.nanoTime()"));
+
+        workDir = Files.createTempDirectory("tracker-test");
+        Path source = workDir.resolve(JAVA_TRACKER_CLASS + ".java");
+
+        write(source, "public final class " + JAVA_TRACKER_CLASS + " {\n" +
+                "\n" +
+                "    public static volatile long fakeNanos;\n" +
+                "\n" +
+                trackerBody.replace("System.nanoTime()", "fakeNanos") +
+                "\n" +
+                "    public void startAt(int sequence) {\n" +
+                "        localSequence.set(sequence);\n" +
+                "        lossCheckedSequence.set(sequence & SEQUENCE_MASK);\n" +
+                "    }\n" +
+                "\n" +
+                "}\n");
+
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        int result = compiler.run(null, errors, errors,
+                "-encoding", "UTF-8", "-d", workDir.toString(), source.toString());
+        assertEquals("generated tracker does not compile:\n" + errors, 0, result);
+
+        URLClassLoader classLoader = new URLClassLoader(new URL[] { workDir.toUri().toURL() },
+                PacketSequenceTrackerTest.class.getClassLoader());
+        trackerClass = classLoader.loadClass(JAVA_TRACKER_CLASS);
+    }
+
+    @AfterClass
+    public static void deleteWorkDir() throws IOException {
+        if (workDir == null)
+            return;
+
+        // Сначала файлы, затем каталоги, в которых они лежат.
+        List<Path> paths = new ArrayList<>();
+
+        try (Stream<Path> walk = Files.walk(workDir)) {
+            walk.forEach(paths::add);
+        }
+
+        Collections.reverse(paths);
+
+        for (Path path : paths)
+            Files.deleteIfExists(path);
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Сгенерированный класс известен только во время выполнения теста - методы вызываются через reflection.
+    private static final class Tracker {
+
+        private final Object tracker;
+
+        Tracker() throws ReflectiveOperationException {
+            tracker = trackerClass.getConstructor().newInstance();
+        }
+
+        static void setClock(long nanos) throws ReflectiveOperationException {
+            trackerClass.getField("fakeNanos").setLong(null, nanos);
+        }
+
+        void startAt(int sequence) {
+            call("startAt", sequence);
+        }
+
+        int nextSequence() {
+            return (int) call("nextSequence");
+        }
+
+        boolean onReceived(int sequence, int ack, long ackBitfield) {
+            return (boolean) call("onReceived", sequence, ack, ackBitfield);
+        }
+
+        int getAck() {
+            return (int) call("getAck");
+        }
+
+        long getAckBitfield() {
+            return (long) call("getAckBitfield");
+        }
+
+        long getSentPackets() {
+            return (long) call("getSentPackets");
+        }
+
+        long getAckedPackets() {
+            return (long) call("getAckedPackets");
+        }
+
+        long getLostPackets() {
+            return (long) call("getLostPackets");
+        }
+
+        double getRoundTripTimeMillis() {
+            return (double) call("getRoundTripTimeMillis");
+        }
+
+        double getPacketLoss() {
+            return (double) call("getPacketLoss");
+        }
+
+        String state() {
+            return String.format(Locale.ROOT, "ack=%s bits=%d sent=%d acked=%d lost=%d rtt=%.6f loss=%.6f",
+                    Integer.toUnsignedString(getAck()), getAckBitfield(), getSentPackets(), getAckedPackets(),
+                    getLostPackets(), getRoundTripTimeMillis(), getPacketLoss());
+        }
+
+        private Object call(String name, Object... args) {
+            try {
+                for (Method method : trackerClass.getMethods())
+                    if (method.getName().equals(name) && method.getParameterCount() == args.length)
+                        return method.invoke(tracker, args);
+            } catch (IllegalAccessException ex) {
+                throw new AssertionError(ex);
+            } catch (InvocationTargetException ex) {
+                throw new AssertionError(ex.getCause());
+            }
+
+            throw new AssertionError("no method " + name + " in the generated tracker");
+        }
+
+    }
+
+    // Выполняет команды в формате tracker_driver.cpp над Java-версией трекера.
+    private static List<String> runJava(String script) throws ReflectiveOperationException {
+        List<String> output = new ArrayList<>();
+        Tracker tracker = new Tracker();
+
+        for (String line : script.split("\n")) {
+            String[] command = line.trim().split(" +");
+
+            switch (command[0]) {
+                case "new":
+                    tracker = new Tracker();
+                    break;
+
+                case "start":
+                    tracker.startAt((int) Long.parseLong(command[1]));
+                    break;
+
+                case "clock":
+                    Tracker.setClock(Long.parseLong(command[1]));
+                    break;
+
+                case "send":
+                    output.add(Integer.toUnsignedString(tracker.nextSequence()));
+                    break;
+
+                case "recv":
+                    output.add(String.valueOf(tracker.onReceived((int) Long.parseLong(command[1]),
+                            (int) Long.parseLong(command[2]), Long.parseLong(command[3]))));
+                    break;
+
+                case "state":
+                    output.add(tracker.state());
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("unknown command: " + line);
+            }
+        }
+
+        return output;
+    }
+
+    // Доля потерь после серии подтверждений (false) и потерь (true) - так же, как её сглаживает трекер.
+    private static double smoothedLoss(boolean... lost) {
+        double loss = 0;
+
+        for (boolean packetLost : lost)
+            loss += ((packetLost ? 1 : 0) - loss) * 0.125;
+
+        return loss;
+    }
+
+    @Test
+    public void ignoresDuplicateAndTooOldSequences() throws Exception {
+        Tracker tracker = new Tracker();
+
+        assertEquals(0, tracker.getAck());
+        assertEquals(0, tracker.getAckBitfield());
+
+        assertTrue(tracker.onReceived(5, 0, 0));
+        assertFalse(tracker.onReceived(5, 0, 0));
+        assertTrue(tracker.onReceived(3, 0, 0));
+        assertFalse(tracker.onReceived(3, 0, 0));
+        assertEquals(5, tracker.getAck());
+
+        assertTrue(tracker.onReceived(RING_SIZE + 10, 0, 0));
+        assertFalse("older than the receive window", tracker.onReceived(10, 0, 0));
+        assertTrue(tracker.onReceived(11, 0, 0));
+        assertFalse(tracker.onReceived(11, 0, 0));
+        assertEquals(RING_SIZE + 10, tracker.getAck());
+    }
+
+    @Test
+    public void reconstructsAckBitfield() throws Exception {
+        Tracker tracker = new Tracker();
+
+        for (int sequence : new int[] { 100, 99, 97, 68, 67 })
+            assertTrue(tracker.onReceived(sequence, 0, 0));
+
+        assertEquals(100, tracker.getAck());
+        // Бит i - пакет ack - 1 - i, всего ACK_BITS бит: 67 в них уже не попадает.
+        assertEquals(1L | 1L << 2 | 1L << (ACK_BITS - 1), tracker.getAckBitfield());
+
+        // Более старый пакет не сдвигает ack, но попадает в ackBitfield.
+        assertTrue(tracker.onReceived(98, 0, 0));
+        assertEquals(100, tracker.getAck());
+        assertEquals(1L | 1L << 1 | 1L << 2 | 1L << (ACK_BITS - 1), tracker.getAckBitfield());
+    }
+
+    @Test
+    public void receivedSequencesWrapAround() throws Exception {
+        for (long first : new long[] { 0xFFFEL, 0xFFFFFFFEL }) {
+            Tracker tracker = new Tracker();
+
+            for (long sequence = first; sequence < first + 4; sequence++)
+                assertTrue(tracker.onReceived((int) sequence, 0, 0));
+
+            assertEquals((int) (first + 3), tracker.getAck());
+            assertEquals(0b111, tracker.getAckBitfield());
+
+            // Пакет "до переполнения" старше последнего - ack не меняется.
+            assertTrue(tracker.onReceived((int) (first - 1), 0, 0));
+            assertEquals((int) (first + 3), tracker.getAck());
+            assertEquals(0b1111, tracker.getAckBitfield());
+        }
+    }
+
+    @Test
+    public void detectsLossesOutsideAckWindow() throws Exception {
+        for (long start : new long[] { 0, 0xFFFFL - 20, 0xFFFFFFFFL - 20 }) {
+            Tracker tracker = new Tracker();
+            tracker.startAt((int) start);
+
+            int[] sequences = new int[ACK_BITS + 8];
+
+            for (int i = 0; i < sequences.length; i++)
+                sequences[i] = tracker.nextSequence();
+
+            assertEquals((int) (start + 1), sequences[0]);
+            assertEquals((int) (start + sequences.length), sequences[sequences.length - 1]);
+
+            // Подтверждён только последний пакет: все, кто старше него более чем на ACK_BITS, потеряны,
+            // а остальные ещё могут быть подтверждены битами ackBitfield.
+            int ack = sequences[sequences.length - 1];
+            assertTrue(tracker.onReceived(1, ack, 0));
+            assertEquals(1, tracker.getAckedPackets());
+            assertEquals(sequences.length - 1 - ACK_BITS, tracker.getLostPackets());
+
+            assertTrue(tracker.onReceived(2, ack, 0xFFFFFFFFL));
+            assertEquals(1 + ACK_BITS, tracker.getAckedPackets());
+            assertEquals(sequences.length - 1 - ACK_BITS, tracker.getLostPackets());
+
+            // Повторные подтверждения не учитываются второй раз.
+            assertTrue(tracker.onReceived(3, ack, 0xFFFFFFFFL));
+            assertEquals(1 + ACK_BITS, tracker.getAckedPackets());
+            assertEquals(sequences.length, tracker.getSentPackets());
+
+            // Сначала подтверждение последнего пакета, затем потери, затем подтверждения битами ackBitfield.
+            boolean[] lost = new boolean[sequences.length];
+            Arrays.fill(lost, 1, sequences.length - ACK_BITS, true);
+            assertEquals(smoothedLoss(lost), tracker.getPacketLoss(), 1e-12);
+        }
+    }
+
+    @Test
+    public void countsPacketsEvictedFromRingAsLost() throws Exception {
+        Tracker tracker = new Tracker();
+
+        for (int i = 0; i < RING_SIZE + 5; i++)
+            tracker.nextSequence();
+
+        assertEquals(RING_SIZE + 5, tracker.getSentPackets());
+        assertEquals(5, tracker.getLostPackets());
+        assertEquals(0, tracker.getAckedPackets());
+    }
+
+    @Test
+    public void smoothsRoundTripTime() throws Exception {
+        Tracker tracker = new Tracker();
+        assertEquals(-1.0, tracker.getRoundTripTimeMillis(), 0);
+
+        Tracker.setClock(0);
+        int first = tracker.nextSequence();
+        Tracker.setClock(100 * MILLIS);
+        assertTrue(tracker.onReceived(1, first, 0));
+        // Первый замер берётся как есть.
+        assertEquals(100.0, tracker.getRoundTripTimeMillis(), 1e-9);
+
+        int second = tracker.nextSequence();
+        Tracker.setClock(120 * MILLIS);
+        assertTrue(tracker.onReceived(2, second, 0));
+        assertEquals(100.0 + (20.0 - 100.0) * 0.125, tracker.getRoundTripTimeMillis(), 1e-9);
+
+        // Повторное подтверждение не даёт нового замера.
+        Tracker.setClock(500 * MILLIS);
+        assertTrue(tracker.onReceived(3, second, 1));
+        assertEquals(90.0, tracker.getRoundTripTimeMillis(), 1e-9);
+        assertEquals(2, tracker.getAckedPackets());
+        assertEquals(0.0, tracker.getPacketLoss(), 0);
+    }
+
+    @Test
+    public void concurrentSendAndAckCountEveryPacketOnce() throws Exception {
+        Tracker tracker = new Tracker();
+        tracker.startAt(-5001);
+        Tracker.setClock(0);
+
+        int threads = 4, packetsPerThread = 20000;
+        AtomicInteger lastSent = new AtomicInteger(-5000);
+        AtomicInteger remoteSequence = new AtomicInteger();
+        CountDownLatch sendersLeft = new CountDownLatch(threads);
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < packetsPerThread; i++) {
+                    int sequence = tracker.nextSequence();
+                    lastSent.accumulateAndGet(sequence, Math::max);
+                }
+
+                sendersLeft.countDown();
+            }));
+
+            Random random = new Random(t);
+
+            workers.add(new Thread(() -> {
+                while (sendersLeft.getCount() > 0)
+                    tracker.onReceived(remoteSequence.getAndIncrement() / 2,
+                            lastSent.get() - random.nextInt(64), random.nextInt() & 0xFFFFFFFFL);
+            }));
+        }
+
+        runAll(workers, failures);
+
+        // Все пакеты, кроме последних RING_SIZE, вытесняются из кольца - каждый должен быть
+        // учтён ровно один раз: либо как подтверждённый, либо как потерянный.
+        for (int i = 0; i < RING_SIZE; i++)
+            tracker.nextSequence();
+
+        long sent = tracker.getSentPackets();
+        assertEquals((long) threads * packetsPerThread + RING_SIZE, sent);
+        assertEquals(sent - RING_SIZE, tracker.getAckedPackets() + tracker.getLostPackets());
+
+        double loss = tracker.getPacketLoss();
+        assertTrue(loss >= 0 && loss <= 1);
+    }
+
+    @Test
+    public void concurrentReceivesAcceptEverySequenceOnce() throws Exception {
+        Tracker tracker = new Tracker();
+        AtomicInteger accepted = new AtomicInteger();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < 4; t++) {
+            List<Integer> sequences = new ArrayList<>();
+
+            for (int sequence = 1; sequence <= RING_SIZE; sequence++)
+                sequences.add(sequence);
+
+            Collections.shuffle(sequences, new Random(t));
+
+            workers.add(new Thread(() -> {
+                for (int sequence : sequences)
+                    if (tracker.onReceived(sequence, 0, 0))
+                        accepted.incrementAndGet();
+            }));
+        }
+
+        runAll(workers, failures);
+
+        assertEquals(RING_SIZE, accepted.get());
+        assertEquals(RING_SIZE, tracker.getAck());
+        assertEquals(0xFFFFFFFFL, tracker.getAckBitfield());
+    }
+
+    private static void runAll(List<Thread> workers, List<Throwable> failures) throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.setUncaughtExceptionHandler((thread, ex) -> failures.add(ex));
+            worker.start();
+        }
+
+        for (Thread worker : workers)
+            worker.join();
+
+        if (!failures.isEmpty())
+            throw new AssertionError(failures.get(0));
+    }
+
+    @Test
+    public void cppTrackerBehavesLikeJavaTracker() throws Exception {
+        File driver = buildCppDriver();
+        StringBuilder script = new StringBuilder();
+
+        // Дубликаты, окно приёма и ackBitfield.
+        script.append("new\n");
+
+        for (long sequence : new long[] { 5, 5, 3, 100, 99, 97, 68, 67, 98, RING_SIZE + 100, 100, 101 })
+            script.append("recv ").append(sequence).append(" 0 0\nstate\n");
+
+        // Переполнение 16- и 32-битных sequence: отправка, потери за пределами ackBitfield, RTT и доля потерь.
+        for (long start : new long[] { 0, 0xFFFFL - 20, 0xFFFFFFFFL - 20 }) {
+            long last = start + ACK_BITS + 8;
+
+            script.append("new\nstart ").append(start).append("\nclock 0\n");
+
+            for (int i = 0; i < ACK_BITS + 8; i++)
+                script.append("send\nclock ").append((i + 1) * MILLIS).append('\n');
+
+            script.append("recv 1 ").append(last & 0xFFFFFFFFL).append(" 0\nstate\n")
+                  .append("clock ").append(200 * MILLIS).append('\n')
+                  .append("recv 2 ").append(last & 0xFFFFFFFFL).append(" 2863311530\nstate\n")
+                  .append("recv 2 ").append(last & 0xFFFFFFFFL).append(" 4294967295\nstate\n")
+                  .append("recv 4294967295 ").append((last - 1) & 0xFFFFFFFFL).append(" 0\nstate\n");
+        }
+
+        // Вытеснение неподтверждённых пакетов из кольца.
+        script.append("new\n");
+
+        for (int i = 0; i < RING_SIZE + 5; i++)
+            script.append("send\n");
+
+        script.append("state\n");
+
+        List<String> expected = runJava(script.toString());
+        List<String> actual = runCpp(driver, script.toString());
+
+        assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals("output line " + (i + 1), expected.get(i), actual.get(i));
+    }
+
+    @Test
+    public void cppTrackerSurvivesConcurrentUse() throws Exception {
+        assertEquals(Collections.singletonList("stress ok"), runCpp(buildCppDriver(), "stress\n"));
+    }
+
+    private static File cppDriver;
+
+    private static synchronized File buildCppDriver() throws Exception {
+        if (cppDriver != null)
+            return cppDriver;
+
+        String compiler = findCppCompiler();
+        assumeTrue("no C++ compiler available", compiler != null);
+
+        StringBuilder tracker = new StringBuilder();
+        new CppCodeGenerator(false).appendGeneratedSourcesSequenceTracker(tracker);
+
+        String trackerBody = tracker.toString();
+        assertTrue(trackerBody.contains("std::chrono::steady_clock::now()"));
+
+        write(workDir.resolve("tracker.hpp"), "#pragma once\n" +
+                "\n" +
+                "#include <atomic>\n" +
+                "#include <chrono>\n" +
+                "#include <cstdint>\n" +
+                "\n" +
+                "struct FakeClock {\n" +
+                "    static std::atomic<int64_t> nanos;\n" +
+                "\n" +
+                "    static std::chrono::steady_clock::time_point now() {\n" +
+                "        return std::chrono::steady_clock::time_point(std::chrono::nanoseconds(nanos.load()));\n" +
+                "    }\n" +
+                "};\n" +
+                "\n" +
+                "class PacketSequenceTracker {\n" +
+                trackerBody.replace("std::chrono::steady_clock::now()", "FakeClock::now()") +
+                "\n" +
+                "    friend struct TrackerAccess;\n" +
+                "};\n");
+
+        try (InputStream driverSource = PacketSequenceTrackerTest.class.getResourceAsStream("tracker_driver.cpp")) {
+            assertNotNull(driverSource);
+            Files.copy(driverSource, workDir.resolve("tracker_driver.cpp"));
+        }
+
+        File driver = workDir.resolve("tracker_driver").toFile();
+        Process process = new ProcessBuilder(compiler, "-std=c++11", "-O2", "-Wall", "-pthread",
+                "-o", driver.getPath(), "tracker_driver.cpp")
+                .directory(workDir.toFile()).redirectErrorStream(true).start();
+
+        String compilerOutput = readAll(process.getInputStream());
+        assertEquals("generated C++ tracker does not compile:\n" + compilerOutput, 0, process.waitFor());
+
+        return cppDriver = driver;
+    }
+
+    private static String findCppCompiler() {
+        for (String compiler : new String[] { "c++", "g++", "clang++" }) {
+            try {
+                Process process = new ProcessBuilder(compiler, "--version").redirectErrorStream(true).start();
+                readAll(process.getInputStream());
+
+                if (process.waitFor() == 0)
+                    return compiler;
+            } catch (IOException | InterruptedException ignored) {
+                // Пробуем следующий.
+            }
+        }
+
+        return null;
+    }
+
+    private static List<String> runCpp(File driver, String script) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(driver.getPath()).redirectErrorStream(true).start();
+
+        try (OutputStream input = process.getOutputStream()) {
+            input.write(script.getBytes(StandardCharsets.UTF_8));
+        }
+
+        String output = readAll(process.getInputStream());
+        assertEquals("tracker driver failed:\n" + output, 0, process.waitFor());
+
+        return output.isEmpty() ? Collections.emptyList() : Arrays.asList(output.split("\n"));
+    }
+
+    private static String readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = input.read(buffer)) != -1)
+            output.write(buffer, 0, read);
+
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,218 @@
+package gg.aswedrown.ptranscodegen;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ProtoSchemaTest {
+
+    private static ProtoSchema parse(String proto) throws IOException, ProtoSyntaxException {
+        return ProtoSchema.parse(new StringReader(proto));
+    }
+
+    private static ProtoSyntaxException syntaxError(String proto) {
+        return assertThrows(ProtoSyntaxException.class, () -> parse(proto));
+    }
+
+    private static List<String> names(ProtoSchema schema) {
+        List<String> names = new ArrayList<>();
+
+        for (PacketSpec packet : schema.getPackets())
+            names.add(packet.getName() + "=" + packet.getFieldNumber());
+
+        return names;
+    }
+
+    @Test
+    public void parsesPacketsInDeclarationOrder() throws Exception {
+        ProtoSchema schema = parse("syntax = \"proto3\";\n" +
+                "package game;\n" +
+                "\n" +
+                "message Ping {}\n" +
+                "message JoinLobbyRequest { string name = 1; }\n" +
+                "message LobbyUpdated { uint32 players = 1; }\n" +
+                "\n" +
+                "message PacketWrapper {\n" +
+                "  uint32 sequence = 1;\n" +
+                "  uint32 ack = 2;\n" +
+                "  uint64 ack_bitfield = 3;\n" +
+                "\n" +
+                "  oneof packet {\n" +
+                "    LobbyUpdated lobby_updated = 40;\n" +
+                "    Ping ping = 0x10;\n" +
+                "    JoinLobbyRequest join_lobby_request = 5;\n" +
+                "  }\n" +
+                "}\n");
+
+        // Порядок - как в "oneof packet", а не по номерам полей.
+        assertEquals(Arrays.asList("lobby_updated=40", "ping=16", "join_lobby_request=5"), names(schema));
+
+        PacketSpec packet = schema.getPackets().get(2);
+        assertEquals("JoinLobbyRequest", packet.getCamelName());
+        assertEquals("JOIN_LOBBY_REQUEST", packet.getUpperName());
+        assertEquals(40, PacketSpec.maxFieldNumber(schema.getPackets()));
+    }
+
+    @Test
+    public void ignoresCommentsInsideOneof() throws Exception {
+        ProtoSchema schema = parse("message Ping {}\n" +
+                "message Pong {}\n" +
+                "message PacketWrapper {\n" +
+                "  oneof packet { // packets\n" +
+                "    // Ping pong = 3;\n" +
+                "    Ping /* type */ ping /* name */ = /* number */ 4; // trailing\n" +
+                "    /* Pong ping = 5;\n" +
+                "       Ping ping = 6; */\n" +
+                "    Pong pong = 7;\n" +
+                "    /**/ // }\n" +
+                "  }\n" +
+                "}\n");
+
+        assertEquals(Arrays.asList("ping=4", "pong=7"), names(schema));
+    }
+
+    @Test
+    public void nestedMessagesAndEnumsAreNotPackets() throws Exception {
+        ProtoSchema schema = parse("enum Team { RED = 0; BLUE = 1; }\n" +
+                "\n" +
+                "message Move {\n" +
+                "  message Vector { float x = 1; float y = 2; }\n" +
+                "  enum Kind { WALK = 0; RUN = 1; }\n" +
+                "\n" +
+                "  Vector direction = 1;\n" +
+                "  Kind kind = 2;\n" +
+                "  Team team = 3;\n" +
+                "}\n" +
+                "\n" +
+                "message PacketWrapper {\n" +
+                "  message Nested { oneof packet { Move move = 1; } }\n" +
+                "  enum Flags { NONE = 0; }\n" +
+                "\n" +
+                "  Flags flags = 1;\n" +
+                "\n" +
+                "  oneof packet {\n" +
+                "    Move move = 4;\n" +
+                "  }\n" +
+                "}\n");
+
+        assertEquals(Arrays.asList("move=4"), names(schema));
+    }
+
+    @Test
+    public void skipsOptionsReservedAndMapFields() throws Exception {
+        ProtoSchema schema = parse("syntax = \"proto3\";\n" +
+                "import \"google/protobuf/descriptor.proto\";\n" +
+                "option java_package = \"gg.aswedrown.game\";\n" +
+                "option (custom) = { name: \"x\" nested { value: 1 } };\n" +
+                "\n" +
+                "message Stats {\n" +
+                "  option deprecated = true;\n" +
+                "  reserved 2, 15, 9 to 11;\n" +
+                "  reserved \"old_name\";\n" +
+                "\n" +
+                "  map<string, int64> counters = 1;\n" +
+                "  map<uint32, Stats> children = 3 [deprecated = true];\n" +
+                "  repeated int32 samples = 4 [packed = true];\n" +
+                "  optional string comment = 5;\n" +
+                "}\n" +
+                "\n" +
+                "message PacketWrapper {\n" +
+                "  reserved 4;\n" +
+                "  uint32 sequence = 1 [json_name = \"seq\"];\n" +
+                "\n" +
+                "  oneof packet {\n" +
+                "    option (oneof_option) = true;\n" +
+                "    Stats stats = 5;\n" +
+                "  }\n" +
+                "}\n" +
+                "\n" +
+                "service Lobby { rpc Join (Stats) returns (Stats) { option idempotency_level = NO_SIDE_EFFECTS; } }\n");
+
+        assertEquals(Arrays.asList("stats=5"), names(schema));
+    }
+
+    @Test
+    public void rejectsUnterminatedBlocks() {
+        assertEquals("line 2: unexpected end of file inside message",
+                syntaxError("message Ping {\n  uint32 x = 1;").getMessage());
+
+        assertEquals("line 3: unexpected end of file inside oneof",
+                syntaxError("message Ping {}\nmessage PacketWrapper {\n  oneof packet { Ping ping = 4;").getMessage());
+
+        assertEquals("line 1: unexpected end of file, missing '}'",
+                syntaxError("enum Team { RED = 0;").getMessage());
+
+        assertEquals("line 2: unterminated /* comment */",
+                syntaxError("message Ping {}\n/* message PacketWrapper {").getMessage());
+    }
+
+    @Test
+    public void rejectsPacketTypeNotMatchingFieldName() {
+        ProtoSyntaxException ex = syntaxError("message Ping {}\n" +
+                "message PacketWrapper {\n" +
+                "  oneof packet {\n" +
+                "    Ping keep_alive = 4;\n" +
+                "  }\n" +
+                "}\n");
+
+        assertEquals("Packet keep_alive must be of type KeepAlive (its name in CamelCase), " +
+                "but it is of type Ping", ex.getMessage());
+    }
+
+    @Test
+    public void rejectsDuplicateFieldNumbers() {
+        assertEquals("line 5: duplicate field number 4", syntaxError("message Ping {}\n" +
+                "message Pong {}\n" +
+                "message PacketWrapper {\n" +
+                "  oneof packet {\n" +
+                "    Ping ping = 4; Pong pong = 4;\n" +
+                "  }\n" +
+                "}\n").getMessage());
+
+        // Поля из oneof и обычные поля сообщения нумеруются вместе.
+        assertEquals("line 4: duplicate field number 3", syntaxError("message Ping {}\n" +
+                "message PacketWrapper {\n" +
+                "  uint64 ack_bitfield = 3;\n" +
+                "  oneof packet { Ping ping = 3; }\n" +
+                "}\n").getMessage());
+
+        assertEquals("line 1: duplicate field number 1",
+                syntaxError("message Ping { uint32 x = 1; map<string, string> y = 1; }").getMessage());
+    }
+
+    @Test
+    public void rejectsDuplicatePackets() {
+        assertEquals("line 3: duplicate packet ping in 'oneof packet {...}'", syntaxError("message Ping {}\n" +
+                "message PacketWrapper {\n" +
+                "  oneof packet { Ping ping = 4; Ping ping = 5; }\n" +
+                "}\n").getMessage());
+
+        assertEquals("line 2: duplicate declaration of message Ping",
+                syntaxError("message Ping {}\nmessage Ping {}\n").getMessage());
+    }
+
+    @Test
+    public void rejectsMissingOrUnlistedPackets() {
+        assertTrue(syntaxError("message Ping {}\nmessage PacketWrapper { uint32 sequence = 1; }")
+                .getMessage().startsWith("'oneof packet {...}' packet types specification is missing"));
+
+        assertTrue(syntaxError("message PacketWrapper { oneof packet { Ping ping = 4; } }")
+                .getMessage().contains("its class ('message Ping {...}' declaration) is missing"));
+
+        assertTrue(syntaxError("message Ping {}\nmessage Pong {}\nmessage PacketWrapper { oneof packet { Ping ping = 4; } }")
+                .getMessage().startsWith("Packet Pong class specificatin"));
+    }
+
+    @Test
+    public void rejectsInvalidFieldNumber() {
+        assertEquals("line 1: invalid field number 'four'",
+                syntaxError("message Ping { uint32 x = four; }").getMessage());
+    }
+
+}
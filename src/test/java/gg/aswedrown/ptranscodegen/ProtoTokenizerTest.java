@@ -0,0 +1,112 @@
+package gg.aswedrown.ptranscodegen;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ProtoTokenizerTest {
+
+    private static List<String> tokens(String proto) throws IOException, ProtoSyntaxException {
+        ProtoTokenizer tokenizer = new ProtoTokenizer(new StringReader(proto));
+        List<String> tokens = new ArrayList<>();
+        String token;
+
+        while ((token = tokenizer.next()) != null)
+            tokens.add(token);
+
+        return tokens;
+    }
+
+    private static ProtoSyntaxException syntaxError(String proto) {
+        return assertThrows(ProtoSyntaxException.class, () -> tokens(proto));
+    }
+
+    @Test
+    public void splitsWordsNumbersStringsAndSymbols() throws Exception {
+        assertEquals(Arrays.asList("import", "\"google/protobuf/any.proto\"", ";",
+                "google.protobuf.Any", "x", "=", "0x1F", "[", "json_name", "=", "'x\\'y'", "]", ";",
+                "map", "<", "string", ",", "int32", ">"),
+                tokens("import \"google/protobuf/any.proto\";\n" +
+                        "google.protobuf.Any x = 0x1F [json_name = 'x\\'y'];\n" +
+                        "map<string,int32>"));
+    }
+
+    @Test
+    public void skipsLineAndBlockComments() throws Exception {
+        assertEquals(Arrays.asList("message", "Ping", "{", "}"),
+                tokens("// comment\n" +
+                        "message /* inline */ Ping /* multi\n" +
+                        " * line */ {\n" +
+                        "} // no newline at end of file"));
+    }
+
+    @Test
+    public void commentsDoNotNeedSurroundingWhitespace() throws Exception {
+        assertEquals(Arrays.asList("a", "b", "c"), tokens("a/**/b//c\nc"));
+        assertEquals(Arrays.asList("a", "b"), tokens("a/* ** / * */b"));
+    }
+
+    @Test
+    public void peekDoesNotConsumeToken() throws Exception {
+        ProtoTokenizer tokenizer = new ProtoTokenizer(new StringReader("a b"));
+
+        assertEquals("a", tokenizer.peek());
+        assertEquals("a", tokenizer.peek());
+        assertEquals("a", tokenizer.next());
+        assertEquals("b", tokenizer.next());
+        assertNull(tokenizer.peek());
+        assertNull(tokenizer.next());
+    }
+
+    @Test
+    public void tracksLinesAcrossComments() throws Exception {
+        ProtoTokenizer tokenizer = new ProtoTokenizer(new StringReader(
+                "first\n" +
+                "/* one\n" +
+                "   two */ second // three\n" +
+                "\n" +
+                "third"));
+
+        tokenizer.next();
+        assertEquals(1, tokenizer.getLine());
+        tokenizer.next();
+        assertEquals(3, tokenizer.getLine());
+        tokenizer.next();
+        assertEquals(5, tokenizer.getLine());
+    }
+
+    @Test
+    public void expectReportsUnexpectedToken() throws Exception {
+        ProtoTokenizer tokenizer = new ProtoTokenizer(new StringReader("\n\nmessage"));
+
+        ProtoSyntaxException ex = assertThrows(ProtoSyntaxException.class, () -> tokenizer.expect("{"));
+        assertEquals("line 3: expected '{', but got 'message'", ex.getMessage());
+
+        ex = assertThrows(ProtoSyntaxException.class, tokenizer::expectIdentifier);
+        assertEquals("line 3: expected identifier, but got end of file", ex.getMessage());
+    }
+
+    @Test
+    public void rejectsUnterminatedBlockComment() {
+        assertEquals("line 2: unterminated /* comment */",
+                syntaxError("a\n/* never\nclosed *").getMessage());
+    }
+
+    @Test
+    public void rejectsUnterminatedString() {
+        assertEquals("line 1: unterminated string literal", syntaxError("option x = \"abc\n\";").getMessage());
+        assertEquals("line 1: unterminated string literal", syntaxError("option x = 'abc").getMessage());
+    }
+
+    @Test
+    public void rejectsSingleSlash() {
+        assertEquals("line 2: unexpected character '/'", syntaxError("a\n/ b").getMessage());
+    }
+
+}
@@ -0,0 +1,181 @@
+package gg.aswedrown.ptranscodegen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class SourceRewriteTest {
+
+    private Path dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("rewrite-test");
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        List<Path> paths = new ArrayList<>();
+
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.forEach(paths::add);
+        }
+
+        Collections.reverse(paths);
+
+        for (Path path : paths)
+            Files.deleteIfExists(path);
+    }
+
+    // Исходная и изменённая стороны приходят кусками, как при построчной перезаписи исходника.
+    private static boolean equal(List<String> original, List<String> modified) throws IOException {
+        StringWriter written = new StringWriter();
+        SourceRewrite rewrite = new SourceRewrite(written);
+        int count = Math.max(original.size(), modified.size());
+
+        for (int i = 0; i < count; i++) {
+            if (i < original.size())
+                rewrite.appendOriginal(original.get(i));
+
+            if (i < modified.size())
+                rewrite.appendModified(modified.get(i));
+        }
+
+        // Изменённый код пишется целиком, независимо от результата сравнения.
+        assertEquals(String.join("", modified), written.toString());
+
+        return rewrite.areProgrammaticallyEqual();
+    }
+
+    private static List<String> chunks(String... chunks) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, chunks);
+
+        return list;
+    }
+
+    @Test
+    public void ignoresWhitespaceSplitAcrossChunks() throws Exception {
+        assertTrue(equal(chunks("int a", "=1;\n", "}"),
+                         chunks("int  a =\n", "\t1 ;", "\n\n}\n")));
+
+        // Одна сторона забегает далеко вперёд, а другая догоняет её по одному символу.
+        assertTrue(equal(chunks("return packet.build();"),
+                         chunks("return ", "p", "a", "cket", ".", "build", "(", ")", ";", "   ")));
+
+        assertTrue(equal(chunks("", "  \n", ""), chunks("\t")));
+    }
+
+    @Test
+    public void detectsDifferenceAtEnd() throws Exception {
+        assertFalse(equal(chunks("int a = 1;", "}"), chunks("int a = 1;", ")")));
+        assertFalse(equal(chunks("int a = 1;\n", "}\n"), chunks("int a = 1;\n", "\n", "  }x\n")));
+    }
+
+    @Test
+    public void detectsDifferenceInsideChunk() throws Exception {
+        assertFalse(equal(chunks("int a = 1;", "int b = 2;"), chunks("int a = 1;int c = 2;")));
+        assertFalse(equal(chunks("ab"), chunks("ba")));
+    }
+
+    @Test
+    public void prefixIsNotEqual() throws Exception {
+        assertFalse(equal(chunks("int a = 1;", "int b = 2;"), chunks("int a = 1;")));
+        assertFalse(equal(chunks("int a = 1;"), chunks("int a = 1;", "int b = 2;")));
+        assertFalse(equal(chunks(""), chunks("x")));
+    }
+
+    @Test
+    public void failedRewriteLeavesOriginalFile() throws Exception {
+        List<PacketSpec> packets = ProtoSchema.parse(new StringReader("message Ping {}\n" +
+                "message PacketWrapper { oneof packet { Ping ping = 4; } }\n")).getPackets();
+
+        // Нет объявления internalGeneratedWrap - генерация прерывается уже после того, как
+        // часть изменённого кода записана во временный файл.
+        String source = "class Transformer {\n" +
+                "    private static final class InternalGeneratedStatics {\n" +
+                "    }\n" +
+                "}\n";
+
+        Path sourcePath = dir.resolve("Transformer.java");
+        Files.write(sourcePath, source.getBytes(StandardCharsets.UTF_8));
+
+        File backup = dir.resolve("Transformer_BACKUP.java").toFile();
+
+        assertThrows(CodeGenException.class, () -> PTransCodeGen.generate(new JavaCodeGenerator(false, false),
+                sourcePath.toFile(), backup, packets, CodeGenLog.buffered()));
+
+        assertEquals(source, new String(Files.readAllBytes(sourcePath), StandardCharsets.UTF_8));
+        assertEquals(Collections.singletonList("Transformer.java"), fileNames());
+    }
+
+    @Test
+    public void replaceKeepsPermissions() throws Exception {
+        assumePosix();
+
+        Path target = file("Transformer.java", "old", "rwxr-x---");
+        Path temp = file(".Transformer.java.tmp", "new", "rw-------");
+
+        PTransCodeGen.replace(temp, target, CodeGenLog.buffered());
+
+        assertEquals("new", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+        assertEquals(PosixFilePermissions.fromString("rwxr-x---"), Files.getPosixFilePermissions(target));
+        assertEquals(Collections.singletonList("Transformer.java"), fileNames());
+    }
+
+    @Test
+    public void nonAtomicReplaceKeepsPermissions() throws Exception {
+        assumePosix();
+
+        Path target = file("Transformer.java", "old", "rw-rw-r--");
+        Path temp = file(".Transformer.java.tmp", "new", "rw-------");
+
+        PTransCodeGen.replaceNonAtomically(temp, target);
+
+        assertEquals("new", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+        assertEquals(PosixFilePermissions.fromString("rw-rw-r--"), Files.getPosixFilePermissions(target));
+        assertEquals(Collections.singletonList("Transformer.java"), fileNames());
+    }
+
+    private static void assumePosix() {
+        assumeTrue("file system does not support POSIX permissions",
+                FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+    }
+
+    private Path file(String name, String content, String permissions) throws IOException {
+        Path path = dir.resolve(name);
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+
+        Set<PosixFilePermission> posixPermissions = PosixFilePermissions.fromString(permissions);
+        Files.setPosixFilePermissions(path, posixPermissions);
+
+        return path;
+    }
+
+    private List<String> fileNames() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(path -> path.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+}
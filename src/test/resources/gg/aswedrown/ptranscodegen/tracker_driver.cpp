@@ -0,0 +1,173 @@
+// Драйвер для PacketSequenceTrackerTest: читает команды из stdin и выполняет их над сгенерированным
+// PacketSequenceTracker (tracker.hpp создаётся самим тестом). Вывод - в том же формате, что и у Java-стороны теста.
+//
+//   new                 - новый трекер
+//   start SEQUENCE      - следующий nextSequence() вернёт SEQUENCE + 1
+//   clock NANOS         - текущее время для трекера
+//   send                - nextSequence(), выводит sequence
+//   recv SEQUENCE ACK ACK_BITFIELD - onReceived(...), выводит true/false
+//   state               - выводит getAck(), getAckBitfield(), счётчики, RTT и долю потерь
+//   stress              - конкурентная проверка, выводит "stress ok" или описание ошибки
+
+#include "tracker.hpp"
+
+#include <algorithm>
+#include <cinttypes>
+#include <cstdio>
+#include <iostream>
+#include <memory>
+#include <random>
+#include <sstream>
+#include <string>
+#include <thread>
+#include <vector>
+
+std::atomic<int64_t> FakeClock::nanos{0};
+
+struct TrackerAccess {
+    static void startAt(PacketSequenceTracker& tracker, uint32_t sequence) {
+        tracker.localSequence = sequence;
+        tracker.lossCheckedSequence = sequence;
+    }
+};
+
+static void printState(const PacketSequenceTracker& tracker) {
+    std::printf("ack=%" PRIu32 " bits=%" PRIu32 " sent=%" PRIu64 " acked=%" PRIu64 " lost=%" PRIu64
+                " rtt=%.6f loss=%.6f\n",
+                tracker.getAck(), tracker.getAckBitfield(), tracker.getSentPackets(), tracker.getAckedPackets(),
+                tracker.getLostPackets(), tracker.getRoundTripTimeMillis(), tracker.getPacketLoss());
+}
+
+static std::string stressSendAndAck(int threads, int packetsPerThread) {
+    std::unique_ptr<PacketSequenceTracker> tracker(new PacketSequenceTracker());
+    TrackerAccess::startAt(*tracker, UINT32_C(0xFFFFFFFF) - 5000);
+
+    std::atomic<int32_t> lastSent{-5000};
+    std::atomic<uint32_t> remoteSequence{0};
+    std::atomic<int> sendersLeft{threads};
+    std::vector<std::thread> workers;
+
+    for (int t = 0; t < threads; t++) {
+        workers.emplace_back([&] {
+            for (int i = 0; i < packetsPerThread; i++) {
+                auto sequence = static_cast<int32_t>(tracker->nextSequence());
+                int32_t last = lastSent.load();
+
+                while (sequence > last && !lastSent.compare_exchange_weak(last, sequence))
+                    ;
+            }
+
+            sendersLeft--;
+        });
+
+        workers.emplace_back([&, t] {
+            std::mt19937 random(t);
+
+            while (sendersLeft.load() > 0) {
+                auto ack = static_cast<uint32_t>(lastSent.load() - static_cast<int32_t>(random() % 64));
+                tracker->onReceived(remoteSequence.fetch_add(1) / 2, ack, static_cast<uint32_t>(random()));
+            }
+        });
+    }
+
+    for (auto& worker : workers)
+        worker.join();
+
+    // Все пакеты, кроме последних RING_SIZE, вытесняются из кольца - каждый должен быть
+    // учтён ровно один раз: либо как подтверждённый, либо как потерянный.
+    for (uint32_t i = 0; i < PacketSequenceTracker::RING_SIZE; i++)
+        tracker->nextSequence();
+
+    uint64_t sent = tracker->getSentPackets();
+    uint64_t counted = tracker->getAckedPackets() + tracker->getLostPackets();
+
+    if (sent != static_cast<uint64_t>(threads) * packetsPerThread + PacketSequenceTracker::RING_SIZE
+            || counted != sent - PacketSequenceTracker::RING_SIZE) {
+        std::ostringstream error;
+        error << "stress send/ack failed: sent=" << sent << " acked+lost=" << counted;
+        return error.str();
+    }
+
+    if (tracker->getPacketLoss() < 0 || tracker->getPacketLoss() > 1)
+        return "stress send/ack failed: packet loss out of range";
+
+    return "";
+}
+
+static std::string stressReceive(int threads) {
+    std::unique_ptr<PacketSequenceTracker> tracker(new PacketSequenceTracker());
+    std::atomic<uint32_t> accepted{0};
+    std::vector<std::thread> workers;
+
+    for (int t = 0; t < threads; t++) {
+        workers.emplace_back([&, t] {
+            std::vector<uint32_t> sequences;
+
+            for (uint32_t sequence = 1; sequence <= PacketSequenceTracker::RING_SIZE; sequence++)
+                sequences.push_back(sequence);
+
+            std::shuffle(sequences.begin(), sequences.end(), std::mt19937(t));
+
+            for (uint32_t sequence : sequences)
+                if (tracker->onReceived(sequence, 0, 0))
+                    accepted++;
+        });
+    }
+
+    for (auto& worker : workers)
+        worker.join();
+
+    if (accepted.load() != PacketSequenceTracker::RING_SIZE
+            || tracker->getAck() != PacketSequenceTracker::RING_SIZE
+            || tracker->getAckBitfield() != UINT32_C(0xFFFFFFFF)) {
+        std::ostringstream error;
+        error << "stress receive failed: accepted=" << accepted.load() << " ack=" << tracker->getAck()
+              << " bits=" << tracker->getAckBitfield();
+        return error.str();
+    }
+
+    return "";
+}
+
+int main() {
+    std::unique_ptr<PacketSequenceTracker> tracker(new PacketSequenceTracker());
+    std::string line;
+
+    while (std::getline(std::cin, line)) {
+        std::istringstream command(line);
+        std::string name;
+        command >> name;
+
+        if (name == "new")
+            tracker.reset(new PacketSequenceTracker());
+        else if (name == "start") {
+            uint32_t sequence;
+            command >> sequence;
+            TrackerAccess::startAt(*tracker, sequence);
+        } else if (name == "clock") {
+            int64_t nanos;
+            command >> nanos;
+            FakeClock::nanos = nanos;
+        } else if (name == "send")
+            std::printf("%" PRIu32 "\n", tracker->nextSequence());
+        else if (name == "recv") {
+            uint32_t sequence, ack, ackBitfield;
+            command >> sequence >> ack >> ackBitfield;
+            std::printf("%s\n", tracker->onReceived(sequence, ack, ackBitfield) ? "true" : "false");
+        } else if (name == "state")
+            printState(*tracker);
+        else if (name == "stress") {
+            std::string error = stressSendAndAck(4, 20000);
+
+            if (error.empty())
+                error = stressReceive(4);
+
+            std::printf("%s\n", error.empty() ? "stress ok" : error.c_str());
+        } else if (!name.empty()) {
+            std::printf("unknown command: %s\n", name.c_str());
+            return 1;
+        }
+    }
+
+    return 0;
+}